@@ -7,22 +7,34 @@
  */
 package controllers;
 
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
 import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import models.BaseModel;
 import models.TopicModel;
 import models.UpdateModel;
 import models.UserModel;
 import models.UserTopicModel;
 import models.VoteModel;
+import play.Logger;
 import play.i18n.Lang;
 import play.i18n.Messages;
 import play.libs.Crypto;
 import play.mvc.After;
 import play.mvc.Before;
 import play.mvc.Controller;
+import play.mvc.Finally;
 import play.mvc.Http;
 import utilities.AllowGuest;
 import utilities.DenyUser;
 import utilities.Constants;
+import utilities.DataVersions;
+import utilities.QueryTracer;
+import utilities.RelativeTime;
+import utilities.RequestMetrics;
 
 /**
  * Base class for controllers which has helper methods for all controllers.
@@ -36,23 +48,26 @@ import utilities.Constants;
 @AllowGuest({"toggleMobileEnabled","changeLanguage"})
 public class BaseController extends Controller {
 
+    /*
+     * The model objects below hold no state of their own and are only used to
+     * query and modify the datastore, so they are safely shared by concurrent
+     * requests. State of a single request belongs in the RequestContext.
+     */
+
     /** the User model */
-    private static UserModel userModel;
+    private static final UserModel userModel = new UserModel();
 
     /** the Topic model */
-    private static TopicModel topicModel;
+    private static final TopicModel topicModel = new TopicModel();
 
     /** the UserTopic model */
-    private static UserTopicModel userTopicModel;
+    private static final UserTopicModel userTopicModel = new UserTopicModel();
 
     /** the Update model */
-    private static UpdateModel updateModel;
+    private static final UpdateModel updateModel = new UpdateModel();
 
     /** the Vote model */
-    private static VoteModel voteModel;
-
-    /** the currently logged in user */
-    private static UserModel loggedInUser;
+    private static final VoteModel voteModel = new VoteModel();
 
     /**
      * Check whether or not the session corresponds to someone who is logged in.
@@ -78,7 +93,11 @@ public class BaseController extends Controller {
      * @return the currently logged in user
      */
     public static UserModel getUser(){
-        return loggedInUser;
+        RequestContext context = RequestContext.current();
+        if(context == null) {
+            return null;
+        }
+        return context.getUser();
     }
 
     /**
@@ -191,7 +210,10 @@ public class BaseController extends Controller {
      */
     @Before
     private static void dispatcher() {
-        initModels();
+        RequestMetrics.beginRequest();
+        QueryTracer.beginRequest();
+        BaseModel.beginIdentityMap();
+        RelativeTime.beginRequest();
         initLoginArgs();
         initLoggedInUser();
         initMobile();
@@ -205,6 +227,7 @@ public class BaseController extends Controller {
             checkRememberMe();
             checkGuestAccess();
         }
+        checkNotModified();
     }
 
     /**
@@ -245,6 +268,140 @@ public class BaseController extends Controller {
         Account.login();
     }
 
+    /**
+     * Answer a conditional GET with 304 Not Modified if the page would be the
+     * same as the copy the browser already has, before the action makes any
+     * queries. Pages show relative times, so a page is never older than the
+     * current minute. Pages with flashed messages are always rendered.
+     */
+    private static void checkNotModified() {
+        if(!"GET".equals(request.method) || flash.get("success") != null
+                || flash.get("error") != null) {
+            return;
+        }
+        Long version = getPageVersion();
+        if(version == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long lastModified = Math.max(version, now - now % 60000);
+        UserModel user = getUser();
+        String etag = "\"" + Long.toString(lastModified, 36) + "-"
+                + (user == null ? "guest" : user.getId()) + "-" + Lang.get()
+                + (isMobileEnabled() ? "-mobile" : "") + "\"";
+        response.setHeader("ETag", etag);
+        response.setHeader("Last-Modified", formatHttpDate(lastModified));
+        // the page depends on the session, so check back every time
+        response.setHeader("Cache-Control", "private, no-cache");
+        response.setHeader("Vary", "Cookie");
+        Http.Header ifNoneMatch = request.headers.get("if-none-match");
+        Http.Header ifModifiedSince = request.headers.get("if-modified-since");
+        boolean notModified = false;
+        if(ifNoneMatch != null) {
+            String tags = ifNoneMatch.value();
+            notModified = tags.contains(etag) || "*".equals(tags.trim());
+        }
+        else if(ifModifiedSince != null) {
+            Long since = parseHttpDate(ifModifiedSince.value());
+            notModified = since != null && lastModified / 1000 <= since / 1000;
+        }
+        if(notModified) {
+            // the after hooks don't run, so keep the previous URL here
+            storeCurrentUrlIfNotAjax();
+            notModified();
+        }
+    }
+
+    /**
+     * Returns the version of the data shown by the requested page, from the
+     * versions of the scopes of data it shows. Pages of logged in users also
+     * show their followed topics.
+     *
+     * @return the time the data of the page was last written, or null if the
+     *      page can't be answered with Not Modified
+     */
+    private static Long getPageVersion() {
+        String action = request.action;
+        long version;
+        if("Topic.defaultFilters".equals(action)
+                || "Topic.showUpdates".equals(action)
+                || "Topic.showUpdatesPage".equals(action)) {
+            String scope = params.get("scope");
+            if(scope == null || "you".equals(scope)
+                    || "everyone".equals(scope)) {
+                version = DataVersions.get(DataVersions.UPDATES);
+            }
+            else {
+                TopicModel topic = topicModel.findByName(scope);
+                if(topic == null) {
+                    return null;
+                }
+                version = DataVersions.get(DataVersions.topic(topic.getId()));
+            }
+        }
+        else if("Topic.browse".equals(action)
+                || "Topic.browsePage".equals(action)
+                || "Search.index".equals(action)) {
+            version = DataVersions.get(DataVersions.TOPICS);
+        }
+        else if("Profile.index".equals(action)) {
+            try {
+                version = DataVersions.get(DataVersions.user(
+                        Long.valueOf(params.get("id"))));
+            }
+            catch(NumberFormatException e) {
+                return null;
+            }
+        }
+        else {
+            return null;
+        }
+        if(getUser() != null) {
+            version = Math.max(version,
+                    DataVersions.get(DataVersions.user(getUser().getId())));
+        }
+        return version;
+    }
+
+    /**
+     * Formats a time as an HTTP date.
+     *
+     * @param time the time in milliseconds
+     * @return the time as an HTTP date, for example
+     *      "Sun, 06 Nov 1994 08:49:37 GMT"
+     */
+    private static String formatHttpDate(long time) {
+        return getHttpDateFormat().format(new Date(time));
+    }
+
+    /**
+     * Parses an HTTP date.
+     *
+     * @param date the HTTP date
+     * @return the time in milliseconds, or null if the date isn't valid
+     */
+    private static Long parseHttpDate(String date) {
+        try {
+            return getHttpDateFormat().parse(date).getTime();
+        }
+        catch(ParseException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns a format for HTTP dates. Date formats aren't thread safe, so a
+     * new one is made each time.
+     *
+     * @return a format for HTTP dates
+     */
+    private static SimpleDateFormat getHttpDateFormat() {
+        SimpleDateFormat format = new SimpleDateFormat(
+                "EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format;
+    }
+
     /**
      * Checks the validity of the "Remember me" cookie. If valid, login user and
      * refresh the page.
@@ -265,17 +422,6 @@ public class BaseController extends Controller {
         }
     }
 
-    /**
-     * Initialize model objects used in various controllers before each request.
-     */
-    private static void initModels() {
-        userModel = new UserModel();
-        topicModel = new TopicModel();
-        userTopicModel = new UserTopicModel();
-        updateModel = new UpdateModel();
-        voteModel = new VoteModel();
-    }
-
     /**
      * Initializes the mobile session cookie for tracking whether or not the
      * mobile site is enabled.
@@ -298,16 +444,16 @@ public class BaseController extends Controller {
     }
 
     /**
-     * Initialize logged in user field, so we can reuse this in various methods.
+     * Initialize the request context with the logged in user, so we can reuse
+     * the user in various methods.
      */
     private static void initLoggedInUser() {
+        UserModel loggedInUser = null;
         if(isLoggedIn()) {
             Long userId = Long.valueOf(session.get(Constants.SESSION_KEY));
             loggedInUser = userModel.findById(userId);
         }
-        else {
-            loggedInUser = null;
-        }
+        RequestContext.init(loggedInUser);
     }
 
     /**
@@ -375,4 +521,52 @@ public class BaseController extends Controller {
             flash.put(Constants.PREVIOUS_URL, getCurrentUrl());
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Forget the entities cached by the identity map during this request.
+     * Like the other end of request hooks, this runs even when a before hook
+     * ends the request early, such as with Not Modified or a redirect.
+     */
+    @Finally
+    private static void flushIdentityMap() {
+        int hits = BaseModel.endIdentityMap();
+        Logger.debug("%s: %d lookups answered by identity map",
+                request.action, hits);
+        Logger.debug("topic cache: %d hits, %d misses",
+                TopicModel.getCacheHits(), TopicModel.getCacheMisses());
+    }
+
+    /**
+     * Forget the time the current request started at.
+     */
+    @Finally
+    private static void endRelativeTime() {
+        RelativeTime.endRequest();
+    }
+
+    /**
+     * Record how long the current request took and how many datastore
+     * operations it made.
+     */
+    @Finally
+    private static void endRequestMetrics() {
+        RequestMetrics.endRequest(request.action);
+    }
+
+    /**
+     * Report the N+1 queries of the current request, and whether it went
+     * over its query budget, when queries are traced. The number of queries
+     * and rows read are sent in headers, for ScaleTest.
+     */
+    @Finally
+    private static void endQueryTrace() {
+        int queries = QueryTracer.getQueryCount();
+        if(queries >= 0) {
+            response.setHeader(Constants.QUERY_COUNT_HEADER,
+                    String.valueOf(queries));
+            response.setHeader(Constants.ROW_COUNT_HEADER,
+                    String.valueOf(QueryTracer.getRowCount()));
+        }
+        QueryTracer.endRequest(request.action);
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * File: Metrics.java
+ * Name: Peter Graham
+ * Class: CS 461
+ * Project 1
+ * Date: May 16
+ */
+package controllers;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import play.Play;
+import play.mvc.Before;
+import play.mvc.Controller;
+import play.mvc.Http;
+import utilities.RequestMetrics;
+
+/**
+ * Controller for the request and datastore metrics of this application
+ * instance, for Prometheus to scrape. It extends Controller rather than
+ * BaseController, so scraping neither sets up a page nor shows up in the
+ * metrics itself.
+ *
+ * The metrics are only served to requests with the shared token set as
+ * metrics.token in application.conf, sent as a bearer token. Without a token
+ * set, they are only served in dev mode.
+ *
+ * @author Peter Graham
+ */
+public class Metrics extends Controller {
+
+    /**
+     * Check that the request has the metrics token, before any action runs.
+     */
+    @Before
+    static void checkToken() {
+        String token = Play.configuration.getProperty("metrics.token");
+        if(token == null || token.length() == 0) {
+            if(!Play.mode.isDev()) {
+                notFound();
+            }
+        }
+        else if(!isAuthorized(request.headers.get("authorization"),
+                token)) {
+            forbidden();
+        }
+    }
+
+    /**
+     * Checks if an Authorization header has a bearer token. The time taken
+     * doesn't depend on where the header first differs from the token, so
+     * the token can't be guessed a character at a time from response times.
+     *
+     * @param authorization the Authorization header, or null if none was sent
+     * @param token the token to check for
+     * @return true if the header has the token
+     */
+    private static boolean isAuthorized(Http.Header authorization,
+            String token) {
+        if(authorization == null || authorization.value() == null) {
+            return false;
+        }
+        Charset utf8 = Charset.forName("UTF-8");
+        return MessageDigest.isEqual(("Bearer " + token).getBytes(utf8),
+                authorization.value().getBytes(utf8));
+    }
+
+    /**
+     * Render all metrics in the Prometheus text format.
+     */
+    public static void index() {
+        response.contentType = "text/plain; version=0.0.4";
+        renderText(RequestMetrics.toText());
+    }
+}
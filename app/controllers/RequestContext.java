@@ -0,0 +1,68 @@
+/*
+ * File: RequestContext.java
+ * Name: Peter Graham
+ * Class: CS 461
+ * Project 1
+ * Date: May 6
+ */
+package controllers;
+
+import models.UserModel;
+import play.mvc.Http;
+
+/**
+ * State belonging to a single request, such as the logged in user. It is
+ * stored in the arguments of the current request rather than in static
+ * fields, so concurrent requests never see each other's state.
+ *
+ * @author Peter Graham
+ */
+class RequestContext {
+
+    /** key of the context in the request arguments */
+    private static final String KEY = "requestContext";
+
+    /** the logged in user, or null if the visitor isn't logged in */
+    private final UserModel user;
+
+    /**
+     * Constructs a request context.
+     *
+     * @param loggedInUser the logged in user, or null if not logged in
+     */
+    private RequestContext(UserModel loggedInUser) {
+        this.user = loggedInUser;
+    }
+
+    /**
+     * Create the context of the current request.
+     *
+     * @param loggedInUser the logged in user, or null if not logged in
+     */
+    static void init(UserModel loggedInUser) {
+        Http.Request.current().args.put(KEY, new RequestContext(loggedInUser));
+    }
+
+    /**
+     * Returns the context of the current request.
+     *
+     * @return the context of the current request, or null if it hasn't been
+     *      created yet
+     */
+    static RequestContext current() {
+        Http.Request request = Http.Request.current();
+        if(request == null) {
+            return null;
+        }
+        return (RequestContext) request.args.get(KEY);
+    }
+
+    /**
+     * Returns the logged in user of this request.
+     *
+     * @return the logged in user, or null if the visitor isn't logged in
+     */
+    UserModel getUser() {
+        return this.user;
+    }
+}
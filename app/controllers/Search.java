@@ -20,8 +20,8 @@ import utilities.Constants;
 public class Search extends BaseController {
 
     /**
-     * Redirect to a topic page if exact match is found, or display that no
-     * results are found.
+     * Redirect to a topic page if exact match is found, or otherwise display
+     * topics with similar names, if any.
      */
     public static void index() { 
         String searchQuery = params.get("q");
@@ -30,6 +30,8 @@ public class Search extends BaseController {
             if(topic != null){
                 Topic.showUpdates(topic.getName(), Constants.DEFAULT_ORDER, 0);
             }
+            renderArgs.put("suggestions", TopicModel.suggest(
+                    searchQuery.trim(), Constants.SEARCH_SUGGESTIONS));
         }
         renderArgs.put("searchQuery", searchQuery);
         render();
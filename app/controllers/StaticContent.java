@@ -7,12 +7,15 @@
  */
 package controllers;
 
-import java.io.File;
+import java.io.ByteArrayInputStream;
 import play.mvc.Controller;
+import play.mvc.Http;
+import utilities.AssetPipeline;
 
 /**
  * Handles routing of static files that are accessed from the base directory,
- * such as favicon.ico and robots.txt.
+ * such as favicon.ico and robots.txt, and of the script and style sheet
+ * bundles. All of them are served from memory.
  *
  * Note: This should be replaced by staticFile routing in Play version 1.2.
  *
@@ -29,17 +32,50 @@ public class StaticContent extends Controller {
      * Render the robots.txt file.
      */
     public static void robots(){
-        File file = play.Play.getFile("public/robots.txt");
         response.cacheFor("24h");
-        renderBinary(file);
+        renderAsset(AssetPipeline.getFile("robots.txt"));
     }
 
     /**
      * Render the favicon file.
      */
     public static void favicon(){
-        File file = play.Play.getFile("public/favicon.ico");
         response.cacheFor("300h");
-        renderBinary(file);
+        renderAsset(AssetPipeline.getFile("favicon.ico"));
+    }
+
+    /**
+     * Render a script or style sheet bundle. The file name of a bundle
+     * changes whenever its content does, so it can be cached forever.
+     *
+     * @param name the fingerprinted file name of the bundle
+     */
+    public static void bundle(String name) {
+        AssetPipeline.Asset bundle = AssetPipeline.getBundle(name);
+        if(bundle == null) {
+            notFound(name);
+        }
+        response.setHeader("Cache-Control", "public, max-age=31536000");
+        renderAsset(bundle);
+    }
+
+    /**
+     * Render a static file or bundle, gzipped if the browser accepts it.
+     *
+     * @param asset the file or bundle to render
+     */
+    private static void renderAsset(AssetPipeline.Asset asset) {
+        byte[] content = asset.getContent();
+        Http.Header acceptEncoding = request.headers.get("accept-encoding");
+        if(asset.getGzipped() != null) {
+            response.setHeader("Vary", "Accept-Encoding");
+            if(acceptEncoding != null
+                    && acceptEncoding.value().contains("gzip")) {
+                response.setHeader("Content-Encoding", "gzip");
+                content = asset.getGzipped();
+            }
+        }
+        renderBinary(new ByteArrayInputStream(content), asset.getName(),
+                asset.getContentType(), true);
     }
 }
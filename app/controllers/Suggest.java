@@ -0,0 +1,48 @@
+/*
+ * File: Suggest.java
+ * Name: Peter Graham
+ * Class: CS 461
+ * Project 1
+ * Date: May 8
+ */
+package controllers;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import models.TopicModel;
+import play.mvc.Controller;
+import utilities.Constants;
+import utilities.TopicIndex;
+
+/**
+ * Controller for autocompleting topic names as they are typed. It extends
+ * Controller rather than BaseController, since it's called on every key
+ * press and needs none of the login or page setup done before other actions.
+ *
+ * @author Peter Graham
+ */
+public class Suggest extends Controller {
+
+    /**
+     * Render the topics matching the start of a name as JSON, for example
+     * [{"name":"music","followers":12}].
+     *
+     * @param q the start of a topic name
+     */
+    public static void index(String q) {
+        List<Map<String,Object>> suggestions =
+                new ArrayList<Map<String,Object>>();
+        if(q != null) {
+            for(TopicIndex.Match match : TopicModel.suggest(q.trim(),
+                    Constants.SEARCH_SUGGESTIONS)) {
+                Map<String,Object> suggestion = new HashMap<String,Object>();
+                suggestion.put("name", match.getName());
+                suggestion.put("followers", match.getFollowers());
+                suggestions.add(suggestion);
+            }
+        }
+        renderJSON(suggestions);
+    }
+}
@@ -9,13 +9,25 @@ package controllers;
 
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import models.TopicModel;
 import play.libs.WS;
 import models.UpdateModel;
+import models.UpdateRow;
+import models.UserModel;
+import models.VoteQueue;
+import play.i18n.Lang;
 import play.i18n.Messages;
+import play.templates.TemplateLoader;
 import utilities.AllowGuest;
 import utilities.Constants;
+import utilities.DataVersions;
+import utilities.Page;
+import utilities.PageCache;
+import utilities.PageCursor;
+import utilities.RequestMetrics;
 import utilities.ValidationException;
 
 /**
@@ -23,9 +35,28 @@ import utilities.ValidationException;
  *
  * @author Peter Graham
  */
-@AllowGuest({"defaultFilters", "browse", "showUpdates"})
+@AllowGuest({"defaultFilters", "browse", "browsePage", "showUpdates",
+    "showUpdatesPage"})
 public class Topic extends BaseController {
 
+    /** the update lists shown to guests, shared by all guests */
+    private static final PageCache<Map<String,Object>> guestPages =
+            new PageCache<Map<String,Object>>(Constants.GUEST_PAGE_CACHE_SIZE,
+                    Constants.GUEST_PAGE_CACHE_TTL);
+
+    static {
+        RequestMetrics.registerCache("guest_pages", guestPages);
+    }
+
+    /**
+     * Forget the cached guest update lists, so the next guest request for
+     * each list loads it. Used by ScaleTest to measure what building a guest
+     * page costs.
+     */
+    static void clearGuestPages() {
+        guestPages.clear();
+    }
+
     /**
      * Render the home page with default filters. Default order is popular, and
      * default scope is everyone if not logged in or you if logged in.
@@ -40,7 +71,9 @@ public class Topic extends BaseController {
     }
 
     /**
-     * Display updates for the given scope, order, and offset.
+     * Display updates for the given scope, order, and offset. Pages after the
+     * first link to showUpdatesPage(), so numeric offsets are only still read
+     * for old links.
      * 
      * @param scope either "you" for all your topics, "everyone" for everyone's
      *      topics, or otherwise a String representing the name of a topic.
@@ -48,11 +81,42 @@ public class Topic extends BaseController {
      * @param offset int used to determine how much to offset updates by
      */
     public static void showUpdates(String scope, String order, int offset) {
+        renderUpdates(scope, order, offset, null);
+    }
+
+    /**
+     * Display the page of updates a cursor leads to for the given scope and
+     * order.
+     *
+     * @param scope either "you" for all your topics, "everyone" for everyone's
+     *      topics, or otherwise a String representing the name of a topic.
+     * @param order how to sort the updates (recent, popular)
+     * @param cursor the cursor of the page from a previous or next link
+     */
+    public static void showUpdatesPage(String scope, String order,
+            String cursor) {
+        renderUpdates(scope, order, 0, PageCursor.parse(cursor));
+    }
+
+    /**
+     * Render updates for the given scope and order, by numeric offset if one
+     * is given or otherwise by cursor.
+     *
+     * @param scope either "you" for all your topics, "everyone" for everyone's
+     *      topics, or otherwise a String representing the name of a topic.
+     * @param order how to sort the updates (recent, popular)
+     * @param offset int used to determine how much to offset updates by, or 0
+     *      to page by cursor
+     * @param cursor the cursor of the page, or null for the first page
+     */
+    private static void renderUpdates(String scope, String order, int offset,
+            PageCursor cursor) {
         if(!Constants.VALID_ORDERS.contains(order)) {
             order = Constants.DEFAULT_ORDER;
         }
         // get the list of updates to show
-        List<UpdateModel> updates;
+        UserModel user = null;
+        TopicModel topic = null;
         if("you".equals(scope)) {
             if(!isLoggedIn()) {
                 // can't access "you" if not logged in
@@ -60,22 +124,28 @@ public class Topic extends BaseController {
                 flash.error(Messages.get("login.loginRequired"));
                 Account.login();
             }
-            updates = getUpdateModel().getUpdates(getUser(),null,order,offset);
+            user = getUser();
         }
-        else if("everyone".equals(scope)) {
-            updates = getUpdateModel().getUpdates(null, null, order, offset);
-        }
-        else {
+        else if(!"everyone".equals(scope)) {
             // the scope is the name of a topic
-            TopicModel topic = getTopicModel().findByName(scope);
+            topic = getTopicModel().findByName(scope);
             if(topic == null) {
                 Error.index(404, Messages.get("topic.notFound"));
             }
-            updates = getUpdateModel().getUpdates(null, topic, order, offset);
             renderArgs.put("isFollowing",
                 getUserTopicModel().isFollowing(getUser(), topic));
         }
-        renderArgs.put("updates", updates);
+        // guests all see the same updates, so theirs are shared and cached
+        Map<String,Object> page;
+        if(isLoggedIn()) {
+            page = loadUpdates(user, topic, order, offset, cursor, getUser());
+        }
+        else {
+            page = getGuestPage(scope, topic, order, offset, cursor);
+        }
+        for(Map.Entry<String,Object> arg : page.entrySet()) {
+            renderArgs.put(arg.getKey(), arg.getValue());
+        }
         renderArgs.put("scope",scope);
         String decodedScope = null;
         try {
@@ -86,14 +156,7 @@ public class Topic extends BaseController {
         }
         renderArgs.put("scopeDecoded", decodedScope);
         renderArgs.put("order",order);
-        int lowerBound = offset+1;
-        int upperBound = offset+Constants.UPDATES_PER_PAGE;
-        renderArgs.put("lower", lowerBound);
-        renderArgs.put("upper", upperBound);
-        renderArgs.put("prevOffset", lowerBound -1- Constants.UPDATES_PER_PAGE);
-        renderArgs.put("numUpdates",updates.size());
-        renderArgs.put("defaultNumUpdates",Constants.UPDATES_PER_PAGE);
-        render();
+        renderTemplate("Topic/showUpdates.html");
     }
 
     /**
@@ -146,6 +209,119 @@ public class Topic extends BaseController {
         }
     }
 
+    /**
+     * Load a page of updates and the arguments for showing it and paging
+     * through it.
+     *
+     * @param user the user whose topics to show updates of, or null
+     * @param topic the topic to show updates of, or null
+     * @param order how to sort the updates (recent, popular)
+     * @param offset int used to determine how much to offset updates by, or 0
+     *      to page by cursor
+     * @param cursor the cursor of the page, or null for the first page
+     * @param viewer the logged in user viewing the page, or null for a guest
+     * @return the render arguments of the page, keyed by name
+     */
+    private static Map<String,Object> loadUpdates(UserModel user,
+            TopicModel topic, String order, int offset, PageCursor cursor,
+            UserModel viewer) {
+        Map<String,Object> args = new HashMap<String,Object>();
+        List<UpdateModel> updates;
+        if(offset > 0) {
+            updates = getUpdateModel().getUpdates(user, topic, order, offset);
+        }
+        else {
+            Page<UpdateModel> page = getUpdateModel().getUpdatesPage(user,
+                    topic, order, cursor);
+            updates = page.getItems();
+            offset = page.getFirstPosition();
+            args.put("prevCursor", page.getPreviousCursor());
+            args.put("nextCursor", page.getNextCursor());
+            args.put("pagedByCursor", true);
+        }
+        // load everything shown for each update in a fixed number of queries
+        List<UpdateRow> rows = getUpdateModel().getRows(updates, viewer);
+        args.put("updates", rows);
+        int lowerBound = offset+1;
+        int upperBound = offset+Constants.UPDATES_PER_PAGE;
+        args.put("lower", lowerBound);
+        args.put("upper", upperBound);
+        args.put("prevOffset", lowerBound -1- Constants.UPDATES_PER_PAGE);
+        args.put("numUpdates",updates.size());
+        args.put("defaultNumUpdates",Constants.UPDATES_PER_PAGE);
+        return args;
+    }
+
+    /**
+     * Returns a page of updates as shown to guests, from the cache shared by
+     * all guests if possible. The list of updates is rendered to HTML once
+     * and stored as "updatesHtml" instead of the updates themselves.
+     *
+     * @param scope "everyone" or the name of a topic
+     * @param topic the topic to show updates of, or null
+     * @param order how to sort the updates (recent, popular)
+     * @param offset int used to determine how much to offset updates by, or 0
+     *      to page by cursor
+     * @param cursor the cursor of the page, or null for the first page
+     * @return the render arguments of the page, keyed by name
+     */
+    private static Map<String,Object> getGuestPage(final String scope,
+            final TopicModel topic, final String order, final int offset,
+            final PageCursor cursor) {
+        final String language = Lang.get();
+        final boolean mobile = isMobileEnabled();
+        String key = scope + "/" + order + "/" + offset + "/" + cursor + "/"
+                + language + "/" + mobile;
+        String dataScope = topic != null ? DataVersions.topic(topic.getId())
+                : DataVersions.UPDATES;
+        return guestPages.get(key, DataVersions.get(dataScope),
+                new PageCache.Builder<Map<String,Object>>() {
+            public Map<String,Object> build() {
+                return buildGuestPage(scope, topic, order, offset, cursor,
+                        language, mobile);
+            }
+        });
+    }
+
+    /**
+     * Load a page of updates as shown to guests and render its list of
+     * updates. Doesn't depend on the current request, so it can be called by
+     * a background job.
+     *
+     * @param scope "everyone" or the name of a topic
+     * @param topic the topic to show updates of, or null
+     * @param order how to sort the updates (recent, popular)
+     * @param offset int used to determine how much to offset updates by, or 0
+     *      to page by cursor
+     * @param cursor the cursor of the page, or null for the first page
+     * @param language the language to render in
+     * @param mobile whether or not the mobile site is shown
+     * @return the render arguments of the page, keyed by name
+     */
+    private static Map<String,Object> buildGuestPage(String scope,
+            TopicModel topic, String order, int offset, PageCursor cursor,
+            String language, boolean mobile) {
+        String previousLanguage = Lang.get();
+        Lang.set(language);
+        try {
+            Map<String,Object> page = loadUpdates(null, topic, order, offset,
+                    cursor, null);
+            Map<String,Object> args = new HashMap<String,Object>(page);
+            args.put("scope", scope);
+            args.put("order", order);
+            args.put("loggedin", false);
+            args.put("topics", false);
+            args.put("isMobile", mobile);
+            page.put("updatesHtml", TemplateLoader.load(
+                    "Topic/updateList.html").render(args));
+            page.remove("updates");
+            return page;
+        }
+        finally {
+            Lang.set(previousLanguage);
+        }
+    }
+
     /**
      * Remove an update with the given update ID.
      *
@@ -157,17 +333,25 @@ public class Topic extends BaseController {
     }
 
     /**
-     * Vote up the Update with the given updateId.
+     * Vote up the Update with the given updateId, or take back the vote if
+     * already voted. The vote is queued and written in the background, and
+     * AJAX requests get the new state right away, for example
+     * {"voted":true,"count":5}.
      * 
      * @param updateId the ID of the Update to vote up
      */
     public static void onVoteSubmit(Long updateId) {
-        UpdateModel update = getUpdateModel().findById(updateId);
-        getVoteModel().createVote(update, getUser());
+        VoteQueue voteQueue = VoteQueue.get();
+        boolean voted = voteQueue.toggle(getUser(), updateId);
         // redirect back to the original page if not AJAX
         if(!params._contains("ajax")) {
             redirect(getPreviousUrl());
         }
+        Map<String,Object> result = new HashMap<String,Object>();
+        result.put("voted", voted);
+        result.put("count", getVoteModel().getVoteCount(updateId)
+                + voteQueue.getQueuedDelta(updateId));
+        renderJSON(result);
     }
 
     /**
@@ -194,21 +378,66 @@ public class Topic extends BaseController {
     }
 
     /**
-     * Browse topics by popularity or recency.
+     * Browse topics by popularity or recency. Pages after the first link to
+     * browsePage(), so numeric offsets are only still read for old links.
      *
      * @param order how to order topics (popular or recent)
      * @param offset int used to determine how much to offset topics by
      */
     public static void browse(String order, int offset) {
+        renderTopics(order, offset, null);
+    }
+
+    /**
+     * Browse the page of topics a cursor leads to by popularity or recency.
+     *
+     * @param order how to order topics (popular or recent)
+     * @param cursor the cursor of the page from a previous or next link
+     */
+    public static void browsePage(String order, String cursor) {
+        renderTopics(order, 0, PageCursor.parse(cursor));
+    }
+
+    /**
+     * Render topics by popularity or recency, by numeric offset if one is
+     * given or otherwise by cursor.
+     *
+     * @param order how to order topics (popular or recent)
+     * @param offset int used to determine how much to offset topics by, or 0
+     *      to page by cursor
+     * @param cursor the cursor of the page, or null for the first page
+     */
+    private static void renderTopics(String order, int offset,
+            PageCursor cursor) {
         List<TopicModel> topics;
-        if("recent".equals(order)) {
-            topics = getTopicModel().getNewest(Constants.TOPICS_PER_PAGE,
-                    offset);
+        if(!"recent".equals(order)) {
+            order = "popular";
+        }
+        if(offset > 0) {
+            if("recent".equals(order)) {
+                topics = getTopicModel().getNewest(Constants.TOPICS_PER_PAGE,
+                        offset);
+            }
+            else {
+                topics = getTopicModel().getPopular(Constants.TOPICS_PER_PAGE,
+                        offset);
+            }
         }
         else {
-            topics = getTopicModel().getPopular(Constants.TOPICS_PER_PAGE,
-                    offset);
-            order = "popular";
+            Page<TopicModel> page;
+            if("recent".equals(order)) {
+                page = getTopicModel().getNewestPage(cursor,
+                        Constants.TOPICS_PER_PAGE);
+            }
+            else {
+                page = getTopicModel().getPopularPage(cursor,
+                        Constants.TOPICS_PER_PAGE);
+            }
+            topics = page.getItems();
+            offset = page.getFirstPosition();
+            renderArgs.put("prevCursor", page.getPreviousCursor());
+            renderArgs.put("nextCursor", page.getNextCursor());
+            renderArgs.put("pagedByCursor", true);
         }
         renderArgs.put("topics",topics);
         renderArgs.put("order", order);
@@ -219,6 +448,6 @@ public class Topic extends BaseController {
         renderArgs.put("prevOffset", lowerBound -1- Constants.TOPICS_PER_PAGE);
         renderArgs.put("numUpdates",topics.size());
         renderArgs.put("defaultNumUpdates",Constants.TOPICS_PER_PAGE);
-        render();
+        renderTemplate("Topic/browse.html");
     }
 }
\ No newline at end of file
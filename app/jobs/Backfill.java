@@ -0,0 +1,68 @@
+/*
+ * File: Backfill.java
+ * Name: Peter Graham
+ * Class: CS 461
+ * Project 1
+ * Date: May 2
+ */
+package jobs;
+
+import models.TimelineModel;
+import models.TopicModel;
+import models.UserTopicModel;
+import models.VoteCounterModel;
+import models.VoteModel;
+import play.Logger;
+import play.Play;
+import play.jobs.Job;
+import play.jobs.OnApplicationStart;
+
+/**
+ * Builds denormalized data from data stored before it existed. Each step only
+ * runs when enabled in application.conf, so it should be enabled for a single
+ * deploy and then turned back off.
+ *
+ * @author Peter Graham
+ */
+@OnApplicationStart
+public class Backfill extends Job {
+
+    /**
+     * Run the enabled backfill steps.
+     */
+    @Override
+    public void doJob() {
+        // runs first, since the other steps count the migrated rows
+        if(isEnabled("backfill.naturalKeys")) {
+            Logger.info("Migrating votes and followed topics to natural keys");
+            new VoteModel().migrateLegacyVotes();
+            new UserTopicModel().migrateLegacyUserTopics();
+            Logger.info("Done migrating votes and followed topics");
+        }
+        if(isEnabled("backfill.voteCounters")) {
+            Logger.info("Backfilling vote counters");
+            new VoteCounterModel().backfill();
+            Logger.info("Done backfilling vote counters");
+        }
+        if(isEnabled("backfill.followerCounts")) {
+            Logger.info("Backfilling topic follower counts");
+            new TopicModel().backfillFollowerCounts();
+            Logger.info("Done backfilling topic follower counts");
+        }
+        if(isEnabled("backfill.timelines")) {
+            Logger.info("Backfilling timelines");
+            new TimelineModel().backfill();
+            Logger.info("Done backfilling timelines");
+        }
+    }
+
+    /**
+     * Checks if a backfill step is enabled in application.conf.
+     *
+     * @param key the configuration key of the step
+     * @return true if the step is enabled, otherwise false
+     */
+    private static boolean isEnabled(String key) {
+        return "true".equals(Play.configuration.getProperty(key));
+    }
+}
@@ -0,0 +1,30 @@
+/*
+ * File: BuildAssets.java
+ * Name: Peter Graham
+ * Class: CS 461
+ * Project 1
+ * Date: May 15
+ */
+package jobs;
+
+import play.jobs.Job;
+import play.jobs.OnApplicationStart;
+import utilities.AssetPipeline;
+
+/**
+ * Builds the script and style sheet bundles at startup, so the first page
+ * doesn't wait for them.
+ *
+ * @author Peter Graham
+ */
+@OnApplicationStart
+public class BuildAssets extends Job {
+
+    /**
+     * Build the bundles.
+     */
+    @Override
+    public void doJob() {
+        AssetPipeline.build();
+    }
+}
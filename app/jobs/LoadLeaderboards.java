@@ -0,0 +1,38 @@
+/*
+ * File: LoadLeaderboards.java
+ * Name: Peter Graham
+ * Class: CS 461
+ * Project 1
+ * Date: May 19
+ */
+package jobs;
+
+import models.UpdateModel;
+import play.Logger;
+import play.jobs.Every;
+import play.jobs.Job;
+import play.jobs.OnApplicationStart;
+
+/**
+ * Loads the popular update leaderboards at startup, and rebuilds them from
+ * the datastore every ten minutes after that. Runs in the background, so no
+ * request waits for the updates of the past week to be read. Until the
+ * first load is done, popular pages show the newest updates instead.
+ *
+ * @author Peter Graham
+ */
+@OnApplicationStart(async=true)
+@Every("10min")
+public class LoadLeaderboards extends Job {
+
+    /**
+     * Load the leaderboards.
+     */
+    @Override
+    public void doJob() {
+        long start = System.currentTimeMillis();
+        UpdateModel.loadLeaderboards();
+        Logger.info("Loaded popular update leaderboards in %d ms",
+                System.currentTimeMillis() - start);
+    }
+}
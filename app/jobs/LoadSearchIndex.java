@@ -0,0 +1,33 @@
+/*
+ * File: LoadSearchIndex.java
+ * Name: Peter Graham
+ * Class: CS 461
+ * Project 1
+ * Date: May 8
+ */
+package jobs;
+
+import models.TopicModel;
+import play.Logger;
+import play.jobs.Job;
+import play.jobs.OnApplicationStart;
+
+/**
+ * Loads the names of all topics into the search index at startup. Runs in
+ * the background, so searches only match exact names until it's done.
+ *
+ * @author Peter Graham
+ */
+@OnApplicationStart(async=true)
+public class LoadSearchIndex extends Job {
+
+    /**
+     * Load the search index.
+     */
+    @Override
+    public void doJob() {
+        Logger.info("Loading topic search index");
+        new TopicModel().loadSearchIndex();
+        Logger.info("Done loading topic search index");
+    }
+}
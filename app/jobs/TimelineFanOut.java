@@ -0,0 +1,46 @@
+/*
+ * File: TimelineFanOut.java
+ * Name: Peter Graham
+ * Class: CS 461
+ * Project 1
+ * Date: May 7
+ */
+package jobs;
+
+import models.TimelineModel;
+import models.UpdateModel;
+import play.jobs.Job;
+
+/**
+ * Adds a newly posted update to the timelines of its topic's followers in the
+ * background.
+ *
+ * @author Peter Graham
+ */
+public class TimelineFanOut extends Job {
+
+    /** the ID of the update to add to timelines */
+    private final Long updateId;
+
+    /**
+     * Constructs the job.
+     *
+     * @param theUpdateId the ID of the update to add to timelines
+     */
+    public TimelineFanOut(Long theUpdateId) {
+        this.updateId = theUpdateId;
+    }
+
+    /**
+     * Add the update to timelines if it still exists.
+     */
+    @Override
+    public void doJob() {
+        UpdateModel update = new UpdateModel().findById(this.updateId);
+        if(update != null) {
+            new TimelineModel().fanOut(update);
+            // timelines only show the update now, so rebuild them again
+            update.touchVersions();
+        }
+    }
+}
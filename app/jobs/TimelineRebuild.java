@@ -0,0 +1,47 @@
+/*
+ * File: TimelineRebuild.java
+ * Name: Peter Graham
+ * Class: CS 461
+ * Project 1
+ * Date: May 7
+ */
+package jobs;
+
+import models.TimelineModel;
+import models.UserModel;
+import play.jobs.Job;
+import utilities.DataVersions;
+
+/**
+ * Rebuilds a user's timeline in the background after they follow or unfollow
+ * a topic.
+ *
+ * @author Peter Graham
+ */
+public class TimelineRebuild extends Job {
+
+    /** the ID of the user to rebuild the timeline of */
+    private final Long userId;
+
+    /**
+     * Constructs the job.
+     *
+     * @param theUserId the ID of the user to rebuild the timeline of
+     */
+    public TimelineRebuild(Long theUserId) {
+        this.userId = theUserId;
+    }
+
+    /**
+     * Rebuild the user's timeline if the user still exists.
+     */
+    @Override
+    public void doJob() {
+        UserModel user = new UserModel().findById(this.userId);
+        if(user != null) {
+            new TimelineModel().rebuild(user);
+            // the timeline only shows the change now, so rebuild pages again
+            DataVersions.touch(DataVersions.user(this.userId));
+        }
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * File: UpdateCleanup.java
+ * Name: Peter Graham
+ * Class: CS 461
+ * Project 1
+ * Date: May 12
+ */
+package jobs;
+
+import java.util.List;
+import models.RemovedUpdateModel;
+import play.Logger;
+import play.jobs.Job;
+import play.jobs.OnApplicationStart;
+import utilities.Constants;
+
+/**
+ * Deletes the votes, vote counters and timeline entries of removed updates in
+ * the background. Runs whenever an update is removed, and at startup to finish
+ * any cleanup that was interrupted by the application stopping.
+ *
+ * @author Peter Graham
+ */
+@OnApplicationStart(async=true)
+public class UpdateCleanup extends Job {
+
+    /**
+     * Clean up every removed update, oldest first.
+     */
+    @Override
+    public void doJob() {
+        RemovedUpdateModel removedModel = new RemovedUpdateModel();
+        List<RemovedUpdateModel> removed =
+                removedModel.findPending(Constants.DELETE_BATCH_SIZE);
+        while(!removed.isEmpty()) {
+            for(RemovedUpdateModel update : removed) {
+                update.cleanUp();
+                Logger.info("Cleaned up removed update %d",
+                        update.getUpdateId());
+            }
+            removed = removedModel.findPending(Constants.DELETE_BATCH_SIZE);
+        }
+    }
+}
@@ -0,0 +1,30 @@
+/*
+ * File: VoteFlush.java
+ * Name: Peter Graham
+ * Class: CS 461
+ * Project 1
+ * Date: May 10
+ */
+package jobs;
+
+import models.VoteQueue;
+import play.jobs.Every;
+import play.jobs.Job;
+
+/**
+ * Writes queued votes to the datastore every second. Also run right away
+ * when the queue fills up.
+ *
+ * @author Peter Graham
+ */
+@Every("1s")
+public class VoteFlush extends Job {
+
+    /**
+     * Write the queued votes.
+     */
+    @Override
+    public void doJob() {
+        VoteQueue.get().flush();
+    }
+}
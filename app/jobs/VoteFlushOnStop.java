@@ -0,0 +1,30 @@
+/*
+ * File: VoteFlushOnStop.java
+ * Name: Peter Graham
+ * Class: CS 461
+ * Project 1
+ * Date: May 10
+ */
+package jobs;
+
+import models.VoteQueue;
+import play.jobs.Job;
+import play.jobs.OnApplicationStop;
+
+/**
+ * Writes queued votes to the datastore when the application stops, so votes
+ * that were acknowledged aren't lost.
+ *
+ * @author Peter Graham
+ */
+@OnApplicationStop
+public class VoteFlushOnStop extends Job {
+
+    /**
+     * Write the queued votes.
+     */
+    @Override
+    public void doJob() {
+        VoteQueue.get().flush();
+    }
+}
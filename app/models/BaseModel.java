@@ -7,16 +7,32 @@
  */
 package models;
 
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
+import java.util.ConcurrentModificationException;
 import java.util.Date;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
-import java.util.LinkedList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import play.i18n.Messages;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import siena.Id;
 import siena.Model;
+import siena.PersistenceManager;
+import siena.Query;
+import siena.SienaException;
+import utilities.Constants;
+import utilities.PageCursor;
+import utilities.QueryTracer;
+import utilities.RelativeTime;
+import utilities.RequestMetrics;
 
 /**
  * Base class for all models with reusable methods.
@@ -26,29 +42,417 @@ import siena.Model;
  */
 public class BaseModel extends Model {
 
+    /** extra entities fetched to page past ones created at the same time */
+    private static final int SAME_TIME_SLACK = 5;
+
+    /**
+     * Entities already looked up by a unique field during the current request,
+     * keyed by class, field and value. Null when no request is in progress, so
+     * lookups from jobs are never cached.
+     */
+    private static final ThreadLocal<Map<String,Object>> identityMap =
+            new ThreadLocal<Map<String,Object>>();
+
+    /** number of lookups answered by the identity map in this request */
+    private static final ThreadLocal<Integer> identityMapHits =
+            new ThreadLocal<Integer>();
+
+    /** number of lookups answered by the identity map since startup */
+    private static final AtomicLong totalIdentityMapHits = new AtomicLong();
+
+    /** the key field of each model class, found when first needed */
+    private static final Map<Class<?>,Field> keyFields =
+            new ConcurrentHashMap<Class<?>,Field>();
+
+    /**
+     * Start caching unique lookups for the current request.
+     */
+    public static void beginIdentityMap() {
+        identityMap.set(new HashMap<String,Object>());
+        identityMapHits.set(0);
+    }
+
+    /**
+     * Stop caching unique lookups for the current request and forget all the
+     * entities that were cached.
+     *
+     * @return the number of lookups the identity map answered in this request
+     */
+    public static int endIdentityMap() {
+        Integer hits = identityMapHits.get();
+        identityMap.remove();
+        identityMapHits.remove();
+        return hits == null ? 0 : hits;
+    }
+
+    /**
+     * Returns the number of lookups answered by the identity map, which would
+     * have otherwise been datastore queries, since startup.
+     *
+     * @return the number of lookups answered by the identity map
+     */
+    public static long getTotalIdentityMapHits() {
+        return totalIdentityMapHits.get();
+    }
+
+    /**
+     * Get the single entity whose field has the given value. If the same lookup
+     * was already made during the current request, the entity loaded then is
+     * returned without querying the datastore again.
+     *
+     * @param query a query object representing all entities of this model
+     * @param field the name of a field that is unique among entities
+     * @param value the value of the field to look up
+     * @return the entity with the given value, or null if there is none
+     */
+    protected <T> T getUnique(Query<T> query, String field, Object value) {
+        Map<String,Object> cache = identityMap.get();
+        if(cache == null) {
+            return query.filter(field, value).get();
+        }
+        String key = this.getClass().getName() + "." + field + "=" + value;
+        if(cache.containsKey(key)) {
+            identityMapHits.set(identityMapHits.get() + 1);
+            totalIdentityMapHits.incrementAndGet();
+            return (T) cache.get(key);
+        }
+        T entity = query.filter(field, value).get();
+        cache.put(key, entity);
+        return entity;
+    }
+
+    /**
+     * Returns a query of all entities of a model, which records every
+     * datastore operation it makes in the request metrics.
+     *
+     * @param type the class of the model
+     * @return a query object representing all entities of the model
+     */
+    protected static <T> Query<T> query(Class<T> type) {
+        return measure(Model.all(type), type.getSimpleName(),
+                Collections.<Object>emptyList());
+    }
+
+    /**
+     * Load an entity by its key. Unlike a query, this always sees the latest
+     * write of the entity.
+     *
+     * @param entity an entity with only its key set
+     * @return the entity filled in, or null if no entity has that key
+     * @throws SienaException if the entity couldn't be read, for any reason
+     *      other than not existing
+     */
+    protected static <T extends Model> T getByKey(T entity) {
+        long start = System.nanoTime();
+        boolean found = false;
+        try {
+            entity.get();
+            found = true;
+            return entity;
+        }
+        catch(SienaException e) {
+            // siena wraps every datastore exception, and only not found
+            // means there's no entity; a timeout or a failed read mustn't
+            // look like one
+            if(e.getCause() instanceof EntityNotFoundException) {
+                return null;
+            }
+            throw e;
+        }
+        finally {
+            RequestMetrics.recordOp("get", System.nanoTime() - start);
+            QueryTracer.record(entity.getClass().getSimpleName()
+                    + " get by key", String.valueOf(getKey(entity)),
+                    found ? 1 : 0);
+        }
+    }
+
+    /**
+     * Load the entities with the given keys in a single datastore call. Unlike
+     * an IN query, this reads only the given entities and takes any number of
+     * keys.
+     *
+     * @param type the class of the model
+     * @param keys the keys of the entities to load
+     * @return the entities that exist, in no particular order
+     */
+    protected static <T> List<T> getByKeys(Class<T> type, List<?> keys) {
+        List<T> entities = new ArrayList<T>();
+        if(keys.isEmpty()) {
+            return entities;
+        }
+        long start = System.nanoTime();
+        for(T entity : batch(type).getByKeys(keys)) {
+            if(entity != null) {
+                entities.add(entity);
+            }
+        }
+        RequestMetrics.recordOp("get", System.nanoTime() - start);
+        QueryTracer.record(type.getSimpleName() + " get by keys",
+                keys.toString(), entities.size());
+        return entities;
+    }
+
+    /**
+     * Run work in a datastore transaction, so a read followed by a write of
+     * the same entity can't lose a write made in between by another request.
+     * When another transaction wrote the entity first, the work is run again
+     * from the start, up to TRANSACTION_ATTEMPTS times. The work may only
+     * load entities by key, since queries aren't allowed in a transaction.
+     *
+     * @param type the class of the model the work reads and writes
+     * @param work the reads and writes to make in the transaction
+     * @throws RuntimeException if every attempt conflicted, or the work
+     *      failed for another reason
+     */
+    protected static void inTransaction(Class<?> type, Runnable work) {
+        PersistenceManager manager = getPersistenceManager(type);
+        for(int attempt = 1; ; attempt++) {
+            manager.beginTransaction();
+            try {
+                work.run();
+            }
+            catch(RuntimeException e) {
+                manager.rollbackTransaction();
+                if(!isConflict(e)
+                        || attempt >= Constants.TRANSACTION_ATTEMPTS) {
+                    throw e;
+                }
+                continue;
+            }
+            try {
+                manager.commitTransaction();
+                return;
+            }
+            catch(RuntimeException e) {
+                // a failed commit is already rolled back
+                if(!isConflict(e)
+                        || attempt >= Constants.TRANSACTION_ATTEMPTS) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks if a transaction failed because another transaction wrote the
+     * same entity first, either directly or as wrapped by siena.
+     *
+     * @param e the exception the transaction failed with
+     * @return true if the transaction can be run again
+     */
+    private static boolean isConflict(RuntimeException e) {
+        return e instanceof ConcurrentModificationException
+                || e.getCause() instanceof ConcurrentModificationException;
+    }
+
     /**
-     * Sort a given map by value in ascending order. Based by Devin Moore:
-     * http://stackoverflow.com/questions/109383/how-to-sort-a-mapkey-value-on-
-     *      the-values-in-java
+     * Fetch the entities nearest to a cursor in a list ordered by newest first,
+     * for building a page with Page.of(). Entities created in the same
+     * millisecond as the cursor's entity may be on either side of it, so a few
+     * extra are fetched to break ties by ID.
      *
-     * @param map the map to sort by value
-     * @return the sorted map by value in ascending order
+     * @param query a query of the entities in the list
+     * @param cursor the cursor of the page, or null for the first page
+     * @param limit how many entities are needed in the cursor's direction
+     * @return the entities nearest to the cursor
      */
-    public Map sortByValue(Map map) {
-         List list = new LinkedList(map.entrySet());
-         Collections.sort(list, new Comparator() {
-              public int compare(Object o1, Object o2) {
-                   return ((Comparable) ((Map.Entry) (o1)).getValue())
-                  .compareTo(((Map.Entry) (o2)).getValue());
-              }
-         });
+    protected static <T> List<T> fetchNewestCandidates(Query<T> query,
+            PageCursor cursor, int limit) {
+        if(cursor == null) {
+            return query.order("-created").fetch(limit);
+        }
+        Date at = new Date(cursor.getCreated());
+        if(cursor.isBackward()) {
+            return query.filter("created>=", at).order("created")
+                    .fetch(limit + SAME_TIME_SLACK);
+        }
+        return query.filter("created<=", at).order("-created")
+                .fetch(limit + SAME_TIME_SLACK);
+    }
 
-        Map result = new LinkedHashMap();
-        for (Iterator it = list.iterator(); it.hasNext();) {
-            Map.Entry entry = (Map.Entry)it.next();
-            result.put(entry.getKey(), entry.getValue());
+    /**
+     * Insert the given entities in as few datastore calls as possible,
+     * MAX_BATCH_WRITES at a time, and forget entities cached during this
+     * request. An entity with the same key as a stored one replaces it.
+     *
+     * @param type the class of the model
+     * @param entities the entities to insert
+     */
+    protected static <T> void insertAll(Class<T> type, List<T> entities) {
+        for(int i = 0; i < entities.size(); i += Constants.MAX_BATCH_WRITES) {
+            long start = System.nanoTime();
+            batch(type).insert(entities.subList(i, Math.min(entities.size(),
+                    i + Constants.MAX_BATCH_WRITES)));
+            RequestMetrics.recordOp("insert", System.nanoTime() - start);
         }
-        return result;
+        clearIdentityMap();
+    }
+
+    /**
+     * Delete the entities with the given keys in as few datastore calls as
+     * possible, MAX_BATCH_WRITES at a time, and forget entities cached during
+     * this request. Unlike an IN query, this deletes by key without reading
+     * the entities, and takes any number of keys.
+     *
+     * @param type the class of the model
+     * @param keys the keys of the entities to delete
+     * @return the number of entities deleted
+     */
+    protected static <T> int deleteByKeys(Class<T> type, List<?> keys) {
+        for(int i = 0; i < keys.size(); i += Constants.MAX_BATCH_WRITES) {
+            long start = System.nanoTime();
+            batch(type).deleteByKeys(keys.subList(i, Math.min(keys.size(),
+                    i + Constants.MAX_BATCH_WRITES)));
+            RequestMetrics.recordOp("delete", System.nanoTime() - start);
+        }
+        clearIdentityMap();
+        return keys.size();
+    }
+
+    /**
+     * Insert this entity, and forget entities cached during this request.
+     */
+    @Override
+    public void insert() {
+        long start = System.nanoTime();
+        super.insert();
+        RequestMetrics.recordOp("insert", System.nanoTime() - start);
+        clearIdentityMap();
+    }
+
+    /**
+     * Update this entity, and forget entities cached during this request.
+     */
+    @Override
+    public void update() {
+        long start = System.nanoTime();
+        super.update();
+        RequestMetrics.recordOp("update", System.nanoTime() - start);
+        clearIdentityMap();
+    }
+
+    /**
+     * Delete this entity, and forget entities cached during this request.
+     */
+    @Override
+    public void delete() {
+        long start = System.nanoTime();
+        super.delete();
+        RequestMetrics.recordOp("delete", System.nanoTime() - start);
+        clearIdentityMap();
+    }
+
+    /**
+     * Forget the entities cached during this request, since a write may have
+     * changed what a lookup would return.
+     */
+    private static void clearIdentityMap() {
+        Map<String,Object> cache = identityMap.get();
+        if(cache != null) {
+            cache.clear();
+        }
+    }
+
+    /**
+     * Wrap a query so the operations it makes are recorded in the request
+     * metrics and the query trace. Methods that return a query, such as
+     * filter(), return a wrapped query that remembers how it was built, and
+     * every other method is an operation.
+     *
+     * @param query the query to wrap
+     * @param shape how the query was built, without the filtered values
+     * @param values the filtered values of the query
+     * @return the wrapped query
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> Query<T> measure(final Query<T> query,
+            final String shape, final List<Object> values) {
+        return (Query<T>) Proxy.newProxyInstance(
+                BaseModel.class.getClassLoader(), new Class<?>[] {Query.class},
+                new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args)
+                    throws Throwable {
+                long start = System.nanoTime();
+                Object result;
+                try {
+                    result = method.invoke(query, args);
+                }
+                catch(InvocationTargetException e) {
+                    throw e.getTargetException();
+                }
+                if(result instanceof Query) {
+                    String field = args != null && args.length > 0
+                            && args[0] instanceof String ? (String) args[0]
+                            : "";
+                    List<Object> newValues = values;
+                    if("filter".equals(method.getName())) {
+                        newValues = new ArrayList<Object>(values);
+                        newValues.add(args[1]);
+                    }
+                    return measure((Query<Object>) result, shape + " "
+                            + method.getName() + "(" + field + ")",
+                            newValues);
+                }
+                if(method.getDeclaringClass() != Object.class) {
+                    RequestMetrics.recordOp("delete".equals(method.getName())
+                            ? "delete" : "query", System.nanoTime() - start);
+                    QueryTracer.record(shape + " " + method.getName(),
+                            values.toString(), countRows(result));
+                }
+                return result;
+            }
+        });
+    }
+
+    /**
+     * Returns the key of an entity, from the field siena stores it in.
+     *
+     * @param entity the entity
+     * @return the key of the entity, or null if it has no key field
+     */
+    private static Object getKey(Object entity) {
+        Class<?> type = entity.getClass();
+        Field field = keyFields.get(type);
+        if(field == null) {
+            for(Class<?> c = type; c != null && field == null;
+                    c = c.getSuperclass()) {
+                for(Field declared : c.getDeclaredFields()) {
+                    if(declared.isAnnotationPresent(Id.class)) {
+                        field = declared;
+                        break;
+                    }
+                }
+            }
+            if(field == null) {
+                return null;
+            }
+            field.setAccessible(true);
+            keyFields.put(type, field);
+        }
+        try {
+            return field.get(entity);
+        }
+        catch(IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the number of rows a query operation read, judging by what it
+     * returned. A count reads every row it counts.
+     *
+     * @param result what the operation returned
+     * @return the number of rows read
+     */
+    private static int countRows(Object result) {
+        if(result instanceof Collection) {
+            return ((Collection<?>) result).size();
+        }
+        if(result instanceof Integer) {
+            return (Integer) result;
+        }
+        return result instanceof Model ? 1 : 0;
     }
 
     /**
@@ -58,37 +462,13 @@ public class BaseModel extends Model {
      * plural form of "minute". Does the same so forth for hours and days if
      * applicable.
      *
-     * Note: many Java programmers recommend the Joda-Time library for this,
-     * since this library handles many date-related things automatically, such
-     * as daylight savings time.
+     * The labels are formatted once per language and the clock is read once
+     * per request by RelativeTime.
      *
      * @param date the date to see how long ago it was
      * @return a String of how long ago this update was posted
      */
     public String getHowLongAgo(Date date) {
-        Date curDate = new Date(System.currentTimeMillis());
-        long diffms = curDate.getTime() - date.getTime();
-        long diffmin = diffms / (60*1000);
-        if(diffmin <= 0) {
-            return Messages.get("time.now");
-        }
-        if(diffmin <= 1) {
-            return Messages.get("time", diffmin, Messages.get("time.min"));
-        }
-        if(diffmin <= 59) {
-            return Messages.get("time", diffmin, Messages.get("time.mins"));
-        }
-        long diffhour = diffmin / 60;
-        if(diffhour <= 1) {
-            return Messages.get("time", diffhour, Messages.get("time.hour"));
-        }
-        if(diffhour <= 23) {
-            return Messages.get("time", diffhour, Messages.get("time.hours"));
-        }
-        long diffday = diffhour / 24;
-        if(diffday <= 1) {
-            return Messages.get("time", diffday, Messages.get("time.day"));
-        }
-        return Messages.get("time", diffday, Messages.get("time.days"));
+        return RelativeTime.format(date.getTime());
     }
 }
@@ -0,0 +1,50 @@
+/*
+ * File: LegacyUserTopicModel.java
+ * Name: Peter Graham
+ * Class: CS 461
+ * Project 1
+ * Date: May 11
+ */
+package models;
+
+import siena.Id;
+import siena.Table;
+
+/**
+ * A followed topic as stored before UserTopics were keyed by user and topic,
+ * with an auto-incremented ID. Only read by
+ * UserTopicModel.migrateLegacyUserTopics().
+ *
+ * @author Peter Graham
+ */
+@Table("UserTopicModel")
+public class LegacyUserTopicModel extends BaseModel {
+
+    /** auto-incremented unique ID for the UserTopic */
+    @Id
+    private Long id;
+
+    /** user ID associated with this UserTopic */
+    private Long userId;
+
+    /** topic ID associated with this UserTopic */
+    private Long topicId;
+
+    /**
+     * Returns unique ID of the user.
+     *
+     * @return the unique id of the user
+     */
+    public Long getUserId() {
+        return this.userId;
+    }
+
+    /**
+     * Returns unique ID of the topic.
+     *
+     * @return the unique id of the topic
+     */
+    public Long getTopicId() {
+        return this.topicId;
+    }
+}
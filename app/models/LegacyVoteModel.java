@@ -0,0 +1,62 @@
+/*
+ * File: LegacyVoteModel.java
+ * Name: Peter Graham
+ * Class: CS 461
+ * Project 1
+ * Date: May 11
+ */
+package models;
+
+import java.util.Date;
+import siena.Id;
+import siena.Table;
+
+/**
+ * A vote as stored before votes were keyed by user and update, with an
+ * auto-incremented ID. Only read by VoteModel.migrateLegacyVotes().
+ *
+ * @author Peter Graham
+ */
+@Table("VoteModel")
+public class LegacyVoteModel extends BaseModel {
+
+    /** auto-incremented unique ID for the vote */
+    @Id
+    private Long id;
+
+    /** Date vote is added to database */
+    private Date created;
+
+    /** user ID associated with this Vote */
+    private Long userId;
+
+    /** update ID associated with this Vote */
+    private Long updateId;
+
+    /**
+     * Returns the ID of the user who voted.
+     *
+     * @return the ID of the user who voted
+     */
+    public Long getUserId() {
+        return this.userId;
+    }
+
+    /**
+     * Returns the ID of the update this vote is for.
+     *
+     * @return the ID of the update this vote is for
+     */
+    public Long getUpdateId() {
+        return this.updateId;
+    }
+
+    /**
+     * Returns the date that this vote was added to the database.
+     *
+     * @return the date that this vote was added to the database
+     */
+    public Date getDateCreated() {
+        return this.created;
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * File: RemovedUpdateModel.java
+ * Name: Peter Graham
+ * Class: CS 461
+ * Project 1
+ * Date: May 12
+ */
+package models;
+
+import java.util.Date;
+import java.util.List;
+import siena.Generator;
+import siena.Id;
+import siena.Query;
+import utilities.Constants;
+
+/**
+ * Marks an update that has been removed but whose votes, vote counter and
+ * timeline entries haven't all been deleted yet. The update itself is deleted
+ * right away, so it's gone from every page, and the rest is deleted a batch at
+ * a time by the UpdateCleanup job. The mark is only deleted once everything
+ * else is, so a cleanup that is interrupted picks up where it left off the
+ * next time the job runs.
+ *
+ * @author Peter Graham
+ */
+public class RemovedUpdateModel extends BaseModel {
+
+    /** unique key of the mark, the ID of the removed update */
+    @Id(Generator.NONE)
+    private String id;
+
+    /** ID of the removed update */
+    private Long updateId;
+
+    /** Date the update was removed */
+    private Date removed;
+
+    /**
+     * Constructs a RemovedUpdate object.
+     */
+    public RemovedUpdateModel() {
+        super();
+    }
+
+    /**
+     * Constructs the mark of a removed update and initializes fields.
+     *
+     * @param theUpdateId the ID of the removed update
+     */
+    public RemovedUpdateModel(Long theUpdateId) {
+        this();
+        this.id = String.valueOf(theUpdateId);
+        this.updateId = theUpdateId;
+        this.removed = new Date();
+    }
+
+    /**
+     * Returns up to howMany removed updates that still need cleaning up,
+     * oldest first.
+     *
+     * @param howMany the most marks to return
+     * @return the marks of the removed updates
+     */
+    public List<RemovedUpdateModel> findPending(int howMany) {
+        return all().order("removed").fetch(howMany);
+    }
+
+    /**
+     * Delete everything stored for the removed update, a batch at a time,
+     * then delete this mark. Safe to run again on a mark that was partly
+     * cleaned up, or by two jobs at once.
+     */
+    public void cleanUp() {
+        int batchSize = Constants.DELETE_BATCH_SIZE;
+        UpdateModel update = new UpdateModel().findById(this.updateId);
+        if(update != null) {
+            // the removal was interrupted before the update was deleted
+            update.delete();
+        }
+        VoteModel voteModel = new VoteModel();
+        int deleted;
+        do {
+            deleted = voteModel.deleteBatchByUpdate(this.updateId, batchSize);
+        } while(deleted == batchSize);
+        new VoteCounterModel().deleteByUpdate(this.updateId);
+        TimelineModel timelineModel = new TimelineModel();
+        do {
+            deleted = timelineModel.deleteBatchByUpdate(this.updateId,
+                    batchSize);
+        } while(deleted == batchSize);
+        this.delete();
+    }
+
+    /**
+     * Returns the ID of the removed update.
+     *
+     * @return the ID of the removed update
+     */
+    public Long getUpdateId() {
+        return this.updateId;
+    }
+
+    /**
+     * Returns the date the update was removed.
+     *
+     * @return the date the update was removed
+     */
+    public Date getDateRemoved() {
+        return this.removed;
+    }
+
+    /**
+     * Returns a query object representing all marks of removed updates.
+     *
+     * @return a query object representing all marks
+     */
+    private Query<RemovedUpdateModel> all() {
+        return query(RemovedUpdateModel.class);
+    }
+}
@@ -0,0 +1,371 @@
+/*
+ * File: TimelineModel.java
+ * Name: Peter Graham
+ * Class: CS 461
+ * Project 1
+ * Date: May 7
+ */
+package models;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import siena.Generator;
+import siena.Id;
+import siena.Index;
+import siena.Query;
+import utilities.Constants;
+import utilities.PageCursor;
+
+/**
+ * An entry in a user's home timeline, which holds the newest updates of the
+ * topics the user follows. Entries are written when an update is posted, so
+ * reading the timeline is a single query ordered by date.
+ *
+ * Topics with more than Constants.TIMELINE_FANOUT_LIMIT followers aren't
+ * written to timelines, since that would take too many writes per update.
+ * Their updates are merged in when the timeline is read instead.
+ *
+ * @author Peter Graham
+ */
+public class TimelineModel extends BaseModel {
+
+    /** number of users to rebuild timelines of at a time when backfilling */
+    private static final int BACKFILL_BATCH_SIZE = 100;
+
+    /** used to decide when to trim a timeline */
+    private static final Random random = new Random();
+
+    /** unique key of the entry, in the form "userId-updateId" */
+    @Id(Generator.NONE)
+    private String id;
+
+    /** user ID of the owner of the timeline */
+    @Index("user_idx")
+    private Long userId;
+
+    /** ID of the update in the timeline */
+    @Index("update_idx")
+    private Long updateId;
+
+    /** Date the update was added to the database */
+    private Date created;
+
+    /**
+     * Constructs a timeline entry object.
+     */
+    public TimelineModel() {
+        super();
+    }
+
+    /**
+     * Constructs a timeline entry and initializes fields.
+     *
+     * @param theUserId the user ID of the owner of the timeline
+     * @param update the update in the timeline
+     */
+    public TimelineModel(Long theUserId, UpdateModel update) {
+        this();
+        this.id = theUserId + "-" + update.getId();
+        this.userId = theUserId;
+        this.updateId = update.getId();
+        this.created = update.getDateCreated();
+    }
+
+    /**
+     * Add an update to the timelines of all followers of its topic, unless the
+     * topic has too many followers. Timelines that grow past their maximum
+     * length are trimmed after about one in TIMELINE_TRIM_INTERVAL updates,
+     * rather than after every update, since reading is limited to the maximum
+     * length anyway.
+     *
+     * @param update the update to add
+     */
+    public void fanOut(UpdateModel update) {
+        TopicModel topic = new TopicModel().findById(update.getParentTopicId());
+        if(topic == null || isLargeTopic(topic)) {
+            return;
+        }
+        List<Long> followerIds = new UserTopicModel().getUserIdsByTopic(topic);
+        List<TimelineModel> entries = new ArrayList<TimelineModel>();
+        for(Long followerId : followerIds) {
+            entries.add(new TimelineModel(followerId, update));
+        }
+        insertAll(TimelineModel.class, entries);
+        for(Long followerId : followerIds) {
+            if(random.nextInt(Constants.TIMELINE_TRIM_INTERVAL) == 0) {
+                this.trim(followerId);
+            }
+        }
+    }
+
+    /**
+     * Rebuild a user's timeline from the topics they currently follow. Used
+     * after following or unfollowing a topic. The new entries are written
+     * before the old ones are deleted, so the timeline is never left empty,
+     * even if the rebuild fails part way.
+     *
+     * @param user the user to rebuild the timeline of
+     */
+    public void rebuild(UserModel user) {
+        List<Long> topicIds = new ArrayList<Long>();
+        for(TopicModel topic : getFollowedTopics(user)) {
+            if(!isLargeTopic(topic)) {
+                topicIds.add(topic.getId());
+            }
+        }
+        UpdateModel updateModel = new UpdateModel();
+        List<TimelineModel> entries = new ArrayList<TimelineModel>();
+        Set<String> keys = new HashSet<String>();
+        for(UpdateModel update : updateModel.findNewestByTopics(topicIds,
+                Constants.TIMELINE_LENGTH, 0)) {
+            TimelineModel entry = new TimelineModel(user.getId(), update);
+            entries.add(entry);
+            keys.add(entry.id);
+        }
+        insertAll(TimelineModel.class, entries);
+        List<String> replacedKeys = new ArrayList<String>();
+        for(TimelineModel entry : all().filter("userId", user.getId())
+                .fetchKeys()) {
+            if(!keys.contains(entry.id)) {
+                replacedKeys.add(entry.id);
+            }
+        }
+        deleteByKeys(TimelineModel.class, replacedKeys);
+    }
+
+    /**
+     * Rebuild the timelines of all users. Used once to migrate data stored
+     * before timelines existed.
+     */
+    public void backfill() {
+        UserModel userModel = new UserModel();
+        int offset = 0;
+        List<UserModel> users;
+        do {
+            users = userModel.findAll(BACKFILL_BATCH_SIZE, offset);
+            for(UserModel user : users) {
+                this.rebuild(user);
+            }
+            offset += BACKFILL_BATCH_SIZE;
+        } while(users.size() == BACKFILL_BATCH_SIZE);
+    }
+
+    /**
+     * Fetches the newest updates among a given user's topics. Updates of large
+     * topics are merged in from the topics themselves. Pages past the end of
+     * the stored timeline are returned as null, so the caller can fall back
+     * to querying the topics directly. Only the updates on the page are
+     * loaded, by key.
+     *
+     * @param user the user who's timeline to read
+     * @param howMany how many updates to return
+     * @param offset the offset used for pagination
+     * @return List of the newest updates, or null if the page isn't covered
+     *      by the stored timeline
+     */
+    public List<UpdateModel> findNewest(UserModel user, int howMany,
+            int offset) {
+        if(offset + howMany > Constants.TIMELINE_LENGTH) {
+            return null;
+        }
+        UpdateModel updateModel = new UpdateModel();
+        List<Long> largeTopicIds = new ArrayList<Long>();
+        for(TopicModel topic : getFollowedTopics(user)) {
+            if(isLargeTopic(topic)) {
+                largeTopicIds.add(topic.getId());
+            }
+        }
+        Query<TimelineModel> timeline = all().filter("userId", user.getId())
+                .order("-created");
+        if(largeTopicIds.isEmpty()) {
+            List<Long> updateIds = new ArrayList<Long>();
+            for(TimelineModel entry : timeline.fetch(howMany, offset)) {
+                updateIds.add(entry.updateId);
+            }
+            return updateModel.findByIds(updateIds);
+        }
+        // merging needs every entry up to the end of the page, but only the
+        // entries themselves, which are small
+        List<TimelineModel> entries = timeline.fetch(offset + howMany);
+        Map<Long,UpdateModel> updates = new HashMap<Long,UpdateModel>();
+        for(Long topicId : largeTopicIds) {
+            for(UpdateModel update : updateModel.findNewestByTopics(
+                    Collections.singletonList(topicId), offset + howMany, 0)) {
+                entries.add(new TimelineModel(user.getId(), update));
+                updates.put(update.getId(), update);
+            }
+        }
+        Collections.sort(entries, new Comparator<TimelineModel>() {
+            public int compare(TimelineModel e1, TimelineModel e2) {
+                return e2.created.compareTo(e1.created);
+            }
+        });
+        int finalIndex = Math.min(offset + howMany, entries.size());
+        if(offset >= finalIndex) {
+            return new ArrayList<UpdateModel>();
+        }
+        List<Long> pageIds = new ArrayList<Long>();
+        List<Long> unloadedIds = new ArrayList<Long>();
+        for(TimelineModel entry : entries.subList(offset, finalIndex)) {
+            pageIds.add(entry.updateId);
+            if(!updates.containsKey(entry.updateId)) {
+                unloadedIds.add(entry.updateId);
+            }
+        }
+        for(UpdateModel update : updateModel.findByIds(unloadedIds)) {
+            updates.put(update.getId(), update);
+        }
+        List<UpdateModel> page = new ArrayList<UpdateModel>();
+        for(Long updateId : pageIds) {
+            if(updates.containsKey(updateId)) {
+                page.add(updates.get(updateId));
+            }
+        }
+        return page;
+    }
+
+    /**
+     * Fetch the updates nearest to a cursor in a user's timeline, for building
+     * a page. Updates of large topics are merged in from the topics
+     * themselves. Pages are read from the timeline in both directions, and
+     * updates are only read from the user's other topics directly when the
+     * timeline runs out: paging forward past its oldest entry, or backward
+     * from a position older than all of it.
+     *
+     * @param user the user who's timeline to read
+     * @param cursor the cursor of the page, or null for the first page
+     * @param limit how many updates are needed in the cursor's direction
+     * @return the updates nearest to the cursor
+     */
+    public List<UpdateModel> findNewestCandidates(UserModel user,
+            PageCursor cursor, int limit) {
+        UpdateModel updateModel = new UpdateModel();
+        List<Long> updateIds = new ArrayList<Long>();
+        for(TimelineModel entry : fetchNewestCandidates(
+                all().filter("userId", user.getId()), cursor, limit)) {
+            updateIds.add(entry.updateId);
+        }
+        Map<Long,UpdateModel> updates = new LinkedHashMap<Long,UpdateModel>();
+        for(UpdateModel update : updateModel.findByIds(updateIds)) {
+            updates.put(update.getId(), update);
+        }
+
+        List<Long> smallTopicIds = new ArrayList<Long>();
+        for(TopicModel topic : getFollowedTopics(user)) {
+            if(isLargeTopic(topic)) {
+                for(UpdateModel update : updateModel.findNewestCandidates(
+                        Collections.singletonList(topic.getId()), cursor,
+                        limit)) {
+                    updates.put(update.getId(), update);
+                }
+            }
+            else {
+                smallTopicIds.add(topic.getId());
+            }
+        }
+        boolean ranOut;
+        if(cursor != null && cursor.isBackward()) {
+            // the timeline holds every update newer than its oldest entry
+            ranOut = this.isOlderThanTimeline(user, cursor);
+        }
+        else {
+            ranOut = updateIds.size() < limit;
+        }
+        if(ranOut) {
+            for(UpdateModel update : updateModel.findNewestCandidates(
+                    smallTopicIds, cursor, limit)) {
+                updates.put(update.getId(), update);
+            }
+        }
+        return new ArrayList<UpdateModel>(updates.values());
+    }
+
+    /**
+     * Delete up to batchSize entries of an update from all timelines, fetching
+     * only their keys and deleting them in a single datastore call.
+     *
+     * @param theUpdateId the ID of the update to delete entries of
+     * @param batchSize the most entries to delete
+     * @return the number of entries deleted, less than batchSize once no
+     *      timeline has the update left
+     */
+    public int deleteBatchByUpdate(Long theUpdateId, int batchSize) {
+        List<String> keys = new ArrayList<String>();
+        for(TimelineModel entry : all().filter("updateId", theUpdateId)
+                .fetchKeys(batchSize)) {
+            keys.add(entry.id);
+        }
+        return deleteByKeys(TimelineModel.class, keys);
+    }
+
+    /**
+     * Checks if a cursor's position is older than every entry of a user's
+     * timeline, by looking for the key of one entry at or before it.
+     *
+     * @param user the user who's timeline to check
+     * @param cursor the cursor
+     * @return true if no entry is as old as the cursor's position
+     */
+    private boolean isOlderThanTimeline(UserModel user, PageCursor cursor) {
+        return all().filter("userId", user.getId())
+                .filter("created<=", new Date(cursor.getCreated()))
+                .fetchKeys(1).isEmpty();
+    }
+
+    /**
+     * Delete the oldest entries of a user's timeline past its maximum length,
+     * fetching only their keys and deleting them in a single datastore call.
+     *
+     * @param theUserId the user ID of the owner of the timeline
+     */
+    private void trim(Long theUserId) {
+        List<String> keys = new ArrayList<String>();
+        for(TimelineModel entry : all().filter("userId", theUserId)
+                .order("-created").fetchKeys(Constants.TIMELINE_LENGTH,
+                Constants.TIMELINE_LENGTH)) {
+            keys.add(entry.id);
+        }
+        deleteByKeys(TimelineModel.class, keys);
+    }
+
+    /**
+     * Returns the topics a user follows, loaded in a single query.
+     *
+     * @param user the user to get the followed topics of
+     * @return the topics the user follows
+     */
+    private static Collection<TopicModel> getFollowedTopics(UserModel user) {
+        List<Long> topicIds = new UserTopicModel().getTopicIdsByUser(user);
+        return new TopicModel().findByIds(topicIds).values();
+    }
+
+    /**
+     * Checks if a topic has too many followers to write its updates to their
+     * timelines.
+     *
+     * @param topic the topic to check
+     * @return true if the topic is too large to fan out, otherwise false
+     */
+    private static boolean isLargeTopic(TopicModel topic) {
+        return topic.getFollowerCount() > Constants.TIMELINE_FANOUT_LIMIT;
+    }
+
+    /**
+     * Returns a query object representing all timeline entries.
+     *
+     * @return a query object representing all timeline entries
+     */
+    private Query<TimelineModel> all() {
+        return query(TimelineModel.class);
+    }
+}
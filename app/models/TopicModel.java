@@ -11,16 +11,21 @@ import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import play.i18n.Messages;
 import siena.Id;
-import siena.Model;
 import siena.Query;
 import utilities.Constants;
+import utilities.DataVersions;
+import utilities.LruCache;
+import utilities.Page;
+import utilities.PageCursor;
+import utilities.RequestMetrics;
+import utilities.TopicIndex;
 import utilities.ValidationException;
 import utilities.Validator;
 
@@ -41,6 +46,54 @@ public class TopicModel extends BaseModel{
     /** Date topic is added to database */
     private Date created;
 
+    /** the number of users following the topic */
+    private Integer followers;
+
+    /** topic IDs by name, shared by all requests */
+    private static final LruCache<String,Long> idsByName =
+            new LruCache<String,Long>(Constants.TOPIC_CACHE_SIZE);
+
+    /**
+     * topics by ID, shared by all requests. Each request gets its own copy of
+     * a cached topic, and cached topics expire so follower counts changed on
+     * other instances are read again.
+     */
+    private static final LruCache<Long,TopicModel> topicsById =
+            new LruCache<Long,TopicModel>(Constants.TOPIC_CACHE_SIZE,
+                    Constants.TOPIC_CACHE_TTL);
+
+    static {
+        RequestMetrics.registerCache("topic_ids_by_name", idsByName);
+        RequestMetrics.registerCache("topics_by_id", topicsById);
+    }
+
+    /** names of all topics for searching, shared by all requests */
+    private static final TopicIndex searchIndex =
+            new TopicIndex(Constants.SEARCH_SUGGESTIONS);
+
+    /** whether or not the search index has been loaded since startup */
+    private static volatile boolean searchIndexLoaded = false;
+
+    /** gives the position of topics ordered by newest first */
+    private static final Page.Keys<TopicModel> NEWEST_KEYS =
+            new Page.Keys<TopicModel>() {
+        public PageCursor cursorAt(TopicModel topic, int position,
+                boolean backward) {
+            return new PageCursor(0, topic.getDateCreated().getTime(),
+                    topic.getId(), position, backward);
+        }
+    };
+
+    /** gives the position of topics ordered by most followers first */
+    private static final Page.Keys<TopicModel> POPULAR_KEYS =
+            new Page.Keys<TopicModel>() {
+        public PageCursor cursorAt(TopicModel topic, int position,
+                boolean backward) {
+            return new PageCursor(topic.getFollowerCount(), 0, topic.getId(),
+                    position, backward);
+        }
+    };
+
     /**
      * Constructs a topic object.
      */
@@ -57,6 +110,7 @@ public class TopicModel extends BaseModel{
         this();
         this.name = topicName;
         this.created = new Date();
+        this.followers = 0;
     }
 
     /**
@@ -67,7 +121,42 @@ public class TopicModel extends BaseModel{
      *      exists
      */
     public TopicModel findById(Long topicId) {
-        return all().filter("id", topicId).get();
+        TopicModel topic = getCached(topicId);
+        if(topic == null) {
+            topic = this.getUnique(all(), "id", topicId);
+            if(topic != null) {
+                putCached(topic);
+            }
+        }
+        return topic;
+    }
+
+    /**
+     * Find the topics associated with the given unique topic IDs. Topics that
+     * aren't cached are loaded by key in a single datastore call.
+     *
+     * @param topicIds the unique IDs of the topics
+     * @return map of topic ID to topic, for the topics that exist
+     */
+    public Map<Long,TopicModel> findByIds(Collection<Long> topicIds) {
+        Map<Long,TopicModel> topics = new HashMap<Long,TopicModel>();
+        List<Long> uncachedIds = new ArrayList<Long>();
+        for(Long topicId : topicIds) {
+            TopicModel topic = getCached(topicId);
+            if(topic == null) {
+                uncachedIds.add(topicId);
+            }
+            else {
+                topics.put(topicId, topic);
+            }
+        }
+        if(!uncachedIds.isEmpty()) {
+            for(TopicModel topic : getByKeys(TopicModel.class, uncachedIds)) {
+                topics.put(topic.getId(), topic);
+                putCached(topic);
+            }
+        }
+        return topics;
     }
 
     /**
@@ -80,13 +169,25 @@ public class TopicModel extends BaseModel{
     public TopicModel findByName(String topicName) {
         // make sure to decode URL
         URLDecoder decoder = new URLDecoder();
+        String decodedName;
         try {
-            String decodedName = decoder.decode(topicName, "UTF-8");
-            return all().filter("name", decodedName).get();
+            decodedName = decoder.decode(topicName, "UTF-8");
         }
         catch(UnsupportedEncodingException e) {
             return null;
         }
+        Long topicId = idsByName.get(decodedName);
+        if(topicId != null) {
+            return this.findById(topicId);
+        }
+        // names that don't exist aren't cached, since another instance may
+        // create the topic at any time
+        TopicModel topic = this.getUnique(all(), "name", decodedName);
+        if(topic != null) {
+            idsByName.put(decodedName, topic.getId());
+            putCached(topic);
+        }
+        return topic;
     }
 
     /**
@@ -120,9 +221,15 @@ public class TopicModel extends BaseModel{
         if(this.topicExists(topicName)) {
             throw new ValidationException(Messages.get("topic.exists"));
         }
-        // insert the new topic
+        // insert the new topic, already counting its creator as a follower
         TopicModel newTopic = new TopicModel(topicName);
+        newTopic.followers = 1;
         newTopic.insert();
+        idsByName.put(newTopic.getName(), newTopic.getId());
+        putCached(newTopic);
+        searchIndex.put(newTopic.getId(), newTopic.getName(),
+                newTopic.getFollowerCount());
+        DataVersions.touch(DataVersions.TOPICS);
 
         // make user follow that topic
         UserTopicModel userTopic = new UserTopicModel(creator.getId(),
@@ -136,13 +243,132 @@ public class TopicModel extends BaseModel{
      * @return the number of followers
      */
     public int getFollowerCount() {
+        if(this.followers == null) {
+            return 0;
+        }
+        return this.followers;
+    }
+
+    /**
+     * Make a user follow or stop following this topic, and add to or subtract
+     * from the stored number of followers to match. The user's UserTopic and
+     * the stored topic are read and written in a single transaction, so
+     * clicks made at the same time by other requests or instances are each
+     * counted once, and a click that changes nothing isn't counted at all.
+     *
+     * @param userId the ID of the user
+     * @param follow true to follow the topic, false to stop following it
+     * @return true if the user's following changed, or false if the user
+     *      already was in that state or the topic no longer exists
+     */
+    boolean setFollowedBy(final Long userId, final boolean follow) {
+        final Long topicId = this.getId();
+        final TopicModel[] stored = new TopicModel[1];
+        inTransaction(TopicModel.class, new Runnable() {
+            public void run() {
+                stored[0] = null;
+                UserTopicModel userTopic =
+                        UserTopicModel.findByUserAndTopic(userId, topicId);
+                if((userTopic != null) == follow) {
+                    return;
+                }
+                TopicModel topic = new TopicModel();
+                topic.id = topicId;
+                topic = getByKey(topic);
+                if(topic == null) {
+                    return;
+                }
+                if(follow) {
+                    new UserTopicModel(userId, topicId).insert();
+                }
+                else {
+                    userTopic.delete();
+                }
+                topic.followers = topic.getFollowerCount()
+                        + (follow ? 1 : -1);
+                topic.update();
+                stored[0] = topic;
+            }
+        });
+        if(stored[0] == null) {
+            return false;
+        }
+        this.followers = stored[0].followers;
+        // read the count back from the datastore next time
+        topicsById.remove(topicId);
+        searchIndex.put(topicId, this.getName(), this.getFollowerCount());
+        DataVersions.touch(DataVersions.TOPICS);
+        return true;
+    }
+
+    /**
+     * Find topics whose names start with the query, or with something one typo
+     * away from it, ranked by the number of followers. Reads only the search
+     * index, never the datastore.
+     *
+     * @param query the start of a topic name
+     * @param howMany how many topics to return
+     * @return the matching topics, or an empty list if the search index
+     *      hasn't been loaded yet
+     */
+    public static List<TopicIndex.Match> suggest(String query, int howMany) {
+        if(!searchIndexLoaded) {
+            return new ArrayList<TopicIndex.Match>();
+        }
+        return searchIndex.search(query, howMany);
+    }
+
+    /**
+     * Add every topic to the search index, a page at a time. Topics created
+     * while loading are added by createTopic() as well, which is harmless.
+     */
+    public void loadSearchIndex() {
+        List<TopicModel> topics = all().order("id")
+                .fetch(Constants.SEARCH_LOAD_BATCH);
+        while(!topics.isEmpty()) {
+            for(TopicModel topic : topics) {
+                searchIndex.put(topic.getId(), topic.getName(),
+                        topic.getFollowerCount());
+            }
+            // continue after the last topic rather than skipping an offset
+            Long lastId = topics.get(topics.size() - 1).getId();
+            topics = all().filter("id>", lastId).order("id")
+                    .fetch(Constants.SEARCH_LOAD_BATCH);
+        }
+        searchIndexLoaded = true;
+    }
+
+    /**
+     * Returns the number of topic lookups answered by the topic cache since
+     * startup.
+     *
+     * @return the number of cache hits
+     */
+    public static long getCacheHits() {
+        return idsByName.getHits() + topicsById.getHits();
+    }
+
+    /**
+     * Returns the number of topic lookups that had to go to the datastore
+     * since startup.
+     *
+     * @return the number of cache misses
+     */
+    public static long getCacheMisses() {
+        return idsByName.getMisses() + topicsById.getMisses();
+    }
+
+    /**
+     * Recount the followers of every topic and store the counts. Used once to
+     * migrate topics stored before follower counts were stored.
+     */
+    public void backfillFollowerCounts() {
         UserTopicModel userTopicModel = new UserTopicModel();
-        List<UserModel> followers = userTopicModel.getUsersByTopic(this);
-        int count = 0;
-        if(followers != null) {
-            count = followers.size();
+        for(TopicModel topic : all().fetch()) {
+            topic.followers = userTopicModel.countUsersByTopic(topic);
+            topic.update();
         }
-        return count;
+        topicsById.clear();
     }
 
     /**
@@ -153,25 +379,60 @@ public class TopicModel extends BaseModel{
      * @return List of the popular topics with the given offset
      */
     public List<TopicModel> getPopular(int howMany, int offset) {
-        Map<TopicModel,Integer> topicsByFollowers =
-                new HashMap<TopicModel,Integer>();
-        // count vote value for each update
-        for(TopicModel topic : all().fetch()) {
-            topicsByFollowers.put(topic, topic.getFollowerCount());
-        }
-        topicsByFollowers = this.sortByValue(topicsByFollowers);
-        // convert Map keys to List (we don't need the values anymore)
-        List orderedUpdates =
-                new ArrayList<TopicModel>(topicsByFollowers.keySet());
-        Collections.reverse(orderedUpdates);
+        return all().order("-followers").fetch(howMany, offset);
+    }
 
-        // return the specified number of updates with offset unless it exceeds
-        // the total number of possible updates to return
-        int finalIndex = offset + howMany;
-        if(finalIndex > orderedUpdates.size()) {
-            finalIndex = orderedUpdates.size();
+    /**
+     * Get the page of popular topics a cursor leads to. Topics with the same
+     * number of followers as the cursor's topic are read first, ordered by ID,
+     * then the topics past that number, so later pages cost the same as the
+     * first page.
+     *
+     * @param cursor the cursor of the page, or null for the first page
+     * @param howMany how many topics to put on the page
+     * @return the page of popular topics
+     */
+    public Page<TopicModel> getPopularPage(PageCursor cursor, int howMany) {
+        List<TopicModel> candidates = new ArrayList<TopicModel>();
+        if(cursor == null) {
+            candidates.addAll(all().order("-followers").order("id")
+                    .fetch(howMany + 1));
+        }
+        else if(cursor.isBackward()) {
+            Integer atFollowers = (int) cursor.getScore();
+            candidates.addAll(all().filter("followers", atFollowers)
+                    .filter("id<", cursor.getId()).order("-id")
+                    .fetch(howMany + 1));
+            if(candidates.size() <= howMany) {
+                candidates.addAll(all().filter("followers>", atFollowers)
+                        .order("followers").order("-id")
+                        .fetch(howMany + 1 - candidates.size()));
+            }
+        }
+        else {
+            Integer atFollowers = (int) cursor.getScore();
+            candidates.addAll(all().filter("followers", atFollowers)
+                    .filter("id>", cursor.getId()).order("id")
+                    .fetch(howMany + 1));
+            if(candidates.size() <= howMany) {
+                candidates.addAll(all().filter("followers<", atFollowers)
+                        .order("-followers").order("id")
+                        .fetch(howMany + 1 - candidates.size()));
+            }
         }
-        return orderedUpdates.subList(offset, finalIndex);
+        return Page.of(candidates, cursor, howMany, POPULAR_KEYS);
+    }
+
+    /**
+     * Get the page of the most recently created topics a cursor leads to.
+     *
+     * @param cursor the cursor of the page, or null for the first page
+     * @param howMany how many topics to put on the page
+     * @return the page of the most recent topics
+     */
+    public Page<TopicModel> getNewestPage(PageCursor cursor, int howMany) {
+        return Page.of(fetchNewestCandidates(all(), cursor, howMany + 1),
+                cursor, howMany, NEWEST_KEYS);
     }
 
     /**
@@ -244,12 +505,48 @@ public class TopicModel extends BaseModel{
         return getName();
     }
 
+    /**
+     * Returns a copy of the cached topic with an ID, so changes made to it by
+     * one request are never seen by another.
+     *
+     * @param topicId the unique ID of the topic
+     * @return a copy of the cached topic, or null if it isn't cached
+     */
+    private static TopicModel getCached(Long topicId) {
+        TopicModel cached = topicsById.get(topicId);
+        return cached == null ? null : cached.copy();
+    }
+
+    /**
+     * Cache a copy of a topic, so later changes to the given topic aren't
+     * seen by other requests.
+     *
+     * @param topic the topic to cache
+     */
+    private static void putCached(TopicModel topic) {
+        topicsById.put(topic.getId(), topic.copy());
+    }
+
+    /**
+     * Returns a copy of this topic.
+     *
+     * @return a new topic with the same fields
+     */
+    private TopicModel copy() {
+        TopicModel topic = new TopicModel();
+        topic.id = this.id;
+        topic.name = this.name;
+        topic.created = this.created;
+        topic.followers = this.followers;
+        return topic;
+    }
+
     /**
      * Returns a query object representing all topics.
      *
      * @return a query object representing all topics
      */
     private Query<TopicModel> all() {
-        return Model.all(TopicModel.class);
+        return query(TopicModel.class);
     }
 }
\ No newline at end of file
@@ -8,17 +8,26 @@
 package models;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import jobs.TimelineFanOut;
+import jobs.UpdateCleanup;
 import play.i18n.Messages;
 import siena.Id;
 import siena.Index;
-import siena.Model;
 import siena.Query;
 import utilities.Constants;
+import utilities.DataVersions;
+import utilities.Leaderboard;
+import utilities.Page;
+import utilities.PageCursor;
 import utilities.ValidationException;
 import utilities.Validator;
 import utilities.SimpleHTMLParser;
@@ -31,6 +40,52 @@ import utilities.SimpleHTMLParser;
  */
 public class UpdateModel extends BaseModel{
 
+    /** leaderboard scope containing updates from all topics */
+    private static final String EVERYONE_SCOPE = "everyone";
+
+    /** updates ranked by votes among those posted in the past 24 hours */
+    private static volatile Leaderboard popularToday = new Leaderboard(24);
+
+    /** updates ranked by votes among those posted in the past 7 days */
+    private static volatile Leaderboard popularThisWeek =
+            new Leaderboard(7*24);
+
+    /** whether or not the leaderboards have been loaded since startup */
+    private static volatile boolean leaderboardsLoaded = false;
+
+    /** held while changing the leaderboards or swapping in rebuilt ones */
+    private static final Object leaderboardLock = new Object();
+
+    /** held while rebuilding the leaderboards, so one rebuild runs at once */
+    private static final Object rebuildLock = new Object();
+
+    /**
+     * changes made to the leaderboards while they're being rebuilt, to make
+     * again on the rebuilt ones, or null if no rebuild is running
+     */
+    private static List<LeaderboardChange> rebuildChanges = null;
+
+    /** number of updates read at a time when loading the leaderboards */
+    private static final int LEADERBOARD_LOAD_BATCH = 500;
+
+    /** gives the position of updates ordered by newest first */
+    private static final Page.Keys<UpdateModel> NEWEST_KEYS =
+            new Page.Keys<UpdateModel>() {
+        public PageCursor cursorAt(UpdateModel update, int position,
+                boolean backward) {
+            return new PageCursor(0, update.getDateCreated().getTime(),
+                    update.getId(), position, backward);
+        }
+    };
+
+    /** orders updates by newest first */
+    private static final Comparator<UpdateModel> NEWEST_FIRST =
+            new Comparator<UpdateModel>() {
+        public int compare(UpdateModel u1, UpdateModel u2) {
+            return u2.created.compareTo(u1.created);
+        }
+    };
+
     /** auto-incremented unique ID for the update */
     @Id
     private Long id;
@@ -98,35 +153,52 @@ public class UpdateModel extends BaseModel{
             // "" gets converted to null
             url = null;
         }
-        String entityString = SimpleHTMLParser.convertToEntities(content);
-        String finalContent = SimpleHTMLParser.closeAllTags(entityString);
-        TopicModel topicModel = new TopicModel();
-        if(topicModel.topicExists(topicName)) {
-            UpdateModel update = new UpdateModel(creator,
-                    topicModel.findByName(topicName), finalContent, url);
+        String finalContent = SimpleHTMLParser.sanitize(content);
+        TopicModel topic = new TopicModel().findByName(topicName);
+        if(topic != null) {
+            UpdateModel update = new UpdateModel(creator, topic, finalContent,
+                    url);
             update.insert();
+            update.addToLeaderboards(0);
             // insert a vote automatically for user--seems like a good default
             VoteModel voteModel = new VoteModel();
             voteModel.createVote(update, creator);
+            // add to followers' timelines without making the poster wait
+            new TimelineFanOut(update.getId()).now();
+            update.touchVersions();
         }
     }
 
     /**
      * Remove an update with the given ID and creator if such an update exists.
-     * Also remove all votes associated with the given update.
+     * The update is deleted right away, and its votes, vote counter and
+     * timeline entries are deleted in the background by UpdateCleanup, so
+     * removing a popular update takes no longer than removing any other.
      *
      * @param updateId the ID of the update to remove
      * @param creator the user who created the update
      */
     public void removeUpdate(Long updateId, UserModel creator) {
         UpdateModel update = this.findById(updateId);
-        if(update != null && update.getUserId() == creator.getId()) {
-            VoteModel voteModel = new VoteModel();
-            voteModel.deleteByUpdate(update);
+        if(update != null && update.getUserId().equals(creator.getId())) {
+            update.removeFromLeaderboards();
+            // marked first, so the cleanup is resumed if anything below fails
+            new RemovedUpdateModel(update.getId()).insert();
             update.delete();
+            new UpdateCleanup().now();
+            update.touchVersions();
         }
     }
 
+    /**
+     * Record that this update or its votes were written, so pages showing it
+     * are rebuilt.
+     */
+    public void touchVersions() {
+        DataVersions.touch(DataVersions.UPDATES);
+        DataVersions.touch(DataVersions.topic(this.topicId));
+    }
+
     /**
      * Find a update associated with the given unique topic ID.
      *
@@ -135,11 +207,38 @@ public class UpdateModel extends BaseModel{
      *      exists
      */
     public UpdateModel findById(Long updateId) {
-        return all().filter("id", updateId).get();
+        return this.getUnique(all(), "id", updateId);
+    }
+
+    /**
+     * Find the updates associated with the given unique update IDs, loaded by
+     * key in a single datastore call.
+     *
+     * @param updateIds the unique IDs of the updates
+     * @return the updates that exist, in the same order as their IDs
+     */
+    public List<UpdateModel> findByIds(List<Long> updateIds) {
+        List<UpdateModel> ordered = new ArrayList<UpdateModel>();
+        if(updateIds.isEmpty()) {
+            return ordered;
+        }
+        Map<Long,UpdateModel> updatesById = new HashMap<Long,UpdateModel>();
+        for(UpdateModel update : getByKeys(UpdateModel.class, updateIds)) {
+            updatesById.put(update.getId(), update);
+        }
+        for(Long updateId : updateIds) {
+            UpdateModel update = updatesById.get(updateId);
+            if(update != null) {
+                ordered.add(update);
+            }
+        }
+        return ordered;
     }
 
     /**
      * Return a list of the newest updates associated with the given topic.
+     * Topics are queried MAX_IN_VALUES at a time, the most an IN filter may
+     * list, and the newest updates of each query are merged by date.
      *
      * @param topicIds List of topic IDs to find newest updates of
      * @param howMany how many updates to return
@@ -151,8 +250,25 @@ public class UpdateModel extends BaseModel{
         if(topicIds.isEmpty()) {
             return new ArrayList<UpdateModel>();
         }
-        return all().filter("topicId IN", topicIds).order("-created")
-                .fetch(howMany, offset);
+        if(topicIds.size() <= Constants.MAX_IN_VALUES) {
+            return all().filter("topicId IN", topicIds).order("-created")
+                    .fetch(howMany, offset);
+        }
+        // any update on the page is among the first offset + howMany of its
+        // own batch of topics
+        List<UpdateModel> newest = new ArrayList<UpdateModel>();
+        for(int i = 0; i < topicIds.size(); i += Constants.MAX_IN_VALUES) {
+            List<Long> batch = topicIds.subList(i, Math.min(topicIds.size(),
+                    i + Constants.MAX_IN_VALUES));
+            newest.addAll(all().filter("topicId IN", batch).order("-created")
+                    .fetch(offset + howMany));
+        }
+        Collections.sort(newest, NEWEST_FIRST);
+        int finalIndex = Math.min(offset + howMany, newest.size());
+        if(offset >= finalIndex) {
+            return new ArrayList<UpdateModel>();
+        }
+        return new ArrayList<UpdateModel>(newest.subList(offset, finalIndex));
     }
 
     /**
@@ -167,7 +283,9 @@ public class UpdateModel extends BaseModel{
     }
 
     /**
-     * Fetches the most recent updates among a given user's topics.
+     * Fetches the most recent updates among a given user's topics. These are
+     * read from the user's timeline, unless the page is past the end of the
+     * stored timeline.
      *
      * @param user the user who's topics to include
      * @param howMany how many updates to return
@@ -176,6 +294,12 @@ public class UpdateModel extends BaseModel{
      */
     public List<UpdateModel> findNewestByUser(UserModel user, int howMany,
             int offset) {
+        TimelineModel timelineModel = new TimelineModel();
+        List<UpdateModel> updates = timelineModel.findNewest(user, howMany,
+                offset);
+        if(updates != null) {
+            return updates;
+        }
         UserTopicModel userTopicModel = new UserTopicModel();
         List<Long> userTopicIds = userTopicModel.getTopicIdsByUser(user);
         return this.findNewestByTopics(userTopicIds, howMany, offset);
@@ -212,24 +336,21 @@ public class UpdateModel extends BaseModel{
      * Fetches the most popular updates among a given user's topics.
      *
      * @param user the user who's topics to include
-     * @param afterDate the date after which to include updates from
+     * @param order either "popular24h" or "popular7d"
      * @param howMany how many updates to return
      * @param offset the offset used for pagination
      * @return List of the most recent updates in this user's topics
      */
-    public List<UpdateModel> findPopularByUser(UserModel user, Date afterDate,
+    public List<UpdateModel> findPopularByUser(UserModel user, String order,
             int howMany, int offset) {
         UserTopicModel userTopicModel = new UserTopicModel();
         List<Long> userTopicIds = userTopicModel.getTopicIdsByUser(user);
-        return this.findPopular(userTopicIds, afterDate, howMany, offset);
+        return this.findPopular(userTopicIds, order, howMany, offset);
     }
 
     /**
      * Get updates for the given user, order and offset.
      *
-     * Note: Date code adapted from code by Bauke Scholtz:
-     * http://stackoverflow.com/questions/4348525/get-date-as-of-4-hours-ago
-     *
      * @param topic the topic to get updates of. If null, ignore.
      * @param user the user to get updates of. If null, ignore.
      * @param order how to order updates
@@ -256,65 +377,174 @@ public class UpdateModel extends BaseModel{
             }
         }
         // order by popularity
-        Date date;
-        if("popular24h".equals(order)){
-            date = new Date(System.currentTimeMillis() - (24*60*60*1000));
-        }
-        else {
-            date = new Date(System.currentTimeMillis() - (7*24*60*60*1000));
-        }
         if(topic != null) {
-            return this.findPopular(topicIds, date, Constants.UPDATES_PER_PAGE,
+            return this.findPopular(topicIds, order, Constants.UPDATES_PER_PAGE,
                     offset);
         }
         else if(user != null) {
-            return this.findPopularByUser(user, date,Constants.UPDATES_PER_PAGE,
-                    offset);
+            return this.findPopularByUser(user, order,
+                    Constants.UPDATES_PER_PAGE, offset);
         }
         else {
-            return this.findPopular(null, date, Constants.UPDATES_PER_PAGE,
+            return this.findPopular(null, order, Constants.UPDATES_PER_PAGE,
                     offset);
         }
     }
 
     /**
-     * Return a list of the popular updates with given filters applied.
+     * Return a list of the popular updates with given filters applied. Updates
+     * are read from the in-memory leaderboards, so only the updates on the
+     * requested page are fetched from the datastore. Until the leaderboards
+     * are loaded after startup, the newest updates are returned instead.
      *
      * @param topicIds List of the IDs of the topic to find popular updates of.
      *      If this list is null, find popular updates among all topics.
-     * @param afterDate the date after which to include topics.
+     * @param order either "popular24h" for updates posted in the past day, or
+     *      otherwise updates posted in the past week
      * @param howMany how many updates to return
      * @param offset the offset used for pagination
      * @return the popular updates associated with the given topic IDs
      */
-    public List<UpdateModel> findPopular(List<Long> topicIds, Date afterDate,
+    public List<UpdateModel> findPopular(List<Long> topicIds, String order,
             int howMany, int offset) {
-        List<UpdateModel> updates;
-        if(topicIds != null) {
-            updates = this.findAfterByTopics(afterDate, topicIds);
+        if(!leaderboardsLoaded) {
+            return topicIds == null ? this.findNewest(howMany, offset)
+                    : this.findNewestByTopics(topicIds, howMany, offset);
         }
-        else {
-            updates = this.findAfter(afterDate);
+        return this.findByIds(getLeaderboard(order).top(
+                getLeaderboardScopes(topicIds), howMany, offset));
+    }
+
+    /**
+     * Get the page of updates a cursor leads to for the given user, topic and
+     * order. Only the updates next to the cursor are read, so later pages
+     * cost the same as the first page. Until the leaderboards are loaded
+     * after startup, popular orders show the newest updates instead.
+     *
+     * @param user the user to get updates of. If null, ignore.
+     * @param topic the topic to get updates of. If null, ignore.
+     * @param order how to order updates
+     * @param cursor the cursor of the page, or null for the first page
+     * @return the page of updates the cursor leads to
+     */
+    public Page<UpdateModel> getUpdatesPage(UserModel user, TopicModel topic,
+            String order, PageCursor cursor) {
+        int howMany = Constants.UPDATES_PER_PAGE;
+        List<Long> topicIds = null;
+        if(topic != null) {
+            topicIds = Collections.singletonList(topic.getId());
+        }
+        else if(user != null) {
+            topicIds = new UserTopicModel().getTopicIdsByUser(user);
+        }
+        if("recent".equals(order) || !leaderboardsLoaded) {
+            List<UpdateModel> candidates;
+            if(topic == null && user != null) {
+                candidates = new TimelineModel().findNewestCandidates(user,
+                        cursor, howMany + 1);
+            }
+            else {
+                candidates = this.findNewestCandidates(topicIds, cursor,
+                        howMany + 1);
+            }
+            return Page.of(candidates, cursor, howMany, NEWEST_KEYS);
         }
-        Map<UpdateModel,Integer> updatesByVotes =
-                new HashMap<UpdateModel,Integer>();
-        // count vote value for each update
-        for(UpdateModel update: updates) {
-            updatesByVotes.put(update, update.getVoteCount());
+        Page<Long> page = getLeaderboard(order).page(
+                getLeaderboardScopes(topicIds), cursor, howMany);
+        return page.withItems(this.findByIds(page.getItems()));
+    }
+
+    /**
+     * Fetch the updates nearest to a cursor in the list of newest updates of
+     * the given topics, for building a page. Topics are queried MAX_IN_VALUES
+     * at a time, the most an IN filter may list, so the candidates are in no
+     * particular order.
+     *
+     * @param topicIds the IDs of the topics to include. If null, include all
+     *      topics.
+     * @param cursor the cursor of the page, or null for the first page
+     * @param limit how many updates are needed in the cursor's direction
+     * @return the updates nearest to the cursor
+     */
+    public List<UpdateModel> findNewestCandidates(List<Long> topicIds,
+            PageCursor cursor, int limit) {
+        if(topicIds == null) {
+            return fetchNewestCandidates(all(), cursor, limit);
         }
-        updatesByVotes = this.sortByValue(updatesByVotes);
-        // convert Map keys to List (we don't need the values anymore)
-        List orderedUpdates =
-                new ArrayList<UpdateModel>(updatesByVotes.keySet());
-        Collections.reverse(orderedUpdates);
-        
-        // return the specified number of updates with offset unless it exceeds
-        // the total number of possible updates to return
-        int finalIndex = offset + howMany;
-        if(finalIndex > orderedUpdates.size()) {
-            finalIndex = orderedUpdates.size();
+        List<UpdateModel> candidates = new ArrayList<UpdateModel>();
+        for(int i = 0; i < topicIds.size(); i += Constants.MAX_IN_VALUES) {
+            List<Long> batch = topicIds.subList(i, Math.min(topicIds.size(),
+                    i + Constants.MAX_IN_VALUES));
+            candidates.addAll(fetchNewestCandidates(
+                    all().filter("topicId IN", batch), cursor, limit));
         }
-        return orderedUpdates.subList(offset, finalIndex);
+        return candidates;
+    }
+
+    /**
+     * Build the rows for displaying a page of updates. Vote counts, the
+     * viewer's votes, topic names and poster names are each loaded for the
+     * whole page at once, so the number of queries doesn't depend on the
+     * number of updates.
+     *
+     * @param updates the updates to display
+     * @param viewer the user viewing the updates, or null if not logged in
+     * @return the rows to display, in the same order as the updates
+     */
+    public List<UpdateRow> getRows(List<UpdateModel> updates,
+            UserModel viewer) {
+        List<Long> updateIds = new ArrayList<Long>();
+        Set<Long> topicIds = new HashSet<Long>();
+        Set<Long> userIds = new HashSet<Long>();
+        for(UpdateModel update : updates) {
+            updateIds.add(update.getId());
+            topicIds.add(update.getParentTopicId());
+            userIds.add(update.getUserId());
+        }
+        Map<Long,Integer> voteCounts =
+                new VoteCounterModel().getCounts(updateIds);
+        Set<Long> votedIds =
+                new VoteModel().getVotedUpdateIds(viewer, updateIds);
+        Map<Long,TopicModel> topics = new TopicModel().findByIds(topicIds);
+        Map<Long,UserModel> posters = new UserModel().findByIds(userIds);
+
+        List<UpdateRow> rows = new ArrayList<UpdateRow>();
+        VoteQueue voteQueue = VoteQueue.get();
+        for(UpdateModel update : updates) {
+            TopicModel topic = topics.get(update.getParentTopicId());
+            UserModel poster = posters.get(update.getUserId());
+            // show votes that are acknowledged but not written yet
+            boolean votedOn = votedIds.contains(update.getId());
+            if(viewer != null) {
+                Boolean queued = voteQueue.getQueuedVote(viewer.getId(),
+                        update.getId());
+                if(queued != null) {
+                    votedOn = queued;
+                }
+            }
+            int voteCount = voteCounts.get(update.getId())
+                    + voteQueue.getQueuedDelta(update.getId());
+            rows.add(new UpdateRow(update, voteCount, votedOn,
+                    topic == null ? null : topic.getName(),
+                    poster == null ? null : poster.getName()));
+        }
+        return rows;
+    }
+
+    /**
+     * Update the leaderboards after a vote on this update is added or removed.
+     *
+     * @param delta 1 if a vote was added, or -1 if a vote was removed
+     */
+    public void onVote(final int delta) {
+        final List<String> scopes = this.getLeaderboardScopes();
+        final Long updateId = this.getId();
+        changeLeaderboards(new LeaderboardChange() {
+            public void apply(Leaderboard today, Leaderboard thisWeek) {
+                today.increment(scopes, updateId, delta);
+                thisWeek.increment(scopes, updateId, delta);
+            }
+        });
     }
 
     /**
@@ -446,12 +676,205 @@ public class UpdateModel extends BaseModel{
         return getContent();
     }
 
+    /**
+     * Add this update to the leaderboards with the given vote count.
+     *
+     * @param voteCount the vote count of this update
+     */
+    private void addToLeaderboards(final int voteCount) {
+        final List<String> scopes = this.getLeaderboardScopes();
+        final Long updateId = this.getId();
+        final long created = this.getDateCreated().getTime();
+        changeLeaderboards(new LeaderboardChange() {
+            public void apply(Leaderboard today, Leaderboard thisWeek) {
+                today.put(scopes, updateId, created, voteCount);
+                thisWeek.put(scopes, updateId, created, voteCount);
+            }
+        });
+    }
+
+    /**
+     * Remove this update from the leaderboards.
+     */
+    private void removeFromLeaderboards() {
+        final List<String> scopes = this.getLeaderboardScopes();
+        final Long updateId = this.getId();
+        changeLeaderboards(new LeaderboardChange() {
+            public void apply(Leaderboard today, Leaderboard thisWeek) {
+                today.remove(scopes, updateId);
+                thisWeek.remove(scopes, updateId);
+            }
+        });
+    }
+
+    /**
+     * Make a change to the leaderboards. While they're being rebuilt, the
+     * change is also kept to be made again on the rebuilt leaderboards, so
+     * it isn't lost when they're swapped in.
+     *
+     * @param change the change to make
+     */
+    private static void changeLeaderboards(LeaderboardChange change) {
+        synchronized(leaderboardLock) {
+            change.apply(popularToday, popularThisWeek);
+            if(rebuildChanges != null) {
+                rebuildChanges.add(change);
+            }
+        }
+    }
+
+    /**
+     * Returns the leaderboard scopes this update is ranked in: everyone's
+     * updates and the updates of its topic.
+     *
+     * @return the leaderboard scopes this update is ranked in
+     */
+    private List<String> getLeaderboardScopes() {
+        return Arrays.asList(EVERYONE_SCOPE,
+                getTopicScope(this.getParentTopicId()));
+    }
+
+    /**
+     * Returns the leaderboard for a popular order.
+     *
+     * @param order either "popular24h" for updates posted in the past day, or
+     *      otherwise updates posted in the past week
+     * @return the leaderboard for the order
+     */
+    private static Leaderboard getLeaderboard(String order) {
+        if("popular24h".equals(order)) {
+            return popularToday;
+        }
+        return popularThisWeek;
+    }
+
+    /**
+     * Returns the leaderboard scopes of the given topics.
+     *
+     * @param topicIds the IDs of the topics. If null, the scope of all topics.
+     * @return the leaderboard scopes of the topics
+     */
+    private static List<String> getLeaderboardScopes(List<Long> topicIds) {
+        if(topicIds == null) {
+            return Collections.singletonList(EVERYONE_SCOPE);
+        }
+        List<String> scopes = new ArrayList<String>();
+        for(Long topicId : topicIds) {
+            scopes.add(getTopicScope(topicId));
+        }
+        return scopes;
+    }
+
+    /**
+     * Returns the leaderboard scope of a topic.
+     *
+     * @param topicId the ID of the topic
+     * @return the leaderboard scope of the topic
+     */
+    private static String getTopicScope(Long topicId) {
+        return "topic:" + topicId;
+    }
+
+    /**
+     * Rebuild the leaderboards from the updates of the past week and their
+     * stored vote counts, then swap them in. Each instance keeps its own
+     * leaderboards, so the LoadLeaderboards job calls this in the background
+     * at startup and every few minutes after, which keeps every instance
+     * within that long of the votes cast on the others. Vote counts are read
+     * for a batch of updates at a time rather than one query per update.
+     *
+     * Votes and updates added to the live leaderboards during the rebuild
+     * are made again on the rebuilt ones just before the swap, so none are
+     * lost. A vote whose count was already read by the rebuild is then
+     * counted twice until the next rebuild.
+     */
+    public static void loadLeaderboards() {
+        synchronized(rebuildLock) {
+            synchronized(leaderboardLock) {
+                rebuildChanges = new ArrayList<LeaderboardChange>();
+            }
+            try {
+                rebuildLeaderboards();
+            }
+            finally {
+                synchronized(leaderboardLock) {
+                    rebuildChanges = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Build new leaderboards from the updates of the past week and their
+     * stored vote counts, make the changes kept during the rebuild on them,
+     * and swap them in.
+     */
+    private static void rebuildLeaderboards() {
+        Leaderboard today = new Leaderboard(24);
+        Leaderboard thisWeek = new Leaderboard(7*24);
+        UpdateModel updateModel = new UpdateModel();
+        VoteCounterModel counterModel = new VoteCounterModel();
+        Date after = new Date(System.currentTimeMillis()
+                - (7*24*60*60*1000L));
+        // updates created in the same millisecond as the last one read are
+        // read again, so the IDs already loaded are skipped
+        Set<Long> loaded = new HashSet<Long>();
+        while(true) {
+            List<UpdateModel> updates = updateModel.all()
+                    .filter("created>=", after).order("created")
+                    .fetch(LEADERBOARD_LOAD_BATCH);
+            List<UpdateModel> newUpdates = new ArrayList<UpdateModel>();
+            List<Long> newIds = new ArrayList<Long>();
+            for(UpdateModel update : updates) {
+                if(loaded.add(update.getId())) {
+                    newUpdates.add(update);
+                    newIds.add(update.getId());
+                }
+            }
+            if(newUpdates.isEmpty()) {
+                break;
+            }
+            Map<Long,Integer> counts = counterModel.getCounts(newIds);
+            for(UpdateModel update : newUpdates) {
+                long created = update.getDateCreated().getTime();
+                int count = counts.get(update.getId());
+                today.put(update.getLeaderboardScopes(), update.getId(),
+                        created, count);
+                thisWeek.put(update.getLeaderboardScopes(), update.getId(),
+                        created, count);
+            }
+            after = updates.get(updates.size() - 1).getDateCreated();
+        }
+        synchronized(leaderboardLock) {
+            for(LeaderboardChange change : rebuildChanges) {
+                change.apply(today, thisWeek);
+            }
+            popularToday = today;
+            popularThisWeek = thisWeek;
+        }
+        leaderboardsLoaded = true;
+    }
+
     /**
      * Returns a query object representing all updates.
      *
      * @return a query object representing all updates
      */
     private Query<UpdateModel> all() {
-        return Model.all(UpdateModel.class);
+        return query(UpdateModel.class);
+    }
+
+    /**
+     * A change to both popular leaderboards.
+     */
+    private interface LeaderboardChange {
+
+        /**
+         * Make the change.
+         *
+         * @param today the updates ranked among the past 24 hours
+         * @param thisWeek the updates ranked among the past 7 days
+         */
+        void apply(Leaderboard today, Leaderboard thisWeek);
     }
 }
\ No newline at end of file
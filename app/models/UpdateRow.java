@@ -0,0 +1,133 @@
+/*
+ * File: UpdateRow.java
+ * Name: Peter Graham
+ * Class: CS 461
+ * Project 1
+ * Date: May 4
+ */
+package models;
+
+import java.util.Date;
+
+/**
+ * An update along with everything needed to display it in a list of updates,
+ * so the view doesn't have to query the datastore for each update it shows.
+ *
+ * @author Peter Graham
+ */
+public class UpdateRow {
+
+    /** the update to display */
+    private final UpdateModel update;
+
+    /** the vote count of the update */
+    private final int voteCount;
+
+    /** whether or not the viewing user has voted on the update */
+    private final boolean votedOn;
+
+    /** the name of the topic the update was posted to */
+    private final String topicName;
+
+    /** the name of the user who posted the update */
+    private final String posterName;
+
+    /**
+     * Constructs a row and initializes fields.
+     *
+     * @param theUpdate the update to display
+     * @param theVoteCount the vote count of the update
+     * @param isVotedOn whether or not the viewing user voted on the update
+     * @param theTopicName the name of the topic of the update
+     * @param thePosterName the name of the user who posted the update
+     */
+    public UpdateRow(UpdateModel theUpdate, int theVoteCount,
+            boolean isVotedOn, String theTopicName, String thePosterName) {
+        this.update = theUpdate;
+        this.voteCount = theVoteCount;
+        this.votedOn = isVotedOn;
+        this.topicName = theTopicName;
+        this.posterName = thePosterName;
+    }
+
+    /**
+     * Returns the update to display.
+     *
+     * @return the update to display
+     */
+    public UpdateModel getUpdate() {
+        return this.update;
+    }
+
+    /**
+     * Returns unique ID of the update.
+     *
+     * @return the unique id of the update
+     */
+    public Long getId() {
+        return this.update.getId();
+    }
+
+    /**
+     * Returns the vote count of the update.
+     *
+     * @return the vote count of the update
+     */
+    public int getVoteCount() {
+        return this.voteCount;
+    }
+
+    /**
+     * Returns whether or not the viewing user has voted on the update.
+     *
+     * @return true if the viewing user voted on the update, otherwise false
+     */
+    public boolean isVotedOn() {
+        return this.votedOn;
+    }
+
+    /**
+     * Returns the name of the topic the update was posted to.
+     *
+     * @return the name of the topic the update was posted to
+     */
+    public String getParentTopicName() {
+        return this.topicName;
+    }
+
+    /**
+     * Returns the name of the user who posted the update.
+     *
+     * @return the name of the user who posted the update
+     */
+    public String getPosterName() {
+        return this.posterName;
+    }
+
+    /**
+     * Returns the ID of the user who posted the update.
+     *
+     * @return the ID of the user who posted the update
+     */
+    public Long getUserId() {
+        return this.update.getUserId();
+    }
+
+    /**
+     * Returns the date that the update was added to the database.
+     *
+     * @return the date that the update was added to the database
+     */
+    public Date getDateCreated() {
+        return this.update.getDateCreated();
+    }
+
+    /**
+     * Convenience method for seeing how long ago the update was posted.
+     *
+     * @return how long ago the update was posted
+     */
+    public String getHowLongAgo() {
+        return this.update.getHowLongAgo();
+    }
+}
@@ -7,14 +7,22 @@
  */
 package models;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import jobs.TimelineRebuild;
 import play.i18n.Messages;
 import play.libs.Codec;
 import siena.Id;
 import siena.Max;
-import siena.Model;
 import siena.Query;
 import utilities.Constants;
+import utilities.DataVersions;
+import utilities.LruCache;
+import utilities.RequestMetrics;
 import utilities.ValidationException;
 import utilities.Validator;
 
@@ -29,6 +37,19 @@ public class UserModel extends BaseModel{
     @Id
     private Long id;
 
+    /**
+     * users by ID, shared by all requests. Each request gets its own copy of
+     * a cached user, so a change half made by one request is never seen by
+     * another.
+     */
+    private static final LruCache<Long,UserModel> usersById =
+            new LruCache<Long,UserModel>(Constants.USER_CACHE_SIZE,
+                    Constants.USER_CACHE_TTL);
+
+    static {
+        RequestMetrics.registerCache("users_by_id", usersById);
+    }
+
     /** the user's email address */
     @Max(75)
     private String userEmail;
@@ -87,7 +108,7 @@ public class UserModel extends BaseModel{
      *      associated with that email address
      */
     public UserModel findByEmail(String email) {
-        return all().filter("userEmail", email).get();
+        return this.getUnique(all(), "userEmail", email);
     }
 
     /**
@@ -188,7 +209,66 @@ public class UserModel extends BaseModel{
      *      with that ID
      */
     public UserModel findById(Long id) {
-        return all().filter("id", id).get();
+        UserModel user = getCached(id);
+        if(user == null) {
+            user = this.getUnique(all(), "id", id);
+            if(user != null) {
+                putCached(user);
+            }
+        }
+        return user;
+    }
+
+    /**
+     * Update this user, and forget the cached copy of the user so the change
+     * is read back by the next request and pages showing it are rebuilt.
+     */
+    @Override
+    public void update() {
+        super.update();
+        usersById.remove(this.getId());
+        DataVersions.touch(DataVersions.user(this.getId()));
+    }
+
+    /**
+     * Fetches users in the order they were created, for going through all
+     * users a page at a time.
+     *
+     * @param howMany how many users to return
+     * @param offset the offset used for pagination
+     * @return List of users
+     */
+    public List<UserModel> findAll(int howMany, int offset) {
+        return all().order("created").fetch(howMany, offset);
+    }
+
+    /**
+     * Find the users associated with the given unique IDs. Users that aren't
+     * cached are loaded by key in a single datastore call, which unlike an IN
+     * query takes any number of IDs.
+     *
+     * @param ids the unique IDs of the users
+     * @return map of user ID to user, for the users that exist
+     */
+    public Map<Long,UserModel> findByIds(Collection<Long> ids) {
+        Map<Long,UserModel> users = new HashMap<Long,UserModel>();
+        List<Long> uncachedIds = new ArrayList<Long>();
+        for(Long userId : ids) {
+            UserModel user = getCached(userId);
+            if(user == null) {
+                uncachedIds.add(userId);
+            }
+            else {
+                users.put(userId, user);
+            }
+        }
+        if(!uncachedIds.isEmpty()) {
+            for(UserModel user : getByKeys(UserModel.class, uncachedIds)) {
+                users.put(user.getId(), user);
+                putCached(user);
+            }
+        }
+        return users;
     }
 
     /**
@@ -208,11 +288,8 @@ public class UserModel extends BaseModel{
      * @param topic the Topic to follow
      */
     public void followTopic(TopicModel topic) {
-        UserTopicModel userTopicModel = new UserTopicModel();
-        if(!userTopicModel.isFollowing(this, topic)) {
-            UserTopicModel userTopic = new UserTopicModel(this.getId(),
-                topic.getId());
-            userTopic.insert();
+        if(topic.setFollowedBy(this.getId(), true)) {
+            new TimelineRebuild(this.getId()).now();
         }
     }
 
@@ -222,8 +299,9 @@ public class UserModel extends BaseModel{
      * @param topic Topic to unfollow
      */
     public void unFollowTopic(TopicModel topic) {
-        UserTopicModel userTopic = new UserTopicModel();
-        userTopic.delete(this, topic);
+        if(topic.setFollowedBy(this.getId(), false)) {
+            new TimelineRebuild(this.getId()).now();
+        }
     }
     
     /**
@@ -321,12 +399,50 @@ public class UserModel extends BaseModel{
         this.bio = newBio;
     }
 
+    /**
+     * Returns a copy of the cached user with an ID, so changes made to it by
+     * one request are never seen by another.
+     *
+     * @param userId the unique ID of the user
+     * @return a copy of the cached user, or null if it isn't cached
+     */
+    private static UserModel getCached(Long userId) {
+        UserModel cached = usersById.get(userId);
+        return cached == null ? null : cached.copy();
+    }
+
+    /**
+     * Cache a copy of a user, so later changes to the given user aren't seen
+     * by other requests.
+     *
+     * @param user the user to cache
+     */
+    private static void putCached(UserModel user) {
+        usersById.put(user.getId(), user.copy());
+    }
+
+    /**
+     * Returns a copy of this user.
+     *
+     * @return a new user with the same fields
+     */
+    private UserModel copy() {
+        UserModel user = new UserModel();
+        user.id = this.id;
+        user.userEmail = this.userEmail;
+        user.passwordHash = this.passwordHash;
+        user.name = this.name;
+        user.bio = this.bio;
+        user.created = this.created;
+        return user;
+    }
+
     /**
      * Returns a query object representing all users.
      *
      * @return a query object representing all users
      */
     private Query<UserModel> all() {
-        return Model.all(UserModel.class);
+        return query(UserModel.class);
     }
 }
\ No newline at end of file
@@ -9,21 +9,33 @@ package models;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import siena.Generator;
 import siena.Id;
 import siena.Index;
-import siena.Model;
 import siena.Query;
+import siena.Table;
+import utilities.Constants;
+import utilities.DataVersions;
+import utilities.LruCache;
+import utilities.RequestMetrics;
 
 /**
- * Maps together the many-to-many relationship between users and topics.
+ * Maps together the many-to-many relationship between users and topics. A
+ * UserTopic's key is made from its user and topic, so a user can only follow
+ * a topic once, and checking for it is a get by key rather than a query.
  *
  * @author Peter Graham
  */
+@Table("UserTopic")
 public class UserTopicModel extends BaseModel{
 
-    /** auto-incremented unique ID for the UserTopic */
-    @Id
-    private Long id;
+    /** number of legacy UserTopics to migrate at a time */
+    private static final int MIGRATE_BATCH_SIZE = 100;
+
+    /** unique key of the UserTopic, in the form "userId:topicId" */
+    @Id(Generator.NONE)
+    private String id;
 
     /** user ID associated with this UserTopic */
     @Index("user_idx")
@@ -33,6 +45,15 @@ public class UserTopicModel extends BaseModel{
     @Index("topic_idx")
     private Long topicId;
 
+    /** the IDs of the topics followed by each user, shared by all requests */
+    private static final LruCache<Long,List<Long>> topicIdsByUser =
+            new LruCache<Long,List<Long>>(Constants.USER_CACHE_SIZE,
+                    Constants.USER_CACHE_TTL);
+
+    static {
+        RequestMetrics.registerCache("topic_ids_by_user", topicIdsByUser);
+    }
+
     /**
      * Constructs the UserTopic object.
      */
@@ -48,6 +69,7 @@ public class UserTopicModel extends BaseModel{
      */
     public UserTopicModel(Long theUserId, Long theTopicId) {
         this();
+        this.id = getKey(theUserId, theTopicId);
         this.userId = theUserId;
         this.topicId = theTopicId;
     }
@@ -59,15 +81,20 @@ public class UserTopicModel extends BaseModel{
      * @return list of the IDs of the topics followed
      */
     public List<Long> getTopicIdsByUser(UserModel user) {
-        List<UserTopicModel> userTopics = all()
-                .filter("userId",user.getId()).fetch();
-        List<Long> topicIds = new ArrayList<Long>();
-        if(userTopics != null) {
-            for(UserTopicModel userTopic : userTopics) {
-                topicIds.add(userTopic.getTopicId());
+        List<Long> topicIds = topicIdsByUser.get(user.getId());
+        if(topicIds == null) {
+            List<UserTopicModel> userTopics = all()
+                    .filter("userId",user.getId()).fetch();
+            topicIds = new ArrayList<Long>();
+            if(userTopics != null) {
+                for(UserTopicModel userTopic : userTopics) {
+                    topicIds.add(userTopic.getTopicId());
+                }
             }
+            topicIdsByUser.put(user.getId(), topicIds);
         }
-        return topicIds;
+        // callers get their own copy, so the cached list never changes
+        return new ArrayList<Long>(topicIds);
     }
 
     /**
@@ -77,14 +104,34 @@ public class UserTopicModel extends BaseModel{
      * @return list of the topics followed
      */
     public List<TopicModel> getTopicsByUser(UserModel user){
+        List<Long> topicIds = this.getTopicIdsByUser(user);
+        Map<Long,TopicModel> topicsById = new TopicModel().findByIds(topicIds);
         List<TopicModel> topics = new ArrayList<TopicModel>();
-        TopicModel topicObject = new TopicModel();
-        for(Long curTopicId : this.getTopicIdsByUser(user)) {
-            topics.add(topicObject.findById(curTopicId));
+        for(Long curTopicId : topicIds) {
+            TopicModel topic = topicsById.get(curTopicId);
+            if(topic != null) {
+                topics.add(topic);
+            }
         }
         return topics;
     }
 
+    /**
+     * Get a list of the IDs of the users that follow a given topic, without
+     * loading the users.
+     *
+     * @param topic the topic to get the IDs of the followers of
+     * @return list of the IDs of the users following the topic
+     */
+    public List<Long> getUserIdsByTopic(TopicModel topic) {
+        List<Long> userIds = new ArrayList<Long>();
+        for(UserTopicModel userTopic : all().filter("topicId", topic.getId())
+                .fetch()) {
+            userIds.add(userTopic.getUserId());
+        }
+        return userIds;
+    }
+
     /**
      * Get a list of the users that follow a given topic.
      *
@@ -106,18 +153,13 @@ public class UserTopicModel extends BaseModel{
     }
 
     /**
-     * Delete a UserTopic from the database, for when a user unfollows a topic.
+     * Count the users that follow a given topic, without loading the users.
      *
-     * @param user the user associated with the UserTopic to delete
-     * @param topic the topic associated with the UserTopic to delete
-     */
-    public void delete(UserModel user, TopicModel topic) {
-        UserTopicModel toDelete = all().filter("userId", user.getId())
-                .filter("topicId", topic.getId()).get();
-        if(toDelete != null) {
-            // user is following this topic, so delete
-            toDelete.delete();
-        }
+     * @param topic the topic to count the followers of
+     * @return the number of users following the topic
+     */
+    public int countUsersByTopic(TopicModel topic) {
+        return all().filter("topicId", topic.getId()).count();
     }
 
     /**
@@ -128,16 +170,83 @@ public class UserTopicModel extends BaseModel{
      * @return boolean whether or not the user is following the topic
      */
     public boolean isFollowing(UserModel user, TopicModel topic) {
-        return user != null && all().filter("userId", user.getId())
-                .filter("topicId", topic.getId()).get() != null;
+        return user != null
+                && findByUserAndTopic(user.getId(), topic.getId()) != null;
+    }
+
+    /**
+     * Find the UserTopic of a user and topic by its key.
+     *
+     * @param theUserId the ID of the user
+     * @param theTopicId the ID of the topic
+     * @return the UserTopic, or null if the user doesn't follow the topic
+     */
+    static UserTopicModel findByUserAndTopic(Long theUserId,
+            Long theTopicId) {
+        UserTopicModel userTopic = new UserTopicModel();
+        userTopic.id = getKey(theUserId, theTopicId);
+        return getByKey(userTopic);
+    }
+
+    /**
+     * Copy the UserTopics stored before UserTopics were keyed by user and
+     * topic into the new kind, a batch at a time, deleting each legacy
+     * UserTopic once it's copied. Duplicate legacy UserTopics become a single
+     * UserTopic, so follower counts should be backfilled again afterwards.
+     */
+    public void migrateLegacyUserTopics() {
+        List<LegacyUserTopicModel> batch =
+                query(LegacyUserTopicModel.class).fetch(MIGRATE_BATCH_SIZE);
+        while(!batch.isEmpty()) {
+            for(LegacyUserTopicModel legacy : batch) {
+                new UserTopicModel(legacy.getUserId(), legacy.getTopicId())
+                        .insert();
+                legacy.delete();
+            }
+            batch = query(LegacyUserTopicModel.class)
+                    .fetch(MIGRATE_BATCH_SIZE);
+        }
+    }
+
+    /**
+     * Returns the key of a user's UserTopic for a topic.
+     *
+     * @param theUserId the ID of the user
+     * @param theTopicId the ID of the topic
+     * @return the key of the UserTopic
+     */
+    private static String getKey(Long theUserId, Long theTopicId) {
+        return theUserId + ":" + theTopicId;
+    }
+
+    /**
+     * Insert this UserTopic, and forget the cached topics of its user and
+     * record that they changed.
+     */
+    @Override
+    public void insert() {
+        super.insert();
+        topicIdsByUser.remove(this.userId);
+        DataVersions.touch(DataVersions.user(this.userId));
+    }
+
+    /**
+     * Delete this UserTopic, and forget the cached topics of its user and
+     * record that they changed.
+     */
+    @Override
+    public void delete() {
+        super.delete();
+        topicIdsByUser.remove(this.userId);
+        DataVersions.touch(DataVersions.user(this.userId));
     }
 
     /**
-     * Returns unique ID of the UserTopic.
+     * Returns unique key of the UserTopic.
      *
-     * @return the unique id of the UserTopic
+     * @return the unique key of the UserTopic
      */
-    public Long getId() {
+    public String getId() {
         return this.id;
     }
 
@@ -165,6 +274,6 @@ public class UserTopicModel extends BaseModel{
      * @return a query object representing all UserTopics
      */
     private Query<UserTopicModel> all() {
-        return Model.all(UserTopicModel.class);
+        return query(UserTopicModel.class);
     }
 }
\ No newline at end of file
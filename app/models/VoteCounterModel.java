@@ -0,0 +1,223 @@
+/*
+ * File: VoteCounterModel.java
+ * Name: Peter Graham
+ * Class: CS 461
+ * Project 1
+ * Date: May 2
+ */
+package models;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import siena.Generator;
+import siena.Id;
+import siena.Index;
+import siena.Query;
+import utilities.Constants;
+
+/**
+ * Materialized vote count of an update, split into shards so that votes on a
+ * popular update don't all contend for the same row. The vote count of an
+ * update is the sum of the counts of its shards.
+ *
+ * @author Peter Graham
+ */
+public class VoteCounterModel extends BaseModel {
+
+    /** number of updates to rebuild counters of at a time when backfilling */
+    private static final int BACKFILL_BATCH_SIZE = 100;
+
+    /** used to pick a random shard to write to */
+    private static final Random random = new Random();
+
+    /** unique key of the shard, in the form "updateId-shardNumber" */
+    @Id(Generator.NONE)
+    private String id;
+
+    /** update ID associated with this counter shard */
+    @Index("update_idx")
+    private Long updateId;
+
+    /** the number of votes counted by this shard */
+    private int count;
+
+    /**
+     * Constructs a VoteCounter object.
+     */
+    public VoteCounterModel() {
+        super();
+    }
+
+    /**
+     * Constructs a counter shard and initializes fields.
+     *
+     * @param theUpdateId the ID of the update being counted
+     * @param shard the number of the shard
+     * @param initialCount the initial count of the shard
+     */
+    public VoteCounterModel(Long theUpdateId, int shard, int initialCount) {
+        this();
+        this.id = getShardKey(theUpdateId, shard);
+        this.updateId = theUpdateId;
+        this.count = initialCount;
+    }
+
+    /**
+     * Get the vote count of the update with the given ID. This reads at most
+     * the number of shards, no matter how many votes the update has.
+     *
+     * @param theUpdateId the ID of the update to get the vote count of
+     * @return the vote count of the update
+     */
+    public int getCount(Long theUpdateId) {
+        int total = 0;
+        for(VoteCounterModel shard : this.findByUpdate(theUpdateId)) {
+            total += shard.getCount();
+        }
+        return total;
+    }
+
+    /**
+     * Get the vote counts of the updates with the given IDs in a single query
+     * for each MAX_IN_VALUES updates, the most an IN filter may list.
+     *
+     * @param updateIds the IDs of the updates to get the vote counts of
+     * @return map of update ID to vote count, with every given ID present
+     */
+    public Map<Long,Integer> getCounts(List<Long> updateIds) {
+        Map<Long,Integer> counts = new HashMap<Long,Integer>();
+        for(Long theUpdateId : updateIds) {
+            counts.put(theUpdateId, 0);
+        }
+        for(int i = 0; i < updateIds.size(); i += Constants.MAX_IN_VALUES) {
+            List<Long> batch = updateIds.subList(i, Math.min(updateIds.size(),
+                    i + Constants.MAX_IN_VALUES));
+            for(VoteCounterModel shard : all().filter("updateId IN", batch)
+                    .fetch()) {
+                counts.put(shard.getUpdateId(),
+                        counts.get(shard.getUpdateId()) + shard.getCount());
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Add the given amount to the vote count of an update. Only one randomly
+     * chosen shard is written to, in a transaction so that concurrent votes
+     * landing on the same shard are all counted.
+     *
+     * @param theUpdateId the ID of the update to change the vote count of
+     * @param delta the amount to add to the count (negative to subtract)
+     */
+    public void increment(final Long theUpdateId, final int delta) {
+        final int shard = random.nextInt(Constants.VOTE_COUNTER_SHARDS);
+        inTransaction(VoteCounterModel.class, new Runnable() {
+            public void run() {
+                VoteCounterModel counter = new VoteCounterModel();
+                counter.id = getShardKey(theUpdateId, shard);
+                counter = getByKey(counter);
+                if(counter == null) {
+                    counter = new VoteCounterModel(theUpdateId, shard, delta);
+                    counter.insert();
+                }
+                else {
+                    counter.count += delta;
+                    counter.update();
+                }
+            }
+        });
+    }
+
+    /**
+     * Delete all counter shards of the update with the given ID.
+     *
+     * @param theUpdateId the ID of the update to delete the counter of
+     */
+    public void deleteByUpdate(Long theUpdateId) {
+        // at most VOTE_COUNTER_SHARDS shards, so a single call deletes them
+        all().filter("updateId", theUpdateId).delete();
+    }
+
+    /**
+     * Rebuild the counter of an update from the votes stored for it.
+     *
+     * @param update the update to rebuild the counter of
+     */
+    public void rebuild(UpdateModel update) {
+        VoteModel voteModel = new VoteModel();
+        List<VoteModel> votes = voteModel.findByUpdate(update);
+        this.deleteByUpdate(update.getId());
+        if(votes != null && !votes.isEmpty()) {
+            VoteCounterModel counter = new VoteCounterModel(update.getId(), 0,
+                    votes.size());
+            counter.insert();
+        }
+    }
+
+    /**
+     * Build the counters of all existing updates from their stored votes. Used
+     * once to migrate data stored before vote counters existed.
+     */
+    public void backfill() {
+        UpdateModel updateModel = new UpdateModel();
+        int offset = 0;
+        List<UpdateModel> updates;
+        do {
+            updates = updateModel.findNewest(BACKFILL_BATCH_SIZE, offset);
+            for(UpdateModel update : updates) {
+                this.rebuild(update);
+            }
+            offset += BACKFILL_BATCH_SIZE;
+        } while(updates.size() == BACKFILL_BATCH_SIZE);
+    }
+
+    /**
+     * Return a list of the counter shards of the given update.
+     *
+     * @param theUpdateId the ID of the update to find the shards of
+     * @return the counter shards of the update
+     */
+    public List<VoteCounterModel> findByUpdate(Long theUpdateId) {
+        return all().filter("updateId", theUpdateId).fetch();
+    }
+
+    /**
+     * Returns the number of votes counted by this shard.
+     *
+     * @return the number of votes counted by this shard
+     */
+    public int getCount() {
+        return this.count;
+    }
+
+    /**
+     * Returns the ID of the update counted by this shard.
+     *
+     * @return the ID of the update counted by this shard
+     */
+    public Long getUpdateId() {
+        return this.updateId;
+    }
+
+    /**
+     * Returns the unique key of a shard.
+     *
+     * @param theUpdateId the ID of the update being counted
+     * @param shard the number of the shard
+     * @return the unique key of the shard
+     */
+    private static String getShardKey(Long theUpdateId, int shard) {
+        return theUpdateId + "-" + shard;
+    }
+
+    /**
+     * Returns a query object representing all counter shards.
+     *
+     * @return a query object representing all counter shards
+     */
+    private Query<VoteCounterModel> all() {
+        return query(VoteCounterModel.class);
+    }
+}
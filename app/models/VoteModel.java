@@ -7,23 +7,33 @@
  */
 package models;
 
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import siena.Generator;
 import siena.Id;
 import siena.Index;
-import siena.Model;
 import siena.Query;
+import siena.Table;
 
 /**
- * Model for accessing and modifying update votes.
+ * Model for accessing and modifying update votes. A vote's key is made from
+ * its user and update, so a user can only ever have one vote on an update,
+ * and checking for it is a get by key rather than a query.
  *
  * @author Peter Graham
  */
+@Table("Vote")
 public class VoteModel extends BaseModel{
 
-    /** auto-incremented unique ID for the vote */
-    @Id
-    private Long id;
+    /** number of legacy votes to migrate at a time */
+    private static final int MIGRATE_BATCH_SIZE = 100;
+
+    /** unique key of the vote, in the form "userId:updateId" */
+    @Id(Generator.NONE)
+    private String id;
 
     /** Date vote is added to database */
     private Date created;
@@ -46,13 +56,26 @@ public class VoteModel extends BaseModel{
     /**
      * Constructs the Vote and initializes fields.
      *
-     * @param name the name of the topic
+     * @param user the user who votes
+     * @param update the update voted on
      */
     public VoteModel(UserModel user, UpdateModel update) {
+        this(user.getId(), update.getId(), new Date());
+    }
+
+    /**
+     * Constructs the Vote from IDs and initializes fields.
+     *
+     * @param theUserId the ID of the user who votes
+     * @param theUpdateId the ID of the update voted on
+     * @param theCreated the date of the vote
+     */
+    private VoteModel(Long theUserId, Long theUpdateId, Date theCreated) {
         this();
-        this.userId = user.getId();
-        this.updateId = update.getId();
-        this.created = new Date();
+        this.id = getKey(theUserId, theUpdateId);
+        this.userId = theUserId;
+        this.updateId = theUpdateId;
+        this.created = theCreated;
     }
 
     /**
@@ -64,28 +87,37 @@ public class VoteModel extends BaseModel{
      */
     public void createVote(UpdateModel update, UserModel creator) {
         if(update != null) {
+            VoteCounterModel counterModel = new VoteCounterModel();
             // check if user has already voted on this update
-            if(this.voteExists(creator, update)) {
+            VoteModel vote = this.getByUserAndUpdate(creator, update);
+            if(vote != null) {
                 // delete current vote, as user is un-voting
-                this.getByUserAndUpdate(creator, update).delete();
+                vote.delete();
+                update.onVote(-1);
+                counterModel.increment(update.getId(), -1);
             }
             else {
-                // cast the vote
-                VoteModel vote = new VoteModel(creator, update);
+                // cast the vote, which overwrites rather than duplicates a
+                // vote cast at the same time
+                vote = new VoteModel(creator, update);
                 vote.insert();
+                update.onVote(1);
+                counterModel.increment(update.getId(), 1);
             }
         }
     }
 
     /**
-     * Find a update associated with the given unique topic ID.
+     * Find a vote associated with the given unique key.
      *
-     * @param updateId the unique ID of the topic
-     * @return update associated with the ID, or null if no update with that ID
+     * @param voteId the unique key of the vote
+     * @return vote associated with the key, or null if no vote with that key
      *      exists
      */
-    public VoteModel findById(Long updateId) {
-        return all().filter("id", updateId).get();
+    public VoteModel findById(String voteId) {
+        VoteModel vote = new VoteModel();
+        vote.id = voteId;
+        return getByKey(vote);
     }
 
     /**
@@ -116,8 +148,27 @@ public class VoteModel extends BaseModel{
      * @return Vote of a specific user and update
      */
     public VoteModel getByUserAndUpdate(UserModel user, UpdateModel update) {
-        return all().filter("userId", user.getId())
-                .filter("updateId", update.getId()).get();
+        return this.findById(getKey(user.getId(), update.getId()));
+    }
+
+    /**
+     * Returns which of the given updates a user has voted on, in a single
+     * query.
+     *
+     * @param user the user to check
+     * @param updateIds the IDs of the updates to check
+     * @return the IDs of the updates the user has voted on
+     */
+    public Set<Long> getVotedUpdateIds(UserModel user, List<Long> updateIds) {
+        Set<Long> voted = new HashSet<Long>();
+        if(user == null || updateIds.isEmpty()) {
+            return voted;
+        }
+        for(VoteModel vote : all().filter("userId", user.getId())
+                .filter("updateId IN", updateIds).fetch()) {
+            voted.add(vote.getUpdateId());
+        }
+        return voted;
     }
 
     /**
@@ -133,41 +184,94 @@ public class VoteModel extends BaseModel{
     }
 
     /**
-     * Get the vote count of a given update.
+     * Get the vote count of a given update from its vote counter, rather than
+     * by counting the votes themselves.
      *
      * @param update the Update to get the vote count of
      * @return the vote count of a given update
      */
     public int getVoteCount(UpdateModel update) {
-        List<VoteModel> votes = this.findByUpdate(update);
-        int count = 0;
-        if(votes != null) {
-            count = votes.size();
-        }
-        return count;
+        return this.getVoteCount(update.getId());
+    }
+
+    /**
+     * Get the vote count of the update with a given ID from its vote counter,
+     * without loading the update.
+     *
+     * @param updateId the ID of the Update to get the vote count of
+     * @return the vote count of the update
+     */
+    public int getVoteCount(Long updateId) {
+        VoteCounterModel counterModel = new VoteCounterModel();
+        return counterModel.getCount(updateId);
     }
 
     /**
-     * Delete all votes associated with a given update.
+     * Delete up to batchSize votes of the update with the given ID, fetching
+     * only their keys and deleting them in a single datastore call.
      *
-     * @param update the update to delete all votes of
+     * @param theUpdateId the ID of the update to delete votes of
+     * @param batchSize the most votes to delete
+     * @return the number of votes deleted, less than batchSize once the update
+     *      has no votes left
      */
-    public void deleteByUpdate(UpdateModel update) {
-        List<VoteModel> votes = this.findByUpdate(update);
-        for(VoteModel vote : votes) {
-            vote.delete();
+    public int deleteBatchByUpdate(Long theUpdateId, int batchSize) {
+        List<String> keys = new ArrayList<String>();
+        for(VoteModel vote : all().filter("updateId", theUpdateId)
+                .fetchKeys(batchSize)) {
+            keys.add(vote.id);
         }
+        return deleteByKeys(VoteModel.class, keys);
+    }
+
+    /**
+     * Copy the votes stored before votes were keyed by user and update into
+     * the new kind, a batch at a time, deleting each legacy vote once it's
+     * copied. Duplicate legacy votes become a single vote, so vote counters
+     * should be backfilled again afterwards.
+     */
+    public void migrateLegacyVotes() {
+        List<LegacyVoteModel> batch = query(LegacyVoteModel.class)
+                .fetch(MIGRATE_BATCH_SIZE);
+        while(!batch.isEmpty()) {
+            for(LegacyVoteModel legacy : batch) {
+                new VoteModel(legacy.getUserId(), legacy.getUpdateId(),
+                        legacy.getDateCreated()).insert();
+                legacy.delete();
+            }
+            batch = query(LegacyVoteModel.class).fetch(MIGRATE_BATCH_SIZE);
+        }
+    }
+
+    /**
+     * Returns the key of a user's vote on an update.
+     *
+     * @param userId the ID of the user
+     * @param updateId the ID of the update
+     * @return the key of the vote
+     */
+    static String getKey(Long userId, Long updateId) {
+        return userId + ":" + updateId;
     }
 
     /**
-     * Returns unique ID of the vote.
+     * Returns unique key of the vote.
      *
-     * @return the unique id of the vote
+     * @return the unique key of the vote
      */
-    public Long getId() {
+    public String getId() {
         return this.id;
     }
 
+    /**
+     * Returns the ID of the update this vote is for.
+     *
+     * @return the ID of the update this vote is for
+     */
+    public Long getUpdateId() {
+        return this.updateId;
+    }
+
     /**
      * Returns the date that this vote was added to the database.
      *
@@ -183,6 +287,6 @@ public class VoteModel extends BaseModel{
      * @return a query object representing all votes
      */
     private Query<VoteModel> all() {
-        return Model.all(VoteModel.class);
+        return query(VoteModel.class);
     }
 }
\ No newline at end of file
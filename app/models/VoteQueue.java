@@ -0,0 +1,389 @@
+/*
+ * File: VoteQueue.java
+ * Name: Peter Graham
+ * Class: CS 461
+ * Project 1
+ * Date: May 10
+ */
+package models;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import jobs.VoteFlush;
+import play.Logger;
+import utilities.Constants;
+
+/**
+ * Votes that have been acknowledged but not written to the datastore yet.
+ *
+ * Voting toggles a vote, so clicking the vote button repeatedly only changes
+ * the queued state of that user's vote on that update, and clicking it an even
+ * number of times before the queue is flushed writes nothing at all. The
+ * queue is flushed in batches by the VoteFlush job, every second and when the
+ * application stops.
+ *
+ * @author Peter Graham
+ */
+public class VoteQueue {
+
+    /** the queue shared by all requests */
+    private static final VoteQueue instance = new VoteQueue();
+
+    /** the queued votes, keyed by user ID and update ID */
+    private final Map<String,PendingVote> pending =
+            new LinkedHashMap<String,PendingVote>();
+
+    /** the votes being written by a flush, keyed like pending votes */
+    private final Map<String,PendingVote> flushing =
+            new HashMap<String,PendingVote>();
+
+    /** held while flushing, so only one flush writes at a time */
+    private final Object flushLock = new Object();
+
+    /**
+     * Returns the queue shared by all requests.
+     *
+     * @return the vote queue
+     */
+    public static VoteQueue get() {
+        return instance;
+    }
+
+    /**
+     * Toggle a user's vote on an update, without writing to the datastore.
+     *
+     * @param user the user who votes
+     * @param updateId the ID of the update to vote on
+     * @return true if the user has now voted on the update, or false if the
+     *      vote was taken back
+     */
+    public boolean toggle(UserModel user, Long updateId) {
+        String key = VoteModel.getKey(user.getId(), updateId);
+        // read the datastore before locking, so other votes aren't held up
+        Boolean queued = this.getQueuedVote(user.getId(), updateId);
+        boolean stored = queued != null ? queued
+                : this.isStored(user, updateId);
+        boolean voted;
+        boolean full;
+        synchronized(this) {
+            PendingVote vote = this.pending.get(key);
+            if(vote == null) {
+                // a vote being flushed counts as stored
+                PendingVote flushingVote = this.flushing.get(key);
+                if(flushingVote != null) {
+                    stored = flushingVote.voted;
+                }
+                vote = new PendingVote(user.getId(), updateId, stored);
+                this.pending.put(key, vote);
+            }
+            vote.voted = !vote.voted;
+            voted = vote.voted;
+            if(vote.voted == vote.stored) {
+                // toggled back to what's stored, so nothing to write
+                this.pending.remove(key);
+            }
+            full = this.pending.size() >= Constants.VOTE_FLUSH_BATCH;
+        }
+        if(full) {
+            new VoteFlush().now();
+        }
+        return voted;
+    }
+
+    /**
+     * Returns whether or not a user has voted on an update, counting votes
+     * that haven't been written yet.
+     *
+     * @param userId the ID of the user
+     * @param updateId the ID of the update
+     * @return true or false if the user's vote is queued, or null if the
+     *      datastore is up to date
+     */
+    public synchronized Boolean getQueuedVote(Long userId, Long updateId) {
+        String key = VoteModel.getKey(userId, updateId);
+        PendingVote vote = this.pending.get(key);
+        if(vote == null) {
+            vote = this.flushing.get(key);
+        }
+        return vote == null ? null : vote.voted;
+    }
+
+    /**
+     * Returns how much the vote count of an update will change once queued
+     * votes are written.
+     *
+     * @param updateId the ID of the update
+     * @return the number of queued votes minus the number of queued unvotes
+     */
+    public synchronized int getQueuedDelta(Long updateId) {
+        int delta = 0;
+        for(PendingVote vote : this.pending.values()) {
+            if(vote.updateId.equals(updateId)) {
+                delta += vote.getDelta();
+            }
+        }
+        for(PendingVote vote : this.flushing.values()) {
+            if(vote.updateId.equals(updateId)) {
+                delta += vote.getDelta();
+            }
+        }
+        return delta;
+    }
+
+    /**
+     * Write all queued votes to the datastore. Votes on the same update are
+     * added to its vote counter and leaderboards in one step. Votes that
+     * couldn't be written are queued again, so the next flush retries them.
+     */
+    public void flush() {
+        synchronized(this.flushLock) {
+            List<PendingVote> batch;
+            synchronized(this) {
+                if(this.pending.isEmpty()) {
+                    return;
+                }
+                batch = new ArrayList<PendingVote>(this.pending.values());
+                this.pending.clear();
+                for(PendingVote vote : batch) {
+                    this.flushing.put(vote.getKey(), vote);
+                }
+            }
+            List<PendingVote> failed = batch;
+            try {
+                failed = this.write(batch);
+            }
+            catch(RuntimeException e) {
+                Logger.error(e, "Could not read %d votes to write, retrying "
+                        + "on the next flush", batch.size());
+            }
+            finally {
+                synchronized(this) {
+                    for(PendingVote vote : batch) {
+                        this.flushing.remove(vote.getKey());
+                    }
+                    for(PendingVote vote : failed) {
+                        this.requeue(vote);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Write a batch of votes to the datastore. The stored votes, the users
+     * and the updates are each loaded for the whole batch at once, and new
+     * and removed votes are each written in a single batch.
+     *
+     * @param batch the votes to write
+     * @return the votes that couldn't be written
+     */
+    private List<PendingVote> write(List<PendingVote> batch) {
+        List<String> keys = new ArrayList<String>();
+        Set<Long> userIds = new HashSet<Long>();
+        Set<Long> updateIds = new LinkedHashSet<Long>();
+        for(PendingVote vote : batch) {
+            keys.add(vote.getKey());
+            userIds.add(vote.userId);
+            updateIds.add(vote.updateId);
+        }
+        Map<Long,UpdateModel> updates = new HashMap<Long,UpdateModel>();
+        for(UpdateModel update : new UpdateModel().findByIds(
+                new ArrayList<Long>(updateIds))) {
+            updates.put(update.getId(), update);
+        }
+        Map<Long,UserModel> users = new UserModel().findByIds(userIds);
+        Set<String> storedKeys = new HashSet<String>();
+        for(VoteModel stored : BaseModel.getByKeys(VoteModel.class, keys)) {
+            storedKeys.add(stored.getId());
+        }
+
+        List<VoteModel> newVotes = new ArrayList<VoteModel>();
+        List<PendingVote> inserted = new ArrayList<PendingVote>();
+        List<String> removedKeys = new ArrayList<String>();
+        List<PendingVote> deleted = new ArrayList<PendingVote>();
+        Map<Long,Integer> deltas = new LinkedHashMap<Long,Integer>();
+        for(PendingVote vote : batch) {
+            UpdateModel update = updates.get(vote.updateId);
+            UserModel user = users.get(vote.userId);
+            if(update == null || user == null) {
+                // removed since the vote was queued
+                continue;
+            }
+            boolean stored = storedKeys.contains(vote.getKey());
+            if(vote.voted == stored) {
+                // a failed write may have been stored without being counted
+                addDelta(deltas, vote, vote.retried ? vote.getDelta() : 0);
+            }
+            else if(vote.voted) {
+                newVotes.add(new VoteModel(user, update));
+                inserted.add(vote);
+            }
+            else {
+                removedKeys.add(vote.getKey());
+                deleted.add(vote);
+            }
+        }
+        List<PendingVote> failed = new ArrayList<PendingVote>();
+        try {
+            BaseModel.insertAll(VoteModel.class, newVotes);
+            for(PendingVote vote : inserted) {
+                addDelta(deltas, vote, vote.retried ? vote.getDelta() : 1);
+            }
+        }
+        catch(RuntimeException e) {
+            Logger.error(e, "Could not write %d votes, retrying on the next "
+                    + "flush", inserted.size());
+            failed.addAll(inserted);
+        }
+        try {
+            BaseModel.deleteByKeys(VoteModel.class, removedKeys);
+            for(PendingVote vote : deleted) {
+                addDelta(deltas, vote, vote.retried ? vote.getDelta() : -1);
+            }
+        }
+        catch(RuntimeException e) {
+            Logger.error(e, "Could not delete %d votes, retrying on the next "
+                    + "flush", deleted.size());
+            failed.addAll(deleted);
+        }
+        for(PendingVote vote : failed) {
+            vote.retried = true;
+        }
+
+        VoteCounterModel counterModel = new VoteCounterModel();
+        for(Map.Entry<Long,Integer> delta : deltas.entrySet()) {
+            if(delta.getValue() != 0) {
+                UpdateModel update = updates.get(delta.getKey());
+                try {
+                    update.onVote(delta.getValue());
+                    counterModel.increment(delta.getKey(), delta.getValue());
+                    update.touchVersions();
+                }
+                catch(RuntimeException e) {
+                    // the votes are stored, so retrying would count them twice
+                    Logger.error(e, "Could not count %d votes on update %d",
+                            delta.getValue(), delta.getKey());
+                }
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * Queue a vote again after it couldn't be written. If the user voted
+     * again while it was being written, the newer vote was queued as if this
+     * one had been stored, so it's replaced by a vote from what really is
+     * stored to what the user wants now.
+     *
+     * @param vote the vote that couldn't be written
+     */
+    private void requeue(PendingVote vote) {
+        String key = vote.getKey();
+        PendingVote newer = this.pending.get(key);
+        if(newer == null) {
+            this.pending.put(key, vote);
+            return;
+        }
+        PendingVote merged = new PendingVote(vote.userId, vote.updateId,
+                vote.stored);
+        merged.voted = newer.voted;
+        merged.retried = vote.retried;
+        if(merged.voted == merged.stored && !merged.retried) {
+            this.pending.remove(key);
+        }
+        else {
+            this.pending.put(key, merged);
+        }
+    }
+
+    /**
+     * Add to the change in an update's vote count.
+     *
+     * @param deltas the change in vote count of each update, by update ID
+     * @param vote the vote that changes the count
+     * @param delta the amount to add
+     */
+    private static void addDelta(Map<Long,Integer> deltas, PendingVote vote,
+            int delta) {
+        Integer total = deltas.get(vote.updateId);
+        deltas.put(vote.updateId, (total == null ? 0 : total) + delta);
+    }
+
+    /**
+     * Checks if a user's vote on an update is in the datastore.
+     *
+     * @param user the user
+     * @param updateId the ID of the update
+     * @return true if the vote is stored, otherwise false
+     */
+    private boolean isStored(UserModel user, Long updateId) {
+        return new VoteModel().getVotedUpdateIds(user,
+                Collections.singletonList(updateId)).contains(updateId);
+    }
+
+    /**
+     * A user's vote on an update, as it should be and as it is stored.
+     */
+    private static class PendingVote {
+
+        /** the ID of the user */
+        private final Long userId;
+
+        /** the ID of the update */
+        private final Long updateId;
+
+        /** whether or not the vote was stored when it was queued */
+        private final boolean stored;
+
+        /** whether or not the vote should be stored */
+        private boolean voted;
+
+        /**
+         * whether or not an earlier write of the vote failed, in which case
+         * it may have been stored without being counted
+         */
+        private boolean retried;
+
+        /**
+         * Constructs a pending vote in its stored state.
+         *
+         * @param theUserId the ID of the user
+         * @param theUpdateId the ID of the update
+         * @param isStored whether or not the vote is stored
+         */
+        PendingVote(Long theUserId, Long theUpdateId, boolean isStored) {
+            this.userId = theUserId;
+            this.updateId = theUpdateId;
+            this.stored = isStored;
+            this.voted = isStored;
+        }
+
+        /**
+         * Returns the key of the vote.
+         *
+         * @return the key of the vote
+         */
+        String getKey() {
+            return VoteModel.getKey(this.userId, this.updateId);
+        }
+
+        /**
+         * Returns how much writing the vote changes the vote count.
+         *
+         * @return 1 for a new vote, -1 for a removed vote, otherwise 0
+         */
+        int getDelta() {
+            if(this.voted == this.stored) {
+                return 0;
+            }
+            return this.voted ? 1 : -1;
+        }
+    }
+}
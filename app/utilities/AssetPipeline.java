@@ -0,0 +1,408 @@
+/*
+ * File: AssetPipeline.java
+ * Name: Peter Graham
+ * Class: CS 461
+ * Project 1
+ * Date: May 15
+ */
+package utilities;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+import play.Play;
+import play.exceptions.UnexpectedException;
+import play.libs.Codec;
+import play.mvc.Router;
+import play.vfs.VirtualFile;
+
+/**
+ * Bundles the scripts and style sheets in public/ so each page loads one of
+ * each, and keeps the bundles and other static files in memory, along with a
+ * gzipped copy.
+ *
+ * Each bundle's URL contains a hash of its content, so browsers can cache it
+ * forever and still get the new bundle as soon as anything in it changes. In
+ * dev mode a bundle is built again whenever one of its files changes.
+ *
+ * Bundles are minified by removing comments, blank lines and indentation,
+ * which is all that can be done safely without a full parser. The files that
+ * are already minified are included as they are.
+ *
+ * @author Peter Graham
+ */
+public class AssetPipeline {
+
+    /** the directory static files are in */
+    private static final String PUBLIC_DIR = "public/";
+
+    /** the URL bundles are served from */
+    private static final String BUNDLE_URL = "/assets/";
+
+    /** the files of each bundle in the order they are loaded */
+    private static final Map<String,String[]> BUNDLES =
+            new LinkedHashMap<String,String[]>();
+
+    static {
+        BUNDLES.put("desktop.css", new String[] {"common.css",
+                "default.css"});
+        BUNDLES.put("desktop.js", new String[] {"jquery.js",
+                "jquery.infieldlabel.js", "main.js"});
+        BUNDLES.put("mobile.css", new String[] {"common.css",
+                "jquery.mobile-1.0a4.1.min.css", "mobile.css"});
+        BUNDLES.put("mobile.js", new String[] {"jquery.js",
+                "mobile_overrides.js", "jquery.mobile-1.0a4.1.min.js"});
+    }
+
+    /** matches a url() in a style sheet, with the URL in group 2 */
+    private static final Pattern CSS_URL = Pattern.compile(
+            "url\\(\\s*(['\"]?)([^'\")]+)\\1\\s*\\)");
+
+    /** matches a comment in a style sheet */
+    private static final Pattern CSS_COMMENT = Pattern.compile(
+            "/\\*.*?\\*/", Pattern.DOTALL);
+
+    /** matches whitespace in a style sheet that can be left out */
+    private static final Pattern CSS_SPACE = Pattern.compile(
+            "\\s*([{};,])\\s*");
+
+    /** the built bundles keyed by bundle name */
+    private static final Map<String,Asset> bundlesByName =
+            new HashMap<String,Asset>();
+
+    /** the built bundles keyed by their fingerprinted file names */
+    private static final Map<String,Asset> bundlesByFileName =
+            new HashMap<String,Asset>();
+
+    /** the static files that have been loaded, keyed by path in public/ */
+    private static final Map<String,Asset> files =
+            new HashMap<String,Asset>();
+
+    /**
+     * Build all bundles, replacing any built before.
+     */
+    public static synchronized void build() {
+        for(String name : BUNDLES.keySet()) {
+            buildBundle(name);
+        }
+    }
+
+    /**
+     * Returns the URL of a bundle, building it first if needed.
+     *
+     * @param name the name of the bundle, such as "desktop.js"
+     * @return the fingerprinted URL of the bundle
+     */
+    public static synchronized String getUrl(String name) {
+        Asset bundle = bundlesByName.get(name);
+        if(bundle == null || (Play.mode.isDev() && isChanged(name, bundle))) {
+            bundle = buildBundle(name);
+        }
+        return BUNDLE_URL + bundle.getName();
+    }
+
+    /**
+     * Returns a bundle by its fingerprinted file name.
+     *
+     * @param fileName the file name of the bundle, as in its URL
+     * @return the bundle, or null if no current bundle has that name
+     */
+    public static synchronized Asset getBundle(String fileName) {
+        if(bundlesByName.isEmpty()) {
+            build();
+        }
+        return bundlesByFileName.get(fileName);
+    }
+
+    /**
+     * Returns a static file that isn't bundled, loading it the first time.
+     *
+     * @param path the path of the file in public/
+     * @return the file
+     */
+    public static synchronized Asset getFile(String path) {
+        Asset file = files.get(path);
+        if(file == null) {
+            VirtualFile source = getSource(path);
+            file = new Asset(path, source.content(), source.lastModified());
+            files.put(path, file);
+        }
+        return file;
+    }
+
+    /**
+     * Build a bundle from its files, and replace the bundle built before.
+     *
+     * @param name the name of the bundle
+     * @return the bundle
+     */
+    private static Asset buildBundle(String name) {
+        StringBuilder content = new StringBuilder();
+        long lastModified = 0;
+        for(String path : BUNDLES.get(name)) {
+            VirtualFile source = getSource(path);
+            lastModified = Math.max(lastModified, source.lastModified());
+            String text = source.contentAsString();
+            if(path.endsWith(".css")) {
+                content.append(minifyCss(rewriteCssUrls(text, path)));
+            }
+            else {
+                content.append(path.endsWith(".min.js") ? text
+                        : minifyJs(text));
+                // a file may end without a semicolon before the next one
+                content.append(";");
+            }
+            content.append('\n');
+        }
+        byte[] bytes = getBytes(content.toString());
+        String hash = Codec.hexMD5(content.toString()).substring(0, 10);
+        int dot = name.lastIndexOf('.');
+        String fileName = name.substring(0, dot) + "-" + hash
+                + name.substring(dot);
+        Asset bundle = new Asset(fileName, bytes, lastModified);
+        Asset old = bundlesByName.put(name, bundle);
+        if(old != null) {
+            bundlesByFileName.remove(old.getName());
+        }
+        bundlesByFileName.put(fileName, bundle);
+        return bundle;
+    }
+
+    /**
+     * Checks if any file of a bundle changed since the bundle was built.
+     *
+     * @param name the name of the bundle
+     * @param bundle the bundle
+     * @return true if a file changed, otherwise false
+     */
+    private static boolean isChanged(String name, Asset bundle) {
+        for(String path : BUNDLES.get(name)) {
+            if(getSource(path).lastModified() > bundle.getLastModified()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Make the relative URLs in a style sheet absolute, since the bundle it
+     * goes in is served from a different directory.
+     *
+     * @param css the style sheet
+     * @param path the path of the style sheet in public/
+     * @return the style sheet with absolute URLs
+     */
+    private static String rewriteCssUrls(String css, String path) {
+        String dir = path.substring(0, path.lastIndexOf('/') + 1);
+        Matcher matcher = CSS_URL.matcher(css);
+        StringBuffer result = new StringBuffer();
+        while(matcher.find()) {
+            String url = matcher.group(2);
+            VirtualFile file = null;
+            if(!url.startsWith("/") && !url.startsWith("data:")
+                    && !url.contains("://")) {
+                file = Play.getVirtualFile(PUBLIC_DIR + dir + url);
+            }
+            if(file != null && file.exists()) {
+                url = Router.reverse(file);
+            }
+            matcher.appendReplacement(result,
+                    Matcher.quoteReplacement("url('" + url + "')"));
+        }
+        matcher.appendTail(result);
+        return result.toString();
+    }
+
+    /**
+     * Remove comments and whitespace that don't change a style sheet.
+     *
+     * @param css the style sheet
+     * @return the minified style sheet
+     */
+    private static String minifyCss(String css) {
+        String result = CSS_COMMENT.matcher(css).replaceAll("");
+        result = result.replaceAll("\\s+", " ");
+        return CSS_SPACE.matcher(result).replaceAll("$1").trim();
+    }
+
+    /**
+     * Remove whole-line comments, blank lines and indentation from a script.
+     * Comments after code are left alone, since telling them apart from
+     * strings and regular expressions needs a parser.
+     *
+     * @param js the script
+     * @return the minified script
+     */
+    private static String minifyJs(String js) {
+        StringBuilder result = new StringBuilder(js.length());
+        boolean inComment = false;
+        for(String line : js.split("\n")) {
+            line = line.trim();
+            if(inComment) {
+                int end = line.indexOf("*/");
+                if(end < 0) {
+                    continue;
+                }
+                inComment = false;
+                line = line.substring(end + 2).trim();
+            }
+            if(line.startsWith("/*")) {
+                int end = line.indexOf("*/", 2);
+                if(end < 0) {
+                    inComment = true;
+                    continue;
+                }
+                line = line.substring(end + 2).trim();
+            }
+            if(line.length() > 0 && !line.startsWith("//")) {
+                result.append(line).append('\n');
+            }
+        }
+        return result.toString();
+    }
+
+    /**
+     * Returns a file in public/.
+     *
+     * @param path the path of the file in public/
+     * @return the file
+     */
+    private static VirtualFile getSource(String path) {
+        VirtualFile source = Play.getVirtualFile(PUBLIC_DIR + path);
+        if(source == null || !source.exists()) {
+            throw new UnexpectedException("Missing static file " + path);
+        }
+        return source;
+    }
+
+    /**
+     * Returns the UTF-8 bytes of a string.
+     *
+     * @param s the string
+     * @return the bytes of the string
+     */
+    private static byte[] getBytes(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        }
+        catch(UnsupportedEncodingException e) {
+            throw new UnexpectedException(e);
+        }
+    }
+
+    /**
+     * A static file or bundle kept in memory.
+     */
+    public static class Asset {
+
+        /** the file name of the asset */
+        private final String name;
+
+        /** the content of the asset */
+        private final byte[] content;
+
+        /** the gzipped content of the asset, or null if it's not text */
+        private final byte[] gzipped;
+
+        /** when the newest file in the asset was changed */
+        private final long lastModified;
+
+        /**
+         * Constructs an asset, gzipping its content if it's text.
+         *
+         * @param theName the file name of the asset
+         * @param theContent the content of the asset
+         * @param theLastModified when the newest file in the asset was
+         *      changed
+         */
+        Asset(String theName, byte[] theContent, long theLastModified) {
+            this.name = theName;
+            this.content = theContent;
+            this.lastModified = theLastModified;
+            this.gzipped = this.getContentType().startsWith("text/")
+                    ? gzip(theContent) : null;
+        }
+
+        /**
+         * Returns the file name of the asset.
+         *
+         * @return the file name of the asset
+         */
+        public String getName() {
+            return this.name;
+        }
+
+        /**
+         * Returns the content of the asset.
+         *
+         * @return the content of the asset
+         */
+        public byte[] getContent() {
+            return this.content;
+        }
+
+        /**
+         * Returns the gzipped content of the asset.
+         *
+         * @return the gzipped content, or null if the asset isn't text
+         */
+        public byte[] getGzipped() {
+            return this.gzipped;
+        }
+
+        /**
+         * Returns when the newest file in the asset was changed.
+         *
+         * @return the time of the change in milliseconds
+         */
+        public long getLastModified() {
+            return this.lastModified;
+        }
+
+        /**
+         * Returns the content type of the asset from its file name.
+         *
+         * @return the content type of the asset
+         */
+        public String getContentType() {
+            if(this.name.endsWith(".css")) {
+                return "text/css; charset=utf-8";
+            }
+            if(this.name.endsWith(".js")) {
+                return "text/javascript; charset=utf-8";
+            }
+            if(this.name.endsWith(".txt")) {
+                return "text/plain; charset=utf-8";
+            }
+            if(this.name.endsWith(".ico")) {
+                return "image/x-icon";
+            }
+            return "application/octet-stream";
+        }
+
+        /**
+         * Gzip some content.
+         *
+         * @param content the content
+         * @return the gzipped content
+         */
+        private static byte[] gzip(byte[] content) {
+            try {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                GZIPOutputStream gzipOut = new GZIPOutputStream(out);
+                gzipOut.write(content);
+                gzipOut.close();
+                return out.toByteArray();
+            }
+            catch(IOException e) {
+                throw new UnexpectedException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * File: DataVersions.java
+ * Name: Peter Graham
+ * Class: CS 461
+ * Project 1
+ * Date: May 14
+ */
+package utilities;
+
+import play.cache.Cache;
+
+/**
+ * Tracks when each scope of data was last written, so pages built from a
+ * scope can tell cheaply whether they are out of date. A version is the time
+ * of the last write in milliseconds, so it can also be sent as a
+ * Last-Modified date.
+ *
+ * The versions are kept in the cache shared by every application instance,
+ * which is memcache on App Engine, so a write on one instance makes the pages
+ * of its scope out of date on all of them. A scope with no version in the
+ * cache, because it hasn't been written or its version was evicted, could
+ * have been written at any time, so it is given the current time.
+ *
+ * @author Peter Graham
+ */
+public class DataVersions {
+
+    /** the scope of all updates and votes */
+    public static final String UPDATES = "updates";
+
+    /** the scope of all topics and their follower counts */
+    public static final String TOPICS = "topics";
+
+    /** the prefix of the cache keys of the versions */
+    static final String KEY_PREFIX = "dataVersion:";
+
+    /**
+     * Returns the scope of the updates and votes of a topic.
+     *
+     * @param topicId the ID of the topic
+     * @return the scope of the topic
+     */
+    public static String topic(Long topicId) {
+        return "topic:" + topicId;
+    }
+
+    /**
+     * Returns the scope of a user's profile and followed topics.
+     *
+     * @param userId the ID of the user
+     * @return the scope of the user
+     */
+    public static String user(Long userId) {
+        return "user:" + userId;
+    }
+
+    /**
+     * Record that a scope was written. The new version is later than the one
+     * the scope had before, even if the clock hasn't moved. When two
+     * instances write a scope at once, one version wins, and it is still
+     * later than the one before both writes.
+     *
+     * @param scope the scope that was written
+     */
+    public static void touch(String scope) {
+        long version = Math.max(System.currentTimeMillis(),
+                get(scope) + 1);
+        Cache.set(KEY_PREFIX + scope, version);
+    }
+
+    /**
+     * Returns the version of a scope.
+     *
+     * @param scope the scope
+     * @return the time the scope was last written in milliseconds, or the
+     *      latest time it could have been written if that isn't known
+     */
+    public static long get(String scope) {
+        Long version = Cache.get(KEY_PREFIX + scope, Long.class);
+        if(version == null) {
+            // only add the version, so every instance that finds it missing
+            // at once agrees on the version one of them added
+            Cache.add(KEY_PREFIX + scope, System.currentTimeMillis());
+            version = Cache.get(KEY_PREFIX + scope, Long.class);
+        }
+        return version != null ? version : System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,382 @@
+/*
+ * File: Leaderboard.java
+ * Name: Peter Graham
+ * Class: CS 461
+ * Project 1
+ * Date: May 3
+ */
+package utilities;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * An in-memory ranking of items created within a sliding time window, kept
+ * separately for any number of scopes (for example everyone, or one topic).
+ *
+ * Items are grouped into hourly buckets by creation time. Scores are changed
+ * incrementally, and whole buckets are evicted once they fall out of the
+ * window, so reading the top items of a scope never has to look at more than
+ * offset + howMany items.
+ *
+ * @author Peter Graham
+ */
+public class Leaderboard {
+
+    /** the number of milliseconds in an hour */
+    private static final long HOUR = 60 * 60 * 1000L;
+
+    /** gives the position of entries for paging by cursor */
+    private static final Page.Keys<Entry> ENTRY_KEYS = new Page.Keys<Entry>() {
+        public PageCursor cursorAt(Entry entry, int position,
+                boolean backward) {
+            return new PageCursor(entry.score, entry.created, entry.id,
+                    position, backward);
+        }
+    };
+
+    /** the length of the window in milliseconds */
+    private final long window;
+
+    /** the ranking of each scope */
+    private final Map<String,Board> boards = new HashMap<String,Board>();
+
+    /** the last hour in which all boards were swept for expired buckets */
+    private long lastSweepHour;
+
+    /**
+     * Constructs a leaderboard with the given window.
+     *
+     * @param windowHours how many hours an item stays in the leaderboard
+     */
+    public Leaderboard(int windowHours) {
+        this.window = windowHours * HOUR;
+    }
+
+    /**
+     * Add an item to the given scopes, or replace its score if it was already
+     * added. Items created before the window are ignored.
+     *
+     * @param scopes the scopes the item is ranked in
+     * @param id the unique ID of the item
+     * @param created the creation time of the item in milliseconds
+     * @param score the score of the item
+     */
+    public synchronized void put(List<String> scopes, Long id, long created,
+            int score) {
+        long now = System.currentTimeMillis();
+        if(created <= now - this.window) {
+            return;
+        }
+        for(String scope : scopes) {
+            Board board = this.boards.get(scope);
+            if(board == null) {
+                board = new Board();
+                this.boards.put(scope, board);
+            }
+            board.put(id, created, score);
+        }
+        this.sweep(now);
+    }
+
+    /**
+     * Add to the score of an item in the given scopes. Does nothing for scopes
+     * the item isn't ranked in.
+     *
+     * @param scopes the scopes the item is ranked in
+     * @param id the unique ID of the item
+     * @param delta the amount to add to the score (negative to subtract)
+     */
+    public synchronized void increment(List<String> scopes, Long id,
+            int delta) {
+        for(String scope : scopes) {
+            Board board = this.boards.get(scope);
+            if(board != null) {
+                board.increment(id, delta);
+            }
+        }
+        this.sweep(System.currentTimeMillis());
+    }
+
+    /**
+     * Remove an item from the given scopes.
+     *
+     * @param scopes the scopes the item is ranked in
+     * @param id the unique ID of the item
+     */
+    public synchronized void remove(List<String> scopes, Long id) {
+        for(String scope : scopes) {
+            Board board = this.boards.get(scope);
+            if(board != null) {
+                board.remove(id);
+            }
+        }
+    }
+
+    /**
+     * Returns the IDs of the highest scoring items among the given scopes that
+     * are still within the window. Ties are broken by newest first.
+     *
+     * @param scopes the scopes to rank items of
+     * @param howMany how many item IDs to return
+     * @param offset the offset used for pagination
+     * @return the IDs of the highest scoring items in order
+     */
+    public synchronized List<Long> top(List<String> scopes, int howMany,
+            int offset) {
+        long now = System.currentTimeMillis();
+        this.sweep(now);
+        long after = now - this.window;
+        // each scope contributes at most offset + howMany candidates
+        List<Entry> candidates = new ArrayList<Entry>();
+        for(String scope : scopes) {
+            Board board = this.boards.get(scope);
+            if(board != null) {
+                board.evict(after);
+                board.collect(board.ranked, after, offset + howMany,
+                        candidates);
+            }
+        }
+        if(scopes.size() > 1) {
+            Collections.sort(candidates);
+        }
+        List<Long> ids = new ArrayList<Long>();
+        for(int i = offset; i < candidates.size() && ids.size() < howMany;
+                i++) {
+            ids.add(candidates.get(i).id);
+        }
+        return ids;
+    }
+
+    /**
+     * Returns the page of the highest scoring items among the given scopes
+     * that a cursor leads to. Only the items next to the cursor are looked
+     * at, so later pages cost the same as the first page.
+     *
+     * @param scopes the scopes to rank items of
+     * @param cursor the cursor of the page, or null for the first page
+     * @param howMany how many item IDs to put on the page
+     * @return the page of item IDs
+     */
+    public synchronized Page<Long> page(List<String> scopes,
+            PageCursor cursor, int howMany) {
+        long now = System.currentTimeMillis();
+        this.sweep(now);
+        long after = now - this.window;
+        List<Entry> candidates = new ArrayList<Entry>();
+        for(String scope : scopes) {
+            Board board = this.boards.get(scope);
+            if(board == null) {
+                continue;
+            }
+            board.evict(after);
+            NavigableSet<Entry> entries = board.ranked;
+            if(cursor != null) {
+                Entry at = new Entry(cursor.getId(), cursor.getCreated(),
+                        (int) cursor.getScore());
+                if(cursor.isBackward()) {
+                    entries = entries.headSet(at, false).descendingSet();
+                }
+                else {
+                    entries = entries.tailSet(at, false);
+                }
+            }
+            board.collect(entries, after, howMany + 1, candidates);
+        }
+        Page<Entry> page = Page.of(candidates, cursor, howMany, ENTRY_KEYS);
+        List<Long> ids = new ArrayList<Long>();
+        for(Entry entry : page.getItems()) {
+            ids.add(entry.id);
+        }
+        return page.withItems(ids);
+    }
+
+    /**
+     * Once an hour, evict expired buckets from every board and drop the boards
+     * that are left empty, so scopes that are no longer read don't keep their
+     * items forever.
+     *
+     * @param now the current time in milliseconds
+     */
+    private void sweep(long now) {
+        long hour = now / HOUR;
+        if(hour == this.lastSweepHour) {
+            return;
+        }
+        this.lastSweepHour = hour;
+        Iterator<Board> it = this.boards.values().iterator();
+        while(it.hasNext()) {
+            Board board = it.next();
+            board.evict(now - this.window);
+            if(board.entries.isEmpty()) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * A ranked item. Ordered by highest score first, then newest first, then
+     * lowest ID first, the same as PageCursor.
+     */
+    private static class Entry implements Comparable<Entry> {
+
+        /** the unique ID of the item */
+        private final Long id;
+
+        /** the creation time of the item in milliseconds */
+        private final long created;
+
+        /** the current score of the item */
+        private int score;
+
+        /**
+         * Constructs an entry.
+         *
+         * @param theId the unique ID of the item
+         * @param theCreated the creation time of the item in milliseconds
+         * @param theScore the score of the item
+         */
+        Entry(Long theId, long theCreated, int theScore) {
+            this.id = theId;
+            this.created = theCreated;
+            this.score = theScore;
+        }
+
+        /**
+         * Compares entries by score and creation time descending, then by ID.
+         *
+         * @param other the entry to compare to
+         * @return the ordering of this entry relative to the other entry
+         */
+        public int compareTo(Entry other) {
+            if(this.score != other.score) {
+                return this.score > other.score ? -1 : 1;
+            }
+            if(this.created != other.created) {
+                return this.created > other.created ? -1 : 1;
+            }
+            return this.id.compareTo(other.id);
+        }
+    }
+
+    /**
+     * The ranking of a single scope.
+     */
+    private static class Board {
+
+        /** the entries of each hour, keyed by hours since the epoch */
+        private final TreeMap<Long,List<Entry>> buckets =
+                new TreeMap<Long,List<Entry>>();
+
+        /** the entries keyed by item ID */
+        private final Map<Long,Entry> entries = new HashMap<Long,Entry>();
+
+        /** the entries in ranked order */
+        private final TreeSet<Entry> ranked = new TreeSet<Entry>();
+
+        /**
+         * Add an entry, or replace the score of an existing entry.
+         *
+         * @param id the unique ID of the item
+         * @param created the creation time of the item in milliseconds
+         * @param score the score of the item
+         */
+        void put(Long id, long created, int score) {
+            Entry entry = this.entries.get(id);
+            if(entry != null) {
+                this.ranked.remove(entry);
+                entry.score = score;
+                this.ranked.add(entry);
+                return;
+            }
+            entry = new Entry(id, created, score);
+            this.entries.put(id, entry);
+            this.ranked.add(entry);
+            Long hour = Long.valueOf(created / HOUR);
+            List<Entry> bucket = this.buckets.get(hour);
+            if(bucket == null) {
+                bucket = new ArrayList<Entry>();
+                this.buckets.put(hour, bucket);
+            }
+            bucket.add(entry);
+        }
+
+        /**
+         * Add to the score of an entry if it exists.
+         *
+         * @param id the unique ID of the item
+         * @param delta the amount to add to the score
+         */
+        void increment(Long id, int delta) {
+            Entry entry = this.entries.get(id);
+            if(entry != null) {
+                this.ranked.remove(entry);
+                entry.score += delta;
+                this.ranked.add(entry);
+            }
+        }
+
+        /**
+         * Remove an entry if it exists.
+         *
+         * @param id the unique ID of the item
+         */
+        void remove(Long id) {
+            Entry entry = this.entries.remove(id);
+            if(entry != null) {
+                this.ranked.remove(entry);
+                List<Entry> bucket = this.buckets.get(entry.created / HOUR);
+                bucket.remove(entry);
+                if(bucket.isEmpty()) {
+                    this.buckets.remove(entry.created / HOUR);
+                }
+            }
+        }
+
+        /**
+         * Evict the buckets that lie completely before the given time. Entries
+         * in the bucket that straddles the time are skipped when read instead.
+         *
+         * @param before the time in milliseconds before which to evict
+         */
+        void evict(long before) {
+            long firstHour = before / HOUR;
+            while(!this.buckets.isEmpty()
+                    && this.buckets.firstKey() < firstHour) {
+                for(Entry entry : this.buckets.pollFirstEntry().getValue()) {
+                    this.entries.remove(entry.id);
+                    this.ranked.remove(entry);
+                }
+            }
+        }
+
+        /**
+         * Add the first entries created after the given time to a list.
+         *
+         * @param entries the entries of this board to go through in order
+         * @param after the time in milliseconds after which to include entries
+         * @param limit the maximum number of entries to add
+         * @param result the list to add entries to
+         */
+        void collect(Iterable<Entry> entries, long after, int limit,
+                List<Entry> result) {
+            int added = 0;
+            for(Entry entry : entries) {
+                if(added >= limit) {
+                    break;
+                }
+                if(entry.created > after) {
+                    result.add(entry);
+                    added++;
+                }
+            }
+        }
+    }
+}
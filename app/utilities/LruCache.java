@@ -0,0 +1,168 @@
+/*
+ * File: LruCache.java
+ * Name: Peter Graham
+ * Class: CS 461
+ * Project 1
+ * Date: May 4
+ */
+package utilities;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded in-memory cache shared by all requests of an application
+ * instance. When full, the least recently used entry is evicted. Entries can
+ * also expire after a fixed time, for values that may be changed by other
+ * instances. Counts how many lookups were hits and misses.
+ *
+ * @author Peter Graham
+ */
+public class LruCache<K,V> implements RequestMetrics.HitCounter {
+
+    /** the maximum number of entries */
+    private final int capacity;
+
+    /** how long an entry is kept in milliseconds, or 0 to keep it forever */
+    private final long timeToLive;
+
+    /** the entries in order of least recently used first */
+    private final LinkedHashMap<K,CachedValue<V>> entries;
+
+    /** the number of lookups that found an entry */
+    private long hits;
+
+    /** the number of lookups that didn't find an entry */
+    private long misses;
+
+    /**
+     * Constructs an empty cache.
+     *
+     * @param theCapacity the maximum number of entries to keep
+     */
+    public LruCache(int theCapacity) {
+        this(theCapacity, 0);
+    }
+
+    /**
+     * Constructs an empty cache whose entries expire.
+     *
+     * @param theCapacity the maximum number of entries to keep
+     * @param theTimeToLive how long to keep an entry in milliseconds, or 0 to
+     *      keep it until it's evicted
+     */
+    public LruCache(int theCapacity, long theTimeToLive) {
+        this.capacity = theCapacity;
+        this.timeToLive = theTimeToLive;
+        this.entries = new LinkedHashMap<K,CachedValue<V>>(16, 0.75f,
+                true) {
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<K,CachedValue<V>> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Returns the value cached for a key, and counts the lookup as a hit or
+     * miss.
+     *
+     * @param key the key to look up
+     * @return the cached value, or null if none is cached
+     */
+    public synchronized V get(K key) {
+        CachedValue<V> cached = this.entries.get(key);
+        if(cached != null && cached.expires != 0
+                && cached.expires <= System.currentTimeMillis()) {
+            this.entries.remove(key);
+            cached = null;
+        }
+        if(cached == null) {
+            this.misses++;
+            return null;
+        }
+        this.hits++;
+        return cached.value;
+    }
+
+    /**
+     * Cache a value for a key, replacing any value already cached for it.
+     *
+     * @param key the key to cache the value for
+     * @param value the value to cache
+     */
+    public synchronized void put(K key, V value) {
+        long expires = 0;
+        if(this.timeToLive > 0) {
+            expires = System.currentTimeMillis() + this.timeToLive;
+        }
+        this.entries.put(key, new CachedValue<V>(value, expires));
+    }
+
+    /**
+     * Forget the value cached for a key, if any.
+     *
+     * @param key the key to forget
+     */
+    public synchronized void remove(K key) {
+        this.entries.remove(key);
+    }
+
+    /**
+     * Forget all cached values.
+     */
+    public synchronized void clear() {
+        this.entries.clear();
+    }
+
+    /**
+     * Returns the number of cached values.
+     *
+     * @return the number of cached values
+     */
+    public synchronized int size() {
+        return this.entries.size();
+    }
+
+    /**
+     * Returns the number of lookups that found a value since startup.
+     *
+     * @return the number of hits
+     */
+    public synchronized long getHits() {
+        return this.hits;
+    }
+
+    /**
+     * Returns the number of lookups that didn't find a value since startup.
+     *
+     * @return the number of misses
+     */
+    public synchronized long getMisses() {
+        return this.misses;
+    }
+
+    /**
+     * A cached value and when it expires.
+     */
+    private static class CachedValue<V> {
+
+        /** the cached value */
+        private final V value;
+
+        /** when the value expires in milliseconds, or 0 if it doesn't */
+        private final long expires;
+
+        /**
+         * Constructs a cached value.
+         *
+         * @param theValue the cached value
+         * @param theExpires when the value expires, or 0 if it doesn't
+         */
+        CachedValue(V theValue, long theExpires) {
+            this.value = theValue;
+            this.expires = theExpires;
+        }
+    }
+}
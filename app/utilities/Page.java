@@ -0,0 +1,184 @@
+/*
+ * File: Page.java
+ * Name: Peter Graham
+ * Class: CS 461
+ * Project 1
+ * Date: May 9
+ */
+package utilities;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A page of items along with the cursors of the pages next to it.
+ *
+ * @author Peter Graham
+ */
+public class Page<T> {
+
+    /** the items on the page, in list order */
+    private final List<T> items;
+
+    /** index in the whole list of the first item on the page */
+    private final int firstPosition;
+
+    /** cursor of the next page, or null if this is the last page */
+    private final PageCursor next;
+
+    /** cursor of the previous page, or null if this is the first page */
+    private final PageCursor previous;
+
+    /**
+     * Gives the position of an item in the list order.
+     */
+    public interface Keys<T> {
+
+        /**
+         * Returns a cursor at the given item.
+         *
+         * @param item the item to return a cursor at
+         * @param position the index of the first item of the page the cursor
+         *      leads to, or for backward cursors, the index of the item
+         * @param backward true for the items before the item, false for the
+         *      items after
+         * @return a cursor at the item
+         */
+        PageCursor cursorAt(T item, int position, boolean backward);
+    }
+
+    /**
+     * Constructs a page.
+     *
+     * @param theItems the items on the page
+     * @param theFirstPosition the index of the first item on the page
+     * @param theNext the cursor of the next page, or null if none
+     * @param thePrevious the cursor of the previous page, or null if none
+     */
+    public Page(List<T> theItems, int theFirstPosition, PageCursor theNext,
+            PageCursor thePrevious) {
+        this.items = theItems;
+        this.firstPosition = theFirstPosition;
+        this.next = theNext;
+        this.previous = thePrevious;
+    }
+
+    /**
+     * Builds the page a cursor leads to from candidate items. The candidates
+     * may be in any order and may include items outside the page, but must
+     * include the howMany + 1 items nearest the cursor in its direction, so
+     * that whether there is another page beyond can be told.
+     *
+     * @param candidates the candidate items
+     * @param cursor the cursor of the page, or null for the first page
+     * @param howMany how many items to put on the page
+     * @param keys gives the position of each item in the list order
+     * @return the page the cursor leads to
+     */
+    public static <T> Page<T> of(Collection<T> candidates,
+            final PageCursor cursor, int howMany, final Keys<T> keys) {
+        final boolean backward = cursor != null && cursor.isBackward();
+        // order the candidates nearest to the cursor first
+        List<T> ordered = new ArrayList<T>();
+        for(T item : candidates) {
+            if(cursor != null) {
+                int order = keys.cursorAt(item, 0, false).compareTo(cursor);
+                if(backward ? order >= 0 : order <= 0) {
+                    // not in the direction of the cursor
+                    continue;
+                }
+            }
+            ordered.add(item);
+        }
+        Collections.sort(ordered, new Comparator<T>() {
+            public int compare(T item1, T item2) {
+                int order = keys.cursorAt(item1, 0, false).compareTo(
+                        keys.cursorAt(item2, 0, false));
+                return backward ? -order : order;
+            }
+        });
+        boolean more = ordered.size() > howMany;
+        List<T> pageItems = new ArrayList<T>(ordered.subList(0,
+                Math.min(howMany, ordered.size())));
+        if(pageItems.isEmpty()) {
+            int position = cursor == null ? 0 : cursor.getPosition();
+            return new Page<T>(pageItems, position, null, null);
+        }
+        T last;
+        int first;
+        PageCursor next;
+        PageCursor previous;
+        if(backward) {
+            Collections.reverse(pageItems);
+            last = pageItems.get(pageItems.size() - 1);
+            // the position may have drifted, but there's a page before this
+            first = more ? Math.max(cursor.getPosition() - pageItems.size(), 1)
+                    : 0;
+            next = keys.cursorAt(last, first + pageItems.size(), false);
+            previous = more ? keys.cursorAt(pageItems.get(0), first, true)
+                    : null;
+        }
+        else {
+            last = pageItems.get(pageItems.size() - 1);
+            first = cursor == null ? 0 : cursor.getPosition();
+            next = more ? keys.cursorAt(last, first + pageItems.size(), false)
+                    : null;
+            previous = first > 0 ? keys.cursorAt(pageItems.get(0), first, true)
+                    : null;
+        }
+        return new Page<T>(pageItems, first, next, previous);
+    }
+
+    /**
+     * Returns a page with the same position and cursors but other items, such
+     * as the entities the IDs on this page refer to.
+     *
+     * @param newItems the items of the new page
+     * @return a page with the new items
+     */
+    public <R> Page<R> withItems(List<R> newItems) {
+        return new Page<R>(newItems, this.firstPosition, this.next,
+                this.previous);
+    }
+
+    /**
+     * Returns the items on the page.
+     *
+     * @return the items on the page, in list order
+     */
+    public List<T> getItems() {
+        return this.items;
+    }
+
+    /**
+     * Returns the index in the whole list of the first item on the page.
+     *
+     * @return the index of the first item on the page
+     */
+    public int getFirstPosition() {
+        return this.firstPosition;
+    }
+
+    /**
+     * Returns the cursor of the next page.
+     *
+     * @return the string form of the cursor of the next page, or null if this
+     *      is the last page
+     */
+    public String getNextCursor() {
+        return this.next == null ? null : this.next.toString();
+    }
+
+    /**
+     * Returns the cursor of the previous page.
+     *
+     * @return the string form of the cursor of the previous page, or null if
+     *      this is the first page
+     */
+    public String getPreviousCursor() {
+        return this.previous == null ? null : this.previous.toString();
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * File: PageCache.java
+ * Name: Peter Graham
+ * Class: CS 461
+ * Project 1
+ * Date: May 13
+ */
+package utilities;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import play.Logger;
+import play.jobs.Job;
+
+/**
+ * A cache of rendered pages, or parts of pages, shared by all requests of an
+ * application instance. A page goes stale after a fixed time, or as soon as
+ * the data it was built from changes, which callers track with a version
+ * number. A stale page is still returned while a single background job
+ * builds it again, so only the first requests for a page ever wait for it to
+ * be built, and they all wait for the same build.
+ *
+ * @author Peter Graham
+ */
+public class PageCache<V> implements RequestMetrics.HitCounter {
+
+    /** the pages, keyed by whatever they depend on */
+    private final LruCache<String,CachedPage<V>> pages;
+
+    /** how long a page is fresh for in milliseconds */
+    private final long timeToLive;
+
+    /** the keys of the pages being built again in the background */
+    private final Set<String> refreshing = new HashSet<String>();
+
+    /** the builds of pages that aren't cached yet, keyed by page key */
+    private final ConcurrentMap<String,FutureTask<V>> firstBuilds =
+            new ConcurrentHashMap<String,FutureTask<V>>();
+
+    /**
+     * Builds a page that isn't cached or is stale.
+     */
+    public interface Builder<V> {
+
+        /**
+         * Build the page. May be called by a background job, so it must not
+         * depend on the current request.
+         *
+         * @return the page
+         */
+        V build();
+    }
+
+    /**
+     * Constructs an empty cache.
+     *
+     * @param theCapacity the most pages to keep
+     * @param theTimeToLive how long a page is fresh for in milliseconds
+     */
+    public PageCache(int theCapacity, long theTimeToLive) {
+        this.pages = new LruCache<String,CachedPage<V>>(theCapacity);
+        this.timeToLive = theTimeToLive;
+    }
+
+    /**
+     * Returns the cached page for a key. If no page is cached, the page is
+     * built and cached before returning, by only one of the requests for it
+     * at a time. If the cached page is stale, it is returned anyway and built
+     * again in the background.
+     *
+     * @param key everything the page depends on other than its data
+     * @param version the current version of the data the page is built from
+     * @param builder builds the page
+     * @return the page
+     */
+    public V get(String key, long version, Builder<V> builder) {
+        CachedPage<V> cached = this.pages.get(key);
+        if(cached == null) {
+            return this.buildFirst(key, version, builder);
+        }
+        if(cached.version != version || cached.built + this.timeToLive
+                <= System.currentTimeMillis()) {
+            this.refresh(key, version, builder);
+        }
+        return cached.page;
+    }
+
+    /**
+     * Forget every cached page, so the next request for each page builds it.
+     */
+    public void clear() {
+        this.pages.clear();
+    }
+
+    /**
+     * Returns the number of lookups that found a page since startup, fresh or
+     * stale.
+     *
+     * @return the number of hits
+     */
+    public long getHits() {
+        return this.pages.getHits();
+    }
+
+    /**
+     * Returns the number of lookups that had to build a page since startup.
+     *
+     * @return the number of misses
+     */
+    public long getMisses() {
+        return this.pages.getMisses();
+    }
+
+    /**
+     * Build a page that isn't cached yet, and cache it. If another request is
+     * already building the page, wait for that build instead of starting
+     * another, so a burst of requests for a new page builds it only once.
+     *
+     * @param key the key of the page
+     * @param version the version of the data the page is built from
+     * @param builder builds the page
+     * @return the page
+     */
+    private V buildFirst(final String key, final long version,
+            final Builder<V> builder) {
+        FutureTask<V> build = new FutureTask<V>(new Callable<V>() {
+            public V call() {
+                V page = builder.build();
+                pages.put(key, new CachedPage<V>(page, version));
+                return page;
+            }
+        });
+        FutureTask<V> running = this.firstBuilds.putIfAbsent(key, build);
+        if(running == null) {
+            running = build;
+            try {
+                build.run();
+            }
+            finally {
+                this.firstBuilds.remove(key, build);
+            }
+        }
+        try {
+            return running.get();
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for page "
+                    + key, e);
+        }
+        catch(ExecutionException e) {
+            // the build failed, so every request waiting for it fails too
+            if(e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw (RuntimeException) e.getCause();
+        }
+    }
+
+    /**
+     * Build a page again in the background, unless it is already being built.
+     *
+     * @param key the key of the page
+     * @param version the version of the data the page is built from
+     * @param builder builds the page
+     */
+    private void refresh(final String key, final long version,
+            final Builder<V> builder) {
+        synchronized(this.refreshing) {
+            if(!this.refreshing.add(key)) {
+                return;
+            }
+        }
+        new Job() {
+            @Override
+            public void doJob() {
+                try {
+                    pages.put(key, new CachedPage<V>(builder.build(),
+                            version));
+                }
+                catch(RuntimeException e) {
+                    // keep serving the stale page, and try again next time
+                    Logger.error(e, "Could not refresh cached page %s", key);
+                }
+                finally {
+                    synchronized(refreshing) {
+                        refreshing.remove(key);
+                    }
+                }
+            }
+        }.now();
+    }
+
+    /**
+     * A cached page, and when and from which version of its data it was built.
+     */
+    private static class CachedPage<V> {
+
+        /** the page */
+        private final V page;
+
+        /** the version of the data the page was built from */
+        private final long version;
+
+        /** when the page was built in milliseconds */
+        private final long built;
+
+        /**
+         * Constructs a cached page built now.
+         *
+         * @param thePage the page
+         * @param theVersion the version of the data the page was built from
+         */
+        CachedPage(V thePage, long theVersion) {
+            this.page = thePage;
+            this.version = theVersion;
+            this.built = System.currentTimeMillis();
+        }
+    }
+}
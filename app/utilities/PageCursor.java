@@ -0,0 +1,166 @@
+/*
+ * File: PageCursor.java
+ * Name: Peter Graham
+ * Class: CS 461
+ * Project 1
+ * Date: May 9
+ */
+package utilities;
+
+/**
+ * Marks a position in an ordered list of items, so the next or previous page
+ * can be fetched by looking up the items just after or before the position
+ * instead of skipping over all items before it.
+ *
+ * Items are ordered by score (highest first), then by date created (newest
+ * first), then by ID (lowest first). Lists that aren't ordered by score or by
+ * date leave those keys as 0.
+ *
+ * @author Peter Graham
+ */
+public class PageCursor implements Comparable<PageCursor> {
+
+    /** the score of the item at the position */
+    private final long score;
+
+    /** the creation time in milliseconds of the item at the position */
+    private final long created;
+
+    /** the unique ID of the item at the position */
+    private final long id;
+
+    /**
+     * the index in the whole list of the first item of the page the cursor
+     * leads to, or for backward cursors, the index of the item at the
+     * position. Only used for display, since it can drift as items change.
+     */
+    private final int position;
+
+    /** true if the page is the items before the position, false if after */
+    private final boolean backward;
+
+    /**
+     * Constructs a cursor.
+     *
+     * @param theScore the score of the item at the position
+     * @param theCreated the creation time of the item at the position
+     * @param theId the unique ID of the item at the position
+     * @param thePosition the index of the first item of the page, or for
+     *      backward cursors, the index of the item at the position
+     * @param isBackward true for the items before the position, false for
+     *      the items after
+     */
+    public PageCursor(long theScore, long theCreated, long theId,
+            int thePosition, boolean isBackward) {
+        this.score = theScore;
+        this.created = theCreated;
+        this.id = theId;
+        this.position = thePosition;
+        this.backward = isBackward;
+    }
+
+    /**
+     * Parses a cursor from the string form returned by toString().
+     *
+     * @param cursor the string form of the cursor
+     * @return the cursor, or null if the string isn't a valid cursor
+     */
+    public static PageCursor parse(String cursor) {
+        if(cursor == null || cursor.length() < 2) {
+            return null;
+        }
+        char direction = cursor.charAt(0);
+        String[] parts = cursor.substring(1).split("\\.");
+        if((direction != 'a' && direction != 'b') || parts.length != 4) {
+            return null;
+        }
+        try {
+            return new PageCursor(Long.parseLong(parts[0], 36),
+                    Long.parseLong(parts[1], 36), Long.parseLong(parts[2], 36),
+                    Integer.parseInt(parts[3], 36), direction == 'b');
+        }
+        catch(NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Compares the positions of two cursors in the list order.
+     *
+     * @param other the cursor to compare to
+     * @return negative if this position comes first, positive if the other
+     *      position comes first, or 0 if they are the same position
+     */
+    public int compareTo(PageCursor other) {
+        if(this.score != other.score) {
+            return this.score > other.score ? -1 : 1;
+        }
+        if(this.created != other.created) {
+            return this.created > other.created ? -1 : 1;
+        }
+        if(this.id != other.id) {
+            return this.id < other.id ? -1 : 1;
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the score of the item at the position.
+     *
+     * @return the score of the item at the position
+     */
+    public long getScore() {
+        return this.score;
+    }
+
+    /**
+     * Returns the creation time of the item at the position.
+     *
+     * @return the creation time in milliseconds of the item at the position
+     */
+    public long getCreated() {
+        return this.created;
+    }
+
+    /**
+     * Returns the unique ID of the item at the position.
+     *
+     * @return the unique ID of the item at the position
+     */
+    public long getId() {
+        return this.id;
+    }
+
+    /**
+     * Returns the index of the first item of the page, or for backward
+     * cursors, the index of the item at the position.
+     *
+     * @return the index used for display
+     */
+    public int getPosition() {
+        return this.position;
+    }
+
+    /**
+     * Checks whether the page is the items before or after the position.
+     *
+     * @return true if the page is the items before the position, false if
+     *      it is the items after
+     */
+    public boolean isBackward() {
+        return this.backward;
+    }
+
+    /**
+     * Returns the string form of the cursor, which is safe to use in URLs.
+     *
+     * @return the string form of the cursor
+     */
+    @Override
+    public String toString() {
+        return (this.backward ? "b" : "a") + Long.toString(this.score, 36)
+                + "." + Long.toString(this.created, 36)
+                + "." + Long.toString(this.id, 36)
+                + "." + Integer.toString(this.position, 36);
+    }
+}
@@ -0,0 +1,318 @@
+/*
+ * File: QueryTracer.java
+ * Name: Peter Graham
+ * Class: CS 461
+ * Project 1
+ * Date: May 17
+ */
+package utilities;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import play.Logger;
+import play.Play;
+import play.templates.BaseTemplate;
+import play.templates.TemplateLoader;
+
+/**
+ * Records every datastore query made during a request in dev and test mode,
+ * along with where it was made, to find pages whose query count grows with
+ * the number of rows they show.
+ *
+ * Queries are grouped by their shape, which is the model, filtered fields,
+ * orders and operation without the filtered values, and by the code that made
+ * them. A shape made repeatedly from the same place with different values is
+ * reported as an N+1 query, since it is almost always a query per row that
+ * should be a single query for all rows.
+ *
+ * Each action has a query budget, set in application.conf as
+ * trace.budget.Controller.action, or trace.budget.default for actions without
+ * their own. A request over its budget is logged with a summary of its
+ * queries, and fails in test mode so tests catch it.
+ *
+ * The number of queries and of rows they read are also totalled per request,
+ * so ScaleTest can tell when the cost of a page grows with the amount of
+ * data rather than with the number of rows it shows.
+ *
+ * @author Peter Graham
+ */
+public class QueryTracer {
+
+    /** number of repeats of a shape from one place that is an N+1 query */
+    private static final int N_PLUS_ONE_REPEATS = 3;
+
+    /** the start of the names of the classes templates are compiled to */
+    private static final String TEMPLATE_CLASS_PREFIX = "Template_";
+
+    /** the trace of the current request, or null if not tracing */
+    private static final ThreadLocal<Trace> current = new ThreadLocal<Trace>();
+
+    /**
+     * Checks if queries are traced. They are in dev and test mode, unless
+     * trace.queries is set to false in application.conf.
+     *
+     * @return true if queries are traced, otherwise false
+     */
+    public static boolean isEnabled() {
+        if("false".equals(Play.configuration.getProperty("trace.queries"))) {
+            return false;
+        }
+        return Play.mode.isDev() || Play.runingInTestMode();
+    }
+
+    /**
+     * Start tracing the queries of the current request, if enabled.
+     */
+    public static void beginRequest() {
+        if(isEnabled()) {
+            current.set(new Trace());
+        }
+        else {
+            current.remove();
+        }
+    }
+
+    /**
+     * Record a query made by the current request, if it is being traced.
+     *
+     * @param shape the query without its values, such as
+     *      "UpdateModel filter(topicId IN) order(-created) fetch"
+     * @param values the values of the query, such as "[3, 5]"
+     * @param rows the number of rows the query read
+     */
+    public static void record(String shape, String values, int rows) {
+        Trace trace = current.get();
+        if(trace == null) {
+            return;
+        }
+        trace.rows += rows;
+        Map<String,TracedQuery> queries = trace.queries;
+        StackTraceElement[] stack = new Throwable().getStackTrace();
+        String site = findCallSite(stack, false);
+        String key = shape + " at " + site;
+        TracedQuery query = queries.get(key);
+        if(query == null) {
+            query = new TracedQuery(shape, site, findCallSite(stack, true));
+            queries.put(key, query);
+        }
+        query.count++;
+        query.values.add(values);
+    }
+
+    /**
+     * Returns the number of queries the current request has made so far.
+     *
+     * @return the number of queries, or -1 if the request isn't traced
+     */
+    public static int getQueryCount() {
+        Trace trace = current.get();
+        if(trace == null) {
+            return -1;
+        }
+        int total = 0;
+        for(TracedQuery query : trace.queries.values()) {
+            total += query.count;
+        }
+        return total;
+    }
+
+    /**
+     * Returns the number of rows the queries of the current request have read
+     * so far, counting the rows a count() reads as well as those fetched.
+     *
+     * @return the number of rows, or -1 if the request isn't traced
+     */
+    public static int getRowCount() {
+        Trace trace = current.get();
+        return trace == null ? -1 : trace.rows;
+    }
+
+    /**
+     * Stop tracing the current request. Logs the N+1 queries it made, and
+     * all its queries if it went over its budget.
+     *
+     * @param action the action of the request, such as "Topic.showUpdates"
+     * @throws IllegalStateException in test mode, if the request went over
+     *      its budget
+     */
+    public static void endRequest(String action) {
+        Trace trace = current.get();
+        current.remove();
+        if(trace == null) {
+            return;
+        }
+        Map<String,TracedQuery> queries = trace.queries;
+        int total = 0;
+        List<TracedQuery> repeated = new ArrayList<TracedQuery>();
+        for(TracedQuery query : queries.values()) {
+            total += query.count;
+            if(query.count >= N_PLUS_ONE_REPEATS && query.values.size() > 1) {
+                repeated.add(query);
+            }
+        }
+        for(TracedQuery query : repeated) {
+            Logger.warn("%s: N+1 query, %d times with different values: %s",
+                    action, query.count, query);
+        }
+        int budget = getBudget(action);
+        if(budget < 0 || total <= budget) {
+            return;
+        }
+        StringBuilder summary = new StringBuilder();
+        summary.append(action).append(": ").append(total)
+                .append(" queries, over the budget of ").append(budget);
+        for(TracedQuery query : queries.values()) {
+            summary.append("\n    ").append(query.count).append("x ")
+                    .append(query);
+        }
+        if(Play.runingInTestMode()) {
+            throw new IllegalStateException(summary.toString());
+        }
+        Logger.warn("%s", summary);
+    }
+
+    /**
+     * Returns the query budget of an action from application.conf.
+     *
+     * @param action the action
+     * @return the most queries a request of the action may make, or -1 if
+     *      there is no budget
+     */
+    private static int getBudget(String action) {
+        String budget = Play.configuration.getProperty("trace.budget."
+                + action);
+        if(budget == null) {
+            budget = Play.configuration.getProperty("trace.budget.default");
+        }
+        try {
+            return budget == null ? -1 : Integer.parseInt(budget.trim());
+        }
+        catch(NumberFormatException e) {
+            Logger.error("Invalid query budget for %s: %s", action, budget);
+            return -1;
+        }
+    }
+
+    /**
+     * Find the code that made a query in a stack trace, skipping the query
+     * wrappers, the libraries they call, and Play and Groovy. A query made by
+     * a template is reported by the template's name and line, rather than by
+     * the class Play compiled it to.
+     *
+     * @param stack the stack trace of the query
+     * @param outsideModels true to skip models too, and find the controller,
+     *      template or job the query was made for
+     * @return the class, method and line of the code, the template and line,
+     *      or "unknown"
+     */
+    private static String findCallSite(StackTraceElement[] stack,
+            boolean outsideModels) {
+        for(StackTraceElement frame : stack) {
+            String name = frame.getClassName();
+            if(name.startsWith(TEMPLATE_CLASS_PREFIX)) {
+                return findTemplateLine(frame);
+            }
+            if(name.startsWith("utilities.QueryTracer")
+                    || name.startsWith("models.BaseModel")
+                    || name.startsWith("java.") || name.startsWith("javax.")
+                    || name.startsWith("sun.") || name.startsWith("jdk.")
+                    || name.startsWith("com.sun.")
+                    || name.startsWith("siena.") || name.contains("$Proxy")
+                    || name.startsWith("play.") || name.startsWith("groovy.")
+                    || name.startsWith("org.codehaus.groovy.")
+                    || (outsideModels && name.startsWith("models."))) {
+                continue;
+            }
+            return name + "." + frame.getMethodName() + "("
+                    + frame.getFileName() + ":" + frame.getLineNumber() + ")";
+        }
+        return "unknown";
+    }
+
+    /**
+     * Find the template and line a frame of a compiled template runs, the
+     * same way Play does for template errors.
+     *
+     * @param frame a frame of a class Play compiled a template to
+     * @return the name and line of the template, such as
+     *      "Topic/updateList.html:39", or the compiled class and line if the
+     *      template isn't loaded
+     */
+    private static String findTemplateLine(StackTraceElement frame) {
+        String compiled = frame.getClassName().substring(
+                TEMPLATE_CLASS_PREFIX.length());
+        if(compiled.indexOf('$') > -1) {
+            // a closure of the template
+            compiled = compiled.substring(0, compiled.indexOf('$'));
+        }
+        BaseTemplate template = TemplateLoader.templates.get(compiled);
+        Integer line = template == null ? null
+                : template.linesMatrix.get(frame.getLineNumber());
+        if(line == null) {
+            return frame.getClassName() + ":" + frame.getLineNumber();
+        }
+        return template.name + ":" + line;
+    }
+
+    /**
+     * The queries made during a request.
+     */
+    private static class Trace {
+
+        /** the queries, keyed by shape and the code that made them */
+        private final Map<String,TracedQuery> queries =
+                new LinkedHashMap<String,TracedQuery>();
+
+        /** the number of rows the queries read */
+        private int rows;
+    }
+
+    /**
+     * A query shape made from one place during a request.
+     */
+    private static class TracedQuery {
+
+        /** the query without its values */
+        private final String shape;
+
+        /** the code that made the query */
+        private final String site;
+
+        /** the controller, template or job the query was first made for */
+        private final String origin;
+
+        /** the distinct values the query was made with */
+        private final Set<String> values = new HashSet<String>();
+
+        /** the number of times the query was made */
+        private int count;
+
+        /**
+         * Constructs a query that hasn't been counted yet.
+         *
+         * @param theShape the query without its values
+         * @param theSite the code that made the query
+         * @param theOrigin the controller, template or job the query was
+         *      made for
+         */
+        TracedQuery(String theShape, String theSite, String theOrigin) {
+            this.shape = theShape;
+            this.site = theSite;
+            this.origin = theOrigin;
+        }
+
+        /**
+         * Returns the query and where it was made.
+         *
+         * @return the query and where it was made
+         */
+        @Override
+        public String toString() {
+            return this.shape + " at " + this.site + " from " + this.origin;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * File: RelativeTime.java
+ * Name: Peter Graham
+ * Class: CS 461
+ * Project 1
+ * Date: May 9
+ */
+package utilities;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import play.i18n.Lang;
+import play.i18n.Messages;
+
+/**
+ * Formats how long ago something happened, such as "5 minutes ago", in the
+ * current language.
+ *
+ * There are only so many different labels: one for each number of minutes
+ * in an hour, hours in a day, and days. Each label is formatted once per
+ * language and then reused, and the clock is read once per request, so
+ * formatting a page full of times allocates almost nothing.
+ *
+ * @author Peter Graham
+ */
+public class RelativeTime {
+
+    /** the number of milliseconds in a minute */
+    private static final long MINUTE = 60 * 1000L;
+
+    /** the most days ago whose labels are kept */
+    private static final int MAX_CACHED_DAYS = 3660;
+
+    /** the time of the current request, or null outside of a request */
+    private static final ThreadLocal<Long> requestTime =
+            new ThreadLocal<Long>();
+
+    /** the labels of each language, keyed by language code */
+    private static final Map<String,Labels> labelsByLanguage =
+            new ConcurrentHashMap<String,Labels>();
+
+    /**
+     * Read the clock for the current request, so every time rendered during
+     * the request is relative to the same moment.
+     */
+    public static void beginRequest() {
+        requestTime.set(System.currentTimeMillis());
+    }
+
+    /**
+     * Forget the time of the current request.
+     */
+    public static void endRequest() {
+        requestTime.remove();
+    }
+
+    /**
+     * Returns how long ago a time is in a readable format. If less than one
+     * minute ago, returns the message for "now". If 1 minute, returns the
+     * singular form of "minute". If 2-59 minutes ago, returns the plural form
+     * of "minute". Does the same so forth for hours and days if applicable.
+     *
+     * @param time the time in milliseconds to see how long ago it was
+     * @return a String of how long ago the time was
+     */
+    public static String format(long time) {
+        Long now = requestTime.get();
+        if(now == null) {
+            now = System.currentTimeMillis();
+        }
+        long diffmin = (now - time) / MINUTE;
+        String language = Lang.get();
+        if(language == null) {
+            language = "";
+        }
+        Labels labels = labelsByLanguage.get(language);
+        if(labels == null) {
+            labels = new Labels();
+            labelsByLanguage.put(language, labels);
+        }
+        if(diffmin <= 59) {
+            return labels.get(labels.minutes, (int) Math.max(diffmin, 0),
+                    "time.min", "time.mins");
+        }
+        long diffhour = diffmin / 60;
+        if(diffhour <= 23) {
+            return labels.get(labels.hours, (int) diffhour, "time.hour",
+                    "time.hours");
+        }
+        long diffday = diffhour / 24;
+        if(diffday < MAX_CACHED_DAYS) {
+            return labels.get(labels.days, (int) diffday, "time.day",
+                    "time.days");
+        }
+        return Messages.get("time", diffday, Messages.get("time.days"));
+    }
+
+    /**
+     * The labels of a single language, filled in as they are first needed.
+     * Two requests may format the same label at once, which is harmless since
+     * they format the same string.
+     */
+    private static class Labels {
+
+        /** the labels of 0-59 minutes ago, where 0 is "now" */
+        private final String[] minutes = new String[60];
+
+        /** the labels of 0-23 hours ago (0 is never used) */
+        private final String[] hours = new String[24];
+
+        /** the labels of days ago */
+        private final String[] days = new String[MAX_CACHED_DAYS];
+
+        /**
+         * Returns the label of an amount of a unit of time, formatting it if
+         * it hasn't been yet.
+         *
+         * @param cache the labels of the unit
+         * @param amount how many of the unit ago
+         * @param singularKey the message key of the unit when amount is 1
+         * @param pluralKey the message key of the unit otherwise
+         * @return the label
+         */
+        String get(String[] cache, int amount, String singularKey,
+                String pluralKey) {
+            String label = cache[amount];
+            if(label == null) {
+                if(amount == 0) {
+                    label = Messages.get("time.now");
+                }
+                else {
+                    label = Messages.get("time", (long) amount,
+                            Messages.get(amount == 1 ? singularKey
+                                    : pluralKey));
+                }
+                label = label.intern();
+                cache[amount] = label;
+            }
+            return label;
+        }
+    }
+}
@@ -0,0 +1,321 @@
+/*
+ * File: RequestMetrics.java
+ * Name: Peter Graham
+ * Class: CS 461
+ * Project 1
+ * Date: May 16
+ */
+package utilities;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Measures requests and datastore operations on this application instance,
+ * and writes the measurements in the Prometheus text format.
+ *
+ * Requests are timed from the before hook to the after hook of
+ * BaseController, and each action gets a histogram of its latencies and of
+ * the number of datastore operations its requests made. Datastore operations
+ * are also counted and timed by type, and registered caches report their
+ * hits and misses.
+ *
+ * @author Peter Graham
+ */
+public class RequestMetrics {
+
+    /** the prefix of every metric name */
+    private static final String PREFIX = "favmix_";
+
+    /** the upper bounds of the request latency buckets in seconds */
+    private static final double[] LATENCY_BUCKETS = {0.005, 0.01, 0.025,
+        0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+
+    /** the upper bounds of the datastore operations per request buckets */
+    private static final double[] OPS_BUCKETS = {0, 1, 2, 5, 10, 20, 50,
+        100, 200};
+
+    /** the datastore operations of the current request */
+    private static final ThreadLocal<RequestStats> current =
+            new ThreadLocal<RequestStats>();
+
+    /** the request latencies of each action, keyed by action */
+    private static final Map<String,Histogram> latencies =
+            new TreeMap<String,Histogram>();
+
+    /** the datastore operations per request of each action */
+    private static final Map<String,Histogram> opsPerRequest =
+            new TreeMap<String,Histogram>();
+
+    /** the number of datastore operations since startup, keyed by type */
+    private static final Map<String,Long> opCounts =
+            new TreeMap<String,Long>();
+
+    /** the nanoseconds spent on datastore operations, keyed by type */
+    private static final Map<String,Long> opNanos =
+            new TreeMap<String,Long>();
+
+    /** the caches that report hits and misses, keyed by name */
+    private static final Map<String,HitCounter> caches =
+            new LinkedHashMap<String,HitCounter>();
+
+    /**
+     * A cache that counts the lookups that found a value and that didn't.
+     */
+    public interface HitCounter {
+
+        /**
+         * Returns the number of lookups that found a value since startup.
+         *
+         * @return the number of hits
+         */
+        long getHits();
+
+        /**
+         * Returns the number of lookups that didn't find a value since
+         * startup.
+         *
+         * @return the number of misses
+         */
+        long getMisses();
+    }
+
+    /**
+     * Add a cache to the reported caches.
+     *
+     * @param name the name of the cache in metrics
+     * @param cache the cache
+     */
+    public static synchronized void registerCache(String name,
+            HitCounter cache) {
+        caches.put(name, cache);
+    }
+
+    /**
+     * Start timing the current request and counting its datastore
+     * operations.
+     */
+    public static void beginRequest() {
+        current.set(new RequestStats());
+    }
+
+    /**
+     * Stop timing the current request and record it under its action.
+     *
+     * @param action the action of the request, such as "Topic.showUpdates"
+     */
+    public static void endRequest(String action) {
+        RequestStats stats = current.get();
+        current.remove();
+        if(stats == null) {
+            return;
+        }
+        double seconds = (System.nanoTime() - stats.started) / 1e9;
+        synchronized(RequestMetrics.class) {
+            getHistogram(latencies, action, LATENCY_BUCKETS).observe(seconds);
+            getHistogram(opsPerRequest, action, OPS_BUCKETS)
+                    .observe(stats.ops);
+        }
+    }
+
+    /**
+     * Record a datastore operation.
+     *
+     * @param type the type of operation, such as "query" or "insert"
+     * @param nanos how long the operation took in nanoseconds
+     */
+    public static void recordOp(String type, long nanos) {
+        RequestStats stats = current.get();
+        if(stats != null) {
+            stats.ops++;
+        }
+        synchronized(RequestMetrics.class) {
+            Long count = opCounts.get(type);
+            opCounts.put(type, count == null ? 1 : count + 1);
+            Long total = opNanos.get(type);
+            opNanos.put(type, total == null ? nanos : total + nanos);
+        }
+    }
+
+    /**
+     * Returns all metrics in the Prometheus text format.
+     *
+     * @return the metrics as text
+     */
+    public static synchronized String toText() {
+        StringBuilder text = new StringBuilder();
+        writeHeader(text, "request_duration_seconds", "histogram",
+                "Time from the before hook to the after hook.");
+        for(Map.Entry<String,Histogram> entry : latencies.entrySet()) {
+            entry.getValue().write(text, "request_duration_seconds",
+                    "action=\"" + entry.getKey() + "\"");
+        }
+        writeHeader(text, "datastore_ops_per_request", "histogram",
+                "Datastore operations made by a request.");
+        for(Map.Entry<String,Histogram> entry : opsPerRequest.entrySet()) {
+            entry.getValue().write(text, "datastore_ops_per_request",
+                    "action=\"" + entry.getKey() + "\"");
+        }
+        writeHeader(text, "datastore_ops_total", "counter",
+                "Datastore operations since startup.");
+        for(Map.Entry<String,Long> entry : opCounts.entrySet()) {
+            writeSample(text, "datastore_ops_total",
+                    "op=\"" + entry.getKey() + "\"", entry.getValue());
+        }
+        writeHeader(text, "datastore_seconds_total", "counter",
+                "Time spent on datastore operations since startup.");
+        for(Map.Entry<String,Long> entry : opNanos.entrySet()) {
+            writeSample(text, "datastore_seconds_total",
+                    "op=\"" + entry.getKey() + "\"", entry.getValue() / 1e9);
+        }
+        writeHeader(text, "cache_hits_total", "counter",
+                "Cache lookups that found a value since startup.");
+        for(Map.Entry<String,HitCounter> entry : caches.entrySet()) {
+            writeSample(text, "cache_hits_total",
+                    "cache=\"" + entry.getKey() + "\"",
+                    entry.getValue().getHits());
+        }
+        writeHeader(text, "cache_misses_total", "counter",
+                "Cache lookups that didn't find a value since startup.");
+        for(Map.Entry<String,HitCounter> entry : caches.entrySet()) {
+            writeSample(text, "cache_misses_total",
+                    "cache=\"" + entry.getKey() + "\"",
+                    entry.getValue().getMisses());
+        }
+        writeHeader(text, "cache_hit_ratio", "gauge",
+                "Share of cache lookups that found a value since startup.");
+        for(Map.Entry<String,HitCounter> entry : caches.entrySet()) {
+            long hits = entry.getValue().getHits();
+            long lookups = hits + entry.getValue().getMisses();
+            writeSample(text, "cache_hit_ratio",
+                    "cache=\"" + entry.getKey() + "\"",
+                    lookups == 0 ? 0 : (double) hits / lookups);
+        }
+        return text.toString();
+    }
+
+    /**
+     * Returns the histogram of an action, adding it if there is none.
+     *
+     * @param histograms the histograms keyed by action
+     * @param action the action
+     * @param buckets the upper bounds of the buckets of a new histogram
+     * @return the histogram of the action
+     */
+    private static Histogram getHistogram(Map<String,Histogram> histograms,
+            String action, double[] buckets) {
+        Histogram histogram = histograms.get(action);
+        if(histogram == null) {
+            histogram = new Histogram(buckets);
+            histograms.put(action, histogram);
+        }
+        return histogram;
+    }
+
+    /**
+     * Write the help and type lines of a metric.
+     *
+     * @param text the text to write to
+     * @param name the name of the metric without the prefix
+     * @param type the type of the metric
+     * @param help what the metric measures
+     */
+    private static void writeHeader(StringBuilder text, String name,
+            String type, String help) {
+        text.append("# HELP ").append(PREFIX).append(name).append(' ')
+                .append(help).append('\n');
+        text.append("# TYPE ").append(PREFIX).append(name).append(' ')
+                .append(type).append('\n');
+    }
+
+    /**
+     * Write a sample of a metric.
+     *
+     * @param text the text to write to
+     * @param name the name of the metric without the prefix
+     * @param labels the labels of the sample, such as action="Info.about"
+     * @param value the value of the sample
+     */
+    private static void writeSample(StringBuilder text, String name,
+            String labels, Object value) {
+        text.append(PREFIX).append(name).append('{').append(labels)
+                .append("} ").append(value).append('\n');
+    }
+
+    /**
+     * The datastore operations made by a request so far, and when it started.
+     */
+    private static class RequestStats {
+
+        /** when the request started in nanoseconds */
+        private final long started = System.nanoTime();
+
+        /** the number of datastore operations made so far */
+        private int ops;
+    }
+
+    /**
+     * Counts observed values in buckets of values up to a bound.
+     */
+    private static class Histogram {
+
+        /** the upper bounds of the buckets */
+        private final double[] bounds;
+
+        /** the number of values in each bucket, not counting lower buckets */
+        private final long[] counts;
+
+        /** the sum of all values */
+        private double sum;
+
+        /** the number of values */
+        private long count;
+
+        /**
+         * Constructs an empty histogram.
+         *
+         * @param theBounds the upper bounds of the buckets, in order
+         */
+        Histogram(double[] theBounds) {
+            this.bounds = theBounds;
+            this.counts = new long[theBounds.length];
+        }
+
+        /**
+         * Count a value.
+         *
+         * @param value the value
+         */
+        void observe(double value) {
+            for(int i = 0; i < this.bounds.length; i++) {
+                if(value <= this.bounds[i]) {
+                    this.counts[i]++;
+                    break;
+                }
+            }
+            this.sum += value;
+            this.count++;
+        }
+
+        /**
+         * Write the samples of the histogram, with cumulative buckets.
+         *
+         * @param text the text to write to
+         * @param name the name of the metric without the prefix
+         * @param labels the labels of the histogram
+         */
+        void write(StringBuilder text, String name, String labels) {
+            long cumulative = 0;
+            for(int i = 0; i < this.bounds.length; i++) {
+                cumulative += this.counts[i];
+                writeSample(text, name + "_bucket", labels + ",le=\""
+                        + this.bounds[i] + "\"", cumulative);
+            }
+            writeSample(text, name + "_bucket", labels + ",le=\"+Inf\"",
+                    this.count);
+            writeSample(text, name + "_sum", labels, this.sum);
+            writeSample(text, name + "_count", labels, this.count);
+        }
+    }
+}
@@ -7,9 +7,7 @@
  */
 package utilities;
 
-import java.util.Stack;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.List;
 
 /**
  * A collection of simple HTML parsing/converting methods.
@@ -18,73 +16,145 @@ import java.util.regex.Pattern;
  */
 public class SimpleHTMLParser {
 
-    /**
-     * Converts the < and > symbols to &lt; and &gt; unless they belong to a 
-     * valid tag. Also convert " to &quot;.
-     *
-     * @param htmlString the String containing HTML to convert to entities.
-     * @return a string of the converted HTML.
-     */
-    public static String convertToEntities(String htmlString) {
-        String ltConverted = htmlString.replace("<", "&lt;");
-        String gtConverted = ltConverted.replace(">", "&gt;");
-        String converted = gtConverted.replace("\"","&quot;");
-        // convert back the valid tags
-        for(String validTag : Constants.VALID_DISCUSSION_TAGS) {
-            converted = converted.replace("&lt;"+validTag+"&gt;",
-                    "<"+validTag+">");
-            converted = converted.replace("&lt;/"+validTag+"&gt;",
-                    "</"+validTag+">");
+    /** the names of the tags users may use, as characters */
+    private static final char[][] TAG_NAMES;
+
+    static {
+        List<String> tags = Constants.VALID_DISCUSSION_TAGS;
+        TAG_NAMES = new char[tags.size()][];
+        for(int i = 0; i < tags.size(); i++) {
+            TAG_NAMES[i] = tags.get(i).toCharArray();
         }
-        return converted;
     }
 
-
     /**
-     * Closes tags as necessary if user doesn't specify closing HTML tags.
-     * Example: <i><u><b>hello</b> gets converted to <i><u><b>hello</b></u></i>
+     * Converts the < and > symbols to &lt; and &gt; unless they belong to a
+     * valid tag, converts " to &quot;, and closes valid tags the user didn't
+     * close. Example: <i><u><b>hello</b> gets converted to
+     * <i><u><b>hello</b></u></i>
+     *
+     * A valid tag may be written with either the symbols or their entities,
+     * so &lt;b&gt; is a tag too. A closing tag only closes the most recently
+     * opened tag, and is otherwise left as it is.
      *
      * Note: Doesn't necessarily produce valid HTML, but closing the tags
      * prevents the tag styling from bleeding into other sections of the HTML.
      *
-     * @param htmlString String of HTML and text to add closing tags to.
-     * @return String with tags closed.
+     * The string is read once, from start to end, so the time taken grows
+     * linearly with its length whatever tags it contains.
+     *
+     * @param htmlString the String containing HTML to convert
+     * @return a string of the converted HTML with tags closed
      */
-    public static String closeAllTags(String htmlString) {
-        // create a regex to match all valid discussion HTML tags
-        String validTagsRegex = "</?(";
-        for(int i=0; i<Constants.VALID_DISCUSSION_TAGS.size(); i++) {
-            if(i > 0) {
-                validTagsRegex += "|";
-            }
-            validTagsRegex += Constants.VALID_DISCUSSION_TAGS.get(i);
-        }
-        validTagsRegex += ")>";
-        Pattern validTagsPattern = Pattern.compile(validTagsRegex);
-        Matcher validTagsMatcher = validTagsPattern.matcher(htmlString);
-        // keep track of the HTML tags that have been opened but not closed yet
-        Stack<String> openedTags = new Stack<String>();
-        while (validTagsMatcher.find()) {
-            String match = validTagsMatcher.group();
-            for(String tag : Constants.VALID_DISCUSSION_TAGS) {
-                if(("<"+tag+">").equals(match)){
-                    // found an open tag
-                    openedTags.add(tag);
-                    break;
+    public static String sanitize(String htmlString) {
+        int length = htmlString.length();
+        StringBuilder result = new StringBuilder(length + (length >> 2) + 16);
+        // the tags that have been opened but not closed yet, as TAG_NAMES
+        // indexes, and how many there are
+        int[] openedTags = new int[8];
+        int numOpened = 0;
+        int i = 0;
+        while(i < length) {
+            int tagEnd = -1;
+            int tag = -1;
+            boolean closing = false;
+            int nameStart = matchBracket(htmlString, i, '<', "&lt;");
+            if(nameStart > 0) {
+                closing = nameStart < length
+                        && htmlString.charAt(nameStart) == '/';
+                if(closing) {
+                    nameStart++;
                 }
-                else if(("</"+tag+">").equals(match)) {
-                    if(!openedTags.empty() && openedTags.peek().equals(tag)) {
-                        // tag was closed properly
-                        openedTags.pop();
-                        break;
+                for(int t = 0; t < TAG_NAMES.length && tagEnd < 0; t++) {
+                    if(matchName(htmlString, nameStart, TAG_NAMES[t])) {
+                        tagEnd = matchBracket(htmlString,
+                                nameStart + TAG_NAMES[t].length, '>', "&gt;");
+                        tag = t;
                     }
                 }
             }
+            if(tagEnd < 0) {
+                // not a valid tag, so escape a single character
+                char c = htmlString.charAt(i);
+                if(c == '<') {
+                    result.append("&lt;");
+                }
+                else if(c == '>') {
+                    result.append("&gt;");
+                }
+                else if(c == '"') {
+                    result.append("&quot;");
+                }
+                else {
+                    result.append(c);
+                }
+                i++;
+                continue;
+            }
+            result.append(closing ? "</" : "<").append(TAG_NAMES[tag])
+                    .append('>');
+            if(!closing) {
+                if(numOpened == openedTags.length) {
+                    int[] moreTags = new int[numOpened * 2];
+                    System.arraycopy(openedTags, 0, moreTags, 0, numOpened);
+                    openedTags = moreTags;
+                }
+                openedTags[numOpened++] = tag;
+            }
+            else if(numOpened > 0 && openedTags[numOpened - 1] == tag) {
+                // tag was closed properly
+                numOpened--;
+            }
+            i = tagEnd;
         }
         // add unclosed tags to end of HTML string
-        while(!openedTags.empty()) {
-            htmlString += ("</"+openedTags.pop()+">");
+        while(numOpened > 0) {
+            result.append("</").append(TAG_NAMES[openedTags[--numOpened]])
+                    .append('>');
+        }
+        return result.toString();
+    }
+
+    /**
+     * Checks if a bracket, or the entity of the bracket, starts at an index.
+     *
+     * @param s the string to check
+     * @param index the index to check at
+     * @param bracket the bracket
+     * @param entity the entity of the bracket
+     * @return the index after the bracket, or -1 if there is none
+     */
+    private static int matchBracket(String s, int index, char bracket,
+            String entity) {
+        if(index >= s.length()) {
+            return -1;
+        }
+        if(s.charAt(index) == bracket) {
+            return index + 1;
+        }
+        if(s.startsWith(entity, index)) {
+            return index + entity.length();
+        }
+        return -1;
+    }
+
+    /**
+     * Checks if a tag name starts at an index.
+     *
+     * @param s the string to check
+     * @param index the index to check at
+     * @param name the tag name
+     * @return true if the name starts at the index, otherwise false
+     */
+    private static boolean matchName(String s, int index, char[] name) {
+        if(index + name.length > s.length()) {
+            return false;
+        }
+        for(int i = 0; i < name.length; i++) {
+            if(s.charAt(index + i) != name[i]) {
+                return false;
+            }
         }
-        return htmlString;
+        return true;
     }
-}
\ No newline at end of file
+}
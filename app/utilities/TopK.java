@@ -0,0 +1,198 @@
+/*
+ * File: TopK.java
+ * Name: Peter Graham
+ * Class: CS 461
+ * Project 1
+ * Date: May 9
+ */
+package utilities;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Selects the highest scoring items out of any number offered, without
+ * keeping or sorting the rest. Items are kept in a heap of fixed size with
+ * the lowest kept item on top, so offering n items takes O(n log k) time and
+ * O(k) memory. Ties in score go to the item with the lowest ID, so the result
+ * doesn't depend on the order items were offered in.
+ *
+ * @author Peter Graham
+ */
+public class TopK<T> {
+
+    /** the scores of the kept items, as a heap */
+    private final int[] scores;
+
+    /** the IDs of the kept items, in the same heap positions */
+    private final long[] ids;
+
+    /** the kept items, in the same heap positions */
+    private final Object[] items;
+
+    /** the number of kept items */
+    private int size;
+
+    /**
+     * Constructs an empty selection.
+     *
+     * @param k the most items to keep
+     */
+    public TopK(int k) {
+        this.scores = new int[k];
+        this.ids = new long[k];
+        this.items = new Object[k];
+    }
+
+    /**
+     * Offer an item, keeping it if it's among the k best so far.
+     *
+     * @param item the item
+     * @param score the score of the item, higher is better
+     * @param id the unique ID of the item, to break ties
+     */
+    public void offer(T item, int score, long id) {
+        if(this.size < this.scores.length) {
+            this.set(this.size, item, score, id);
+            this.siftUp(this.size++);
+        }
+        else if(this.size > 0 && isBetter(score, id, this.scores[0],
+                this.ids[0])) {
+            // replace the worst kept item
+            this.set(0, item, score, id);
+            this.siftDown(0);
+        }
+    }
+
+    /**
+     * Returns the kept items, best first. Leaves the selection empty.
+     *
+     * @return the kept items in order of highest score first
+     */
+    @SuppressWarnings("unchecked")
+    public List<T> toList() {
+        Object[] ordered = new Object[this.size];
+        // taking the worst item off the heap each time fills from the back
+        for(int i = this.size - 1; i >= 0; i--) {
+            ordered[i] = this.items[0];
+            this.size--;
+            this.move(this.size, 0);
+            this.items[this.size] = null;
+            this.siftDown(0);
+        }
+        List<T> result = new ArrayList<T>(ordered.length);
+        for(Object item : ordered) {
+            result.add((T) item);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of kept items.
+     *
+     * @return the number of kept items
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Checks if one item ranks above another.
+     *
+     * @param score the score of the first item
+     * @param id the ID of the first item
+     * @param otherScore the score of the second item
+     * @param otherId the ID of the second item
+     * @return true if the first item ranks above the second item
+     */
+    private static boolean isBetter(int score, long id, int otherScore,
+            long otherId) {
+        if(score != otherScore) {
+            return score > otherScore;
+        }
+        return id < otherId;
+    }
+
+    /**
+     * Move the item at a heap position up until its parent ranks below it.
+     *
+     * @param position the heap position of the item
+     */
+    private void siftUp(int position) {
+        while(position > 0) {
+            int parent = (position - 1) / 2;
+            if(!isBetter(this.scores[parent], this.ids[parent],
+                    this.scores[position], this.ids[position])) {
+                return;
+            }
+            this.swap(parent, position);
+            position = parent;
+        }
+    }
+
+    /**
+     * Move the item at a heap position down until its children rank above
+     * it.
+     *
+     * @param position the heap position of the item
+     */
+    private void siftDown(int position) {
+        while(true) {
+            int worst = position;
+            for(int child = 2 * position + 1; child <= 2 * position + 2
+                    && child < this.size; child++) {
+                if(isBetter(this.scores[worst], this.ids[worst],
+                        this.scores[child], this.ids[child])) {
+                    worst = child;
+                }
+            }
+            if(worst == position) {
+                return;
+            }
+            this.swap(worst, position);
+            position = worst;
+        }
+    }
+
+    /**
+     * Put an item at a heap position.
+     *
+     * @param position the heap position
+     * @param item the item
+     * @param score the score of the item
+     * @param id the ID of the item
+     */
+    private void set(int position, T item, int score, long id) {
+        this.items[position] = item;
+        this.scores[position] = score;
+        this.ids[position] = id;
+    }
+
+    /**
+     * Copy the item at one heap position to another.
+     *
+     * @param from the heap position to copy from
+     * @param to the heap position to copy to
+     */
+    private void move(int from, int to) {
+        this.items[to] = this.items[from];
+        this.scores[to] = this.scores[from];
+        this.ids[to] = this.ids[from];
+    }
+
+    /**
+     * Swap the items at two heap positions.
+     *
+     * @param a the first heap position
+     * @param b the second heap position
+     */
+    private void swap(int a, int b) {
+        Object item = this.items[a];
+        int score = this.scores[a];
+        long id = this.ids[a];
+        this.move(b, a);
+        this.items[b] = item;
+        this.scores[b] = score;
+        this.ids[b] = id;
+    }
+}
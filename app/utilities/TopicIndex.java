@@ -0,0 +1,348 @@
+/*
+ * File: TopicIndex.java
+ * Name: Peter Graham
+ * Class: CS 461
+ * Project 1
+ * Date: May 8
+ */
+package utilities;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An in-memory index of topic names for prefix and typo-tolerant lookups.
+ *
+ * Names are stored lowercased in a trie. Every node keeps the most followed
+ * topics whose names start with that node's prefix, so a prefix lookup only
+ * walks the characters of the prefix no matter how many topics there are. A
+ * fuzzy lookup walks every prefix within one edit (insert, delete, replace,
+ * or swap of two neighbouring characters) of the query, which is at most a
+ * few hundred nodes for the characters allowed in topic names.
+ *
+ * @author Peter Graham
+ */
+public class TopicIndex {
+
+    /** how many topics each node keeps */
+    private final int topPerNode;
+
+    /** the node of the empty prefix */
+    private final Node root = new Node();
+
+    /** the indexed topics keyed by topic ID */
+    private final Map<Long,Match> matches = new HashMap<Long,Match>();
+
+    /**
+     * Constructs an empty index.
+     *
+     * @param theTopPerNode the most topics a lookup can return
+     */
+    public TopicIndex(int theTopPerNode) {
+        this.topPerNode = theTopPerNode;
+    }
+
+    /**
+     * Add a topic to the index, or update its follower count if it was already
+     * added. A topic whose count drops stays listed under its prefixes until
+     * the index is rebuilt, even if an unlisted topic now has more followers.
+     *
+     * @param id the unique ID of the topic
+     * @param name the name of the topic
+     * @param followers the number of users following the topic
+     */
+    public synchronized void put(Long id, String name, int followers) {
+        Match match = this.matches.get(id);
+        if(match == null) {
+            match = new Match(id, name, followers);
+            this.matches.put(id, match);
+        }
+        else {
+            match.followers = followers;
+        }
+        String key = name.toLowerCase();
+        Node node = this.root;
+        node.offer(match, this.topPerNode);
+        for(int i = 0; i < key.length(); i++) {
+            node = node.childOrCreate(key.charAt(i));
+            node.offer(match, this.topPerNode);
+        }
+    }
+
+    /**
+     * Returns the number of indexed topics.
+     *
+     * @return the number of indexed topics
+     */
+    public synchronized int size() {
+        return this.matches.size();
+    }
+
+    /**
+     * Find the most followed topics whose names start with the query. If there
+     * are fewer than howMany, fill up with the most followed topics whose
+     * names start with a prefix one typo away from the query.
+     *
+     * @param query the start of a topic name, in any case
+     * @param howMany how many topics to return, at most the number each node
+     *      keeps
+     * @return the matching topics, prefix matches first, each by most
+     *      followers
+     */
+    public synchronized List<Match> search(String query, int howMany) {
+        String key = query.toLowerCase();
+        Map<Long,Match> found = new LinkedHashMap<Long,Match>();
+        Node exact = this.find(key);
+        if(exact != null) {
+            for(Match match : exact.top) {
+                if(found.size() >= howMany) {
+                    break;
+                }
+                found.put(match.id, match);
+            }
+        }
+        if(found.size() < howMany && key.length() > 0) {
+            List<Node> nodes = new ArrayList<Node>();
+            this.collectFuzzy(this.root, key, 0, false, nodes);
+            TopK<Match> fuzzy = new TopK<Match>(howMany - found.size());
+            Set<Long> offered = new HashSet<Long>(found.keySet());
+            for(Node node : nodes) {
+                for(Match match : node.top) {
+                    if(offered.add(match.id)) {
+                        fuzzy.offer(match, match.followers, match.id);
+                    }
+                }
+            }
+            for(Match match : fuzzy.toList()) {
+                found.put(match.id, match);
+            }
+        }
+        return new ArrayList<Match>(found.values());
+    }
+
+    /**
+     * Returns the node of a prefix.
+     *
+     * @param key the lowercased prefix
+     * @return the node of the prefix, or null if no name starts with it
+     */
+    private Node find(String key) {
+        Node node = this.root;
+        for(int i = 0; i < key.length() && node != null; i++) {
+            node = node.child(key.charAt(i));
+        }
+        return node;
+    }
+
+    /**
+     * Add the nodes of the prefixes exactly one edit away from the rest of a
+     * query to a list.
+     *
+     * @param node the node reached so far
+     * @param key the lowercased query
+     * @param i how much of the query has been matched so far
+     * @param edited whether the edit has already been used
+     * @param result the list to add nodes to
+     */
+    private void collectFuzzy(Node node, String key, int i, boolean edited,
+            List<Node> result) {
+        if(i == key.length()) {
+            if(edited) {
+                result.add(node);
+            }
+            return;
+        }
+        char c = key.charAt(i);
+        Node next = node.child(c);
+        if(next != null) {
+            this.collectFuzzy(next, key, i + 1, edited, result);
+        }
+        if(edited) {
+            return;
+        }
+        // the query has an extra character
+        this.collectFuzzy(node, key, i + 1, true, result);
+        for(int j = 0; j < node.keys.length; j++) {
+            if(node.keys[j] != c) {
+                // the query has a wrong character
+                this.collectFuzzy(node.children[j], key, i + 1, true, result);
+            }
+            // the query is missing a character
+            this.collectFuzzy(node.children[j], key, i, true, result);
+        }
+        if(i + 1 < key.length() && key.charAt(i + 1) != c) {
+            // the query has two characters the wrong way around
+            Node swapped = node.child(key.charAt(i + 1));
+            if(swapped != null) {
+                swapped = swapped.child(c);
+            }
+            if(swapped != null) {
+                this.collectFuzzy(swapped, key, i + 2, true, result);
+            }
+        }
+    }
+
+    /**
+     * A topic found by a lookup. Ordered by most followers first, then by
+     * lowest ID, the same as TopK.
+     */
+    public static class Match implements Comparable<Match> {
+
+        /** the unique ID of the topic */
+        private final Long id;
+
+        /** the name of the topic */
+        private final String name;
+
+        /** the number of users following the topic */
+        private int followers;
+
+        /**
+         * Constructs a match.
+         *
+         * @param theId the unique ID of the topic
+         * @param theName the name of the topic
+         * @param theFollowers the number of users following the topic
+         */
+        Match(Long theId, String theName, int theFollowers) {
+            this.id = theId;
+            this.name = theName;
+            this.followers = theFollowers;
+        }
+
+        /**
+         * Returns the unique ID of the topic.
+         *
+         * @return the unique ID of the topic
+         */
+        public Long getId() {
+            return this.id;
+        }
+
+        /**
+         * Returns the name of the topic.
+         *
+         * @return the name of the topic
+         */
+        public String getName() {
+            return this.name;
+        }
+
+        /**
+         * Returns the number of users following the topic.
+         *
+         * @return the number of followers
+         */
+        public int getFollowers() {
+            return this.followers;
+        }
+
+        /**
+         * Compares matches by followers descending, then by ID.
+         *
+         * @param other the match to compare to
+         * @return the ordering of this match relative to the other match
+         */
+        public int compareTo(Match other) {
+            if(this.followers != other.followers) {
+                return this.followers > other.followers ? -1 : 1;
+            }
+            return this.id.compareTo(other.id);
+        }
+    }
+
+    /**
+     * A prefix in the trie. There is a node for every character of every
+     * name, so children and topics are kept in exactly sized arrays rather
+     * than maps or lists, since most nodes have only one of each.
+     */
+    private static class Node {
+
+        /** the keys of a node without children */
+        private static final char[] NO_KEYS = new char[0];
+
+        /** the children of a node without children */
+        private static final Node[] NO_CHILDREN = new Node[0];
+
+        /** the topics of a node without topics */
+        private static final Match[] NO_MATCHES = new Match[0];
+
+        /** the next character of each child */
+        private char[] keys = NO_KEYS;
+
+        /** the child for each character in keys */
+        private Node[] children = NO_CHILDREN;
+
+        /** the most followed topics under this prefix, in order */
+        private Match[] top = NO_MATCHES;
+
+        /**
+         * Returns the child for a character.
+         *
+         * @param c the next character
+         * @return the child, or null if there is none
+         */
+        Node child(char c) {
+            for(int i = 0; i < this.keys.length; i++) {
+                if(this.keys[i] == c) {
+                    return this.children[i];
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Returns the child for a character, adding it if there is none.
+         *
+         * @param c the next character
+         * @return the child
+         */
+        Node childOrCreate(char c) {
+            Node child = this.child(c);
+            if(child == null) {
+                int n = this.keys.length;
+                char[] newKeys = new char[n + 1];
+                Node[] newChildren = new Node[n + 1];
+                System.arraycopy(this.keys, 0, newKeys, 0, n);
+                System.arraycopy(this.children, 0, newChildren, 0, n);
+                child = new Node();
+                newKeys[n] = c;
+                newChildren[n] = child;
+                this.keys = newKeys;
+                this.children = newChildren;
+            }
+            return child;
+        }
+
+        /**
+         * Put a topic in its place among the most followed topics of this
+         * prefix, if it belongs there.
+         *
+         * @param match the topic
+         * @param limit how many topics this node keeps
+         */
+        void offer(Match match, int limit) {
+            List<Match> matches = new ArrayList<Match>(this.top.length + 1);
+            for(Match other : this.top) {
+                if(other != match) {
+                    matches.add(other);
+                }
+            }
+            int position = 0;
+            while(position < matches.size()
+                    && matches.get(position).compareTo(match) < 0) {
+                position++;
+            }
+            matches.add(position, match);
+            if(matches.size() > limit) {
+                matches.remove(matches.size() - 1);
+            }
+            this.top = matches.toArray(NO_MATCHES);
+        }
+    }
+}
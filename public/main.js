@@ -20,6 +20,9 @@ $(document).ready(function() {
     
     // AJAX vote when you click the heart icon
     $(".likeit").click(onVoteClick);
+    
+    // suggest topic names while typing a search
+    $("#searchbar").keyup(onSearchKeyUp);
 });
 
 /*
@@ -105,6 +108,26 @@ function voteOn(updateId) {
     }
     // set the new count text
     curCount.text(newCount);
-    //ajax vote submit
-    $.ajax({url:'/vote/'+updateId.substr(1)+'?ajax=1'});
-}
\ No newline at end of file
+    //ajax vote submit, then show the state the server acknowledged
+    $.getJSON('/vote/'+updateId.substr(1)+'?ajax=1', function(result) {
+        curCount.text(result.count);
+        voteButton.toggleClass("clicked", result.voted);
+    });
+}
+
+/*
+Suggest topic names that start with what has been typed in the search bar.
+*/
+function onSearchKeyUp() {
+    var query = $.trim($(this).val());
+    if(query.length == 0 || query == $(this).data("suggested")) {
+        return;
+    }
+    $(this).data("suggested", query);
+    $.getJSON("/suggest", {q: query}, function(suggestions) {
+        var list = $("#suggestions").empty();
+        $.each(suggestions, function(i, suggestion) {
+            $("<option>").attr("value", suggestion.name).appendTo(list);
+        });
+    });
+}
@@ -0,0 +1,194 @@
+/*
+ * File: RequestContextTest.java
+ * Name: Peter Graham
+ * Class: CS 461
+ * Project 1
+ * Date: May 19
+ */
+package controllers;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import models.UserModel;
+import org.junit.Before;
+import org.junit.Test;
+import play.Play;
+import play.mvc.Http;
+import play.test.FunctionalTest;
+import utilities.LoadTestClient;
+import utilities.ValidationException;
+
+/**
+ * Stress tests that concurrent requests never see each other's logged in
+ * user. Needs the test server to serve requests on more than one thread, as
+ * set by %test.play.pool in application.conf.
+ *
+ * @author Peter Graham
+ */
+public class RequestContextTest extends FunctionalTest {
+
+    /** the number of users making requests at the same time */
+    private static final int USERS = 8;
+
+    /** the number of requests each user makes */
+    private static final int REQUESTS = 50;
+
+    /** the password of every test user */
+    private static final String PASSWORD = "password";
+
+    /** the most seconds to wait for all users to finish */
+    private static final int TIMEOUT = 120;
+
+    /** the test users, in order */
+    private final List<UserModel> users = new ArrayList<UserModel>();
+
+    /**
+     * Create the test users, unless an earlier test already did.
+     *
+     * @throws ValidationException if a test user is invalid
+     */
+    @Before
+    public void createUsers() throws ValidationException {
+        UserModel userModel = new UserModel();
+        this.users.clear();
+        for(int i = 0; i < USERS; i++) {
+            if(userModel.findByEmail(getEmail(i)) == null) {
+                userModel.createUser(getEmail(i), PASSWORD);
+            }
+            this.users.add(userModel.findByEmail(getEmail(i)));
+        }
+    }
+
+    /**
+     * Log in as every user at once over HTTP, and check that every page each
+     * user is served shows their own email address and nobody else's.
+     *
+     * @throws Exception if a request fails
+     */
+    @Test
+    public void concurrentRequestsSeeTheirOwnUser() throws Exception {
+        final String baseUrl = "http://localhost:"
+                + Play.configuration.getProperty("http.port", "9000");
+        final CyclicBarrier start = new CyclicBarrier(USERS);
+        List<Callable<String>> tasks = new ArrayList<Callable<String>>();
+        for(int i = 0; i < USERS; i++) {
+            final int user = i;
+            tasks.add(new Callable<String>() {
+                public String call() throws Exception {
+                    LoadTestClient client = new LoadTestClient(baseUrl);
+                    client.post("/Account/onLoginSubmit", "email",
+                            getEmail(user), "password", PASSWORD);
+                    start.await();
+                    for(int r = 0; r < REQUESTS; r++) {
+                        client.get("/Account/settings");
+                        String wrongUser = findWrongUser(client.getBody(),
+                                user);
+                        if(wrongUser != null) {
+                            return wrongUser;
+                        }
+                    }
+                    return null;
+                }
+            });
+        }
+        assertNoneFailed(tasks);
+    }
+
+    /**
+     * Set up a request context for every user on its own thread at once, and
+     * check that getUser() always returns the user of that thread's request.
+     *
+     * @throws Exception if a thread fails
+     */
+    @Test
+    public void requestContextIsPerRequest() throws Exception {
+        final CyclicBarrier start = new CyclicBarrier(USERS);
+        List<Callable<String>> tasks = new ArrayList<Callable<String>>();
+        for(int i = 0; i < USERS; i++) {
+            final UserModel user = this.users.get(i);
+            tasks.add(new Callable<String>() {
+                public String call() throws Exception {
+                    Http.Request.current.set(new Http.Request());
+                    try {
+                        RequestContext.init(user);
+                        start.await();
+                        for(int r = 0; r < REQUESTS * 100; r++) {
+                            UserModel seen = BaseController.getUser();
+                            if(seen != user) {
+                                return "request of " + user.getEmail()
+                                        + " saw " + (seen == null ? null
+                                        : seen.getEmail());
+                            }
+                            Thread.yield();
+                        }
+                        return null;
+                    }
+                    finally {
+                        Http.Request.current.remove();
+                    }
+                }
+            });
+        }
+        assertNoneFailed(tasks);
+    }
+
+    /**
+     * Run tasks on a thread each, and fail if any of them returns a failure.
+     *
+     * @param tasks the tasks, which return a description of what went wrong,
+     *      or null if nothing did
+     * @throws Exception if a task throws
+     */
+    private static void assertNoneFailed(List<Callable<String>> tasks)
+            throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(tasks.size());
+        try {
+            List<Future<String>> results = executor.invokeAll(tasks, TIMEOUT,
+                    TimeUnit.SECONDS);
+            for(Future<String> result : results) {
+                assertFalse("timed out", result.isCancelled());
+                String failure = result.get();
+                assertNull(failure, failure);
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Find a sign in a settings page that it was rendered for the wrong user.
+     *
+     * @param page the HTML of the page
+     * @param user the number of the user who requested the page
+     * @return a description of what's wrong, or null if the page shows only
+     *      the user's own email address
+     */
+    private static String findWrongUser(String page, int user) {
+        if(!page.contains("value=\"" + getEmail(user) + "\"")) {
+            return getEmail(user) + " wasn't shown their own settings";
+        }
+        for(int i = 0; i < USERS; i++) {
+            if(i != user && page.contains(getEmail(i))) {
+                return getEmail(user) + " was shown " + getEmail(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the email address of a test user.
+     *
+     * @param i the number of the user
+     * @return the email address of the user
+     */
+    private static String getEmail(int i) {
+        return "context" + i + "@example.com";
+    }
+}
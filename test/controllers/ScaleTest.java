@@ -0,0 +1,392 @@
+/*
+ * File: ScaleTest.java
+ * Name: Peter Graham
+ * Class: CS 461
+ * Project 1
+ * Date: May 19
+ */
+package controllers;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import models.TimelineModel;
+import models.TopicModel;
+import models.UpdateModel;
+import models.UserModel;
+import models.VoteCounterModel;
+import models.VoteModel;
+import org.junit.Test;
+import play.Play;
+import play.test.FunctionalTest;
+import siena.Model;
+import utilities.Constants;
+import utilities.DataVersions;
+import utilities.LoadTestClient;
+import utilities.ValidationException;
+
+/**
+ * Checks that what each kind of page costs doesn't grow with the amount of
+ * data. The datastore is seeded up to each scale in turn, 1000 then 10000
+ * updates and votes by default, and every kind of page is requested at each
+ * scale. The number of datastore queries and rows read by each page, which
+ * are sent in headers when queries are traced, must not grow by more than
+ * the tolerance percent from the smallest scale.
+ *
+ * The scales and tolerance are set in application.conf as scaletest.scales
+ * and scaletest.tolerance. Larger scales, such as 100000 and 1000000, take
+ * far too long for every test run, so they are only seeded when set there.
+ * Updates, votes, vote counters and timeline entries are seeded with batch
+ * inserts of what creating them one by one would have stored, since posting
+ * a million updates through the models would take hours.
+ *
+ * @author Peter Graham
+ */
+public class ScaleTest extends FunctionalTest {
+
+    /** the scales seeded if none are set */
+    private static final String DEFAULT_SCALES = "1000,10000";
+
+    /** the percent a page's cost may grow by if no tolerance is set */
+    private static final int DEFAULT_TOLERANCE = 10;
+
+    /** the password of every seeded user */
+    private static final String PASSWORD = "password";
+
+    /** the number of seeded users */
+    private static final int USERS = 20;
+
+    /** the fewest topics seeded for a scale, so every page is full */
+    private static final int MIN_TOPICS = 20;
+
+    /** the number of topics each seeded user follows */
+    private static final int FOLLOWS = 5;
+
+    /** the most entities inserted by a single datastore call */
+    private static final int SEED_BATCH = 500;
+
+    /** the number of times each page is requested at each scale */
+    private static final int REQUESTS = 3;
+
+    /** the seeded users, in order */
+    private final List<UserModel> users = new ArrayList<UserModel>();
+
+    /** the seeded topics, in order */
+    private final List<TopicModel> topics = new ArrayList<TopicModel>();
+
+    /** the IDs of the users following each seeded topic, by topic ID */
+    private final Map<Long,List<Long>> followers =
+            new HashMap<Long,List<Long>>();
+
+    /** the random choices of seeding, the same on every run */
+    private final Random random = new Random(0);
+
+    /** the number of updates seeded so far */
+    private int seededUpdates;
+
+    /** the number of votes seeded so far */
+    private int seededVotes;
+
+    /**
+     * Seed the datastore up to each scale in turn, and check that the number
+     * of queries and rows read by each page stays the same as at the smallest
+     * scale.
+     *
+     * @throws Exception if seeding or a request fails
+     */
+    @Test
+    public void pageCostDoesNotGrowWithData() throws Exception {
+        int tolerance = Integer.parseInt(Play.configuration.getProperty(
+                "scaletest.tolerance", String.valueOf(DEFAULT_TOLERANCE))
+                .trim());
+        Map<String,int[]> smallest = new LinkedHashMap<String,int[]>();
+        List<String> failures = new ArrayList<String>();
+        for(String scaleSetting : Play.configuration.getProperty(
+                "scaletest.scales", DEFAULT_SCALES).split(",")) {
+            int scale = Integer.parseInt(scaleSetting.trim());
+            this.seedUpTo(Math.max(MIN_TOPICS, scale / 1000), scale, scale);
+            for(ScalePage page : this.getScalePages()) {
+                int[] cost = this.measure(page);
+                int[] base = smallest.get(page.name);
+                if(base == null) {
+                    smallest.put(page.name, cost);
+                }
+                else if(hasGrown(base[0], cost[0], tolerance)
+                        || hasGrown(base[1], cost[1], tolerance)) {
+                    failures.add(page.name + " at " + scale + " made "
+                            + cost[0] + " queries reading " + cost[1]
+                            + " rows, up from " + base[0] + " reading "
+                            + base[1]);
+                }
+            }
+        }
+        StringBuilder summary = new StringBuilder("Page cost grew with data:");
+        for(String failure : failures) {
+            summary.append("\n    ").append(failure);
+        }
+        assertTrue(summary.toString(), failures.isEmpty());
+    }
+
+    /**
+     * Seed the datastore with more topics, updates and votes, until there are
+     * as many as given, along with the users and follows the first time. Each
+     * new update is posted by a user at random to a topic at random, and gets
+     * its share of the new votes, cast by users at random. A vote a user
+     * already cast is skipped, so there may be a few fewer votes than given.
+     *
+     * @param numTopics the number of topics to seed up to
+     * @param numUpdates the number of updates to seed up to
+     * @param numVotes the number of votes to seed up to
+     * @throws ValidationException if a seeded user or topic is invalid
+     */
+    private void seedUpTo(int numTopics, int numUpdates, int numVotes)
+            throws ValidationException {
+        UserModel userModel = new UserModel();
+        for(int i = this.users.size(); i < USERS; i++) {
+            userModel.createUser(getEmail(i), PASSWORD);
+            this.users.add(userModel.findByEmail(getEmail(i)));
+        }
+        TopicModel topicModel = new TopicModel();
+        boolean firstTopics = this.topics.isEmpty();
+        for(int i = this.topics.size(); i < numTopics; i++) {
+            UserModel creator = this.users.get(i % USERS);
+            topicModel.createTopic(getTopicName(i), creator);
+            TopicModel topic = topicModel.findByName(getTopicName(i));
+            this.topics.add(topic);
+            this.followers.put(topic.getId(), new ArrayList<Long>(
+                    Arrays.asList(creator.getId())));
+        }
+        if(firstTopics) {
+            for(UserModel user : this.users) {
+                for(int i = 0; i < FOLLOWS; i++) {
+                    TopicModel topic = this.topics.get(
+                            this.random.nextInt(this.topics.size()));
+                    List<Long> topicFollowers = this.followers.get(
+                            topic.getId());
+                    if(!topicFollowers.contains(user.getId())) {
+                        user.followTopic(topic);
+                        topicFollowers.add(user.getId());
+                    }
+                }
+            }
+        }
+        int oldUpdates = this.seededUpdates;
+        int oldVotes = this.seededVotes;
+        while(this.seededUpdates < numUpdates) {
+            int batch = Math.min(SEED_BATCH, numUpdates - this.seededUpdates);
+            List<UpdateModel> updates = new ArrayList<UpdateModel>();
+            for(int i = 0; i < batch; i++) {
+                updates.add(new UpdateModel(this.users.get(
+                        this.random.nextInt(USERS)), this.topics.get(
+                        this.random.nextInt(this.topics.size())),
+                        "Scale test update " + this.seededUpdates++, null));
+            }
+            Model.batch(UpdateModel.class).insert(updates);
+            // the new updates' share of the new votes
+            long votesDue = oldVotes + (long) (numVotes - oldVotes)
+                    * (this.seededUpdates - oldUpdates)
+                    / (numUpdates - oldUpdates);
+            this.seedVotes(updates, (int) votesDue - this.seededVotes);
+            this.seedTimelines(updates);
+        }
+        // pages read the leaderboards, which start empty for batch inserts
+        UpdateModel.loadLeaderboards();
+        DataVersions.touch(DataVersions.UPDATES);
+        DataVersions.touch(DataVersions.TOPICS);
+    }
+
+    /**
+     * Cast votes on updates by users at random, along with the vote counters
+     * of the updates, in batch inserts.
+     *
+     * @param updates the updates to vote on
+     * @param howMany the number of votes to cast
+     */
+    private void seedVotes(List<UpdateModel> updates, int howMany) {
+        List<VoteModel> votes = new ArrayList<VoteModel>();
+        Map<UpdateModel,Integer> counts = new HashMap<UpdateModel,Integer>();
+        Set<String> voted = new HashSet<String>();
+        for(int i = 0; i < howMany; i++) {
+            UpdateModel update = updates.get(this.random.nextInt(
+                    updates.size()));
+            UserModel user = this.users.get(this.random.nextInt(USERS));
+            if(voted.add(user.getId() + ":" + update.getId())) {
+                votes.add(new VoteModel(user, update));
+                Integer count = counts.get(update);
+                counts.put(update, count == null ? 1 : count + 1);
+            }
+            this.seededVotes++;
+        }
+        List<VoteCounterModel> counters = new ArrayList<VoteCounterModel>();
+        for(Map.Entry<UpdateModel,Integer> count : counts.entrySet()) {
+            counters.add(new VoteCounterModel(count.getKey().getId(), 0,
+                    count.getValue()));
+        }
+        insertAll(VoteModel.class, votes);
+        insertAll(VoteCounterModel.class, counters);
+    }
+
+    /**
+     * Add updates to the timelines of the followers of their topics, in
+     * batch inserts.
+     *
+     * @param updates the updates to add
+     */
+    private void seedTimelines(List<UpdateModel> updates) {
+        List<TimelineModel> entries = new ArrayList<TimelineModel>();
+        for(UpdateModel update : updates) {
+            for(Long userId : this.followers.get(update.getParentTopicId())) {
+                entries.add(new TimelineModel(userId, update));
+            }
+        }
+        insertAll(TimelineModel.class, entries);
+    }
+
+    /**
+     * Returns the pages requested at each scale, one of each kind of page a
+     * user or guest can see.
+     *
+     * @return the pages
+     */
+    private List<ScalePage> getScalePages() {
+        List<UpdateModel> newest = new UpdateModel().findNewest(1, 0);
+        String topic = getTopicName(0);
+        return Arrays.asList(
+                new ScalePage("guest homepage", "/", true),
+                new ScalePage("guest topic", "/view/" + topic
+                        + "/popular24h/0", true),
+                new ScalePage("you popular", "/view/you/popular24h/0", false),
+                new ScalePage("you recent", "/view/you/recent/0", false),
+                new ScalePage("everyone popular",
+                        "/view/everyone/popular24h/0", false),
+                new ScalePage("topic popular", "/view/" + topic
+                        + "/popular24h/0", false),
+                new ScalePage("topic recent", "/view/" + topic
+                        + "/recent/0", false),
+                new ScalePage("browse popular", "/Topic/browse?order=popular",
+                        false),
+                new ScalePage("browse recent", "/Topic/browse?order=recent",
+                        false),
+                new ScalePage("profile", "/user/" + this.users.get(0).getId(),
+                        false),
+                new ScalePage("search", "/Search?q=scale", false),
+                new ScalePage("suggest", "/suggest?q=scal", false),
+                new ScalePage("vote (AJAX)", "/vote/"
+                        + newest.get(0).getId() + "?ajax=true", false));
+    }
+
+    /**
+     * Request a page a few times, as the first seeded user or as a guest,
+     * and return the most queries and rows read by any of the requests. The
+     * guest page cache is cleared before each guest request, so the cost of
+     * building the page is measured rather than that of a cache hit.
+     *
+     * @param page the page to request
+     * @return the number of queries and the number of rows read
+     * @throws IOException if a request fails
+     */
+    private int[] measure(ScalePage page) throws IOException {
+        LoadTestClient client = new LoadTestClient("http://localhost:"
+                + Play.configuration.getProperty("http.port", "9000"));
+        if(!page.asGuest) {
+            client.post("/Account/onLoginSubmit", "email", getEmail(0),
+                    "password", PASSWORD);
+        }
+        int[] cost = new int[2];
+        for(int i = 0; i < REQUESTS; i++) {
+            if(page.asGuest) {
+                Topic.clearGuestPages();
+            }
+            int status = client.get(page.path);
+            String queries = client.getHeader(Constants.QUERY_COUNT_HEADER);
+            String rows = client.getHeader(Constants.ROW_COUNT_HEADER);
+            assertTrue(page.path + " answered " + status, status < 400);
+            assertNotNull("No query counts sent for " + page.path
+                    + ", so queries aren't traced; see trace.queries",
+                    queries);
+            cost[0] = Math.max(cost[0], Integer.parseInt(queries));
+            cost[1] = Math.max(cost[1], Integer.parseInt(rows));
+        }
+        return cost;
+    }
+
+    /**
+     * Insert entities in batches of at most SEED_BATCH.
+     *
+     * @param type the class of the entities
+     * @param entities the entities to insert
+     */
+    private static <T> void insertAll(Class<T> type, List<T> entities) {
+        for(int i = 0; i < entities.size(); i += SEED_BATCH) {
+            Model.batch(type).insert(entities.subList(i,
+                    Math.min(i + SEED_BATCH, entities.size())));
+        }
+    }
+
+    /**
+     * Checks if a cost has grown by more than a tolerance.
+     *
+     * @param base the cost at the smallest scale
+     * @param cost the cost at a larger scale
+     * @param tolerance the percent the cost may grow by
+     * @return true if the cost grew by more than the tolerance
+     */
+    private static boolean hasGrown(int base, int cost, int tolerance) {
+        return cost * 100L > base * (100L + tolerance);
+    }
+
+    /**
+     * Returns the email address of a seeded user.
+     *
+     * @param i the number of the user
+     * @return the email address of the user
+     */
+    private static String getEmail(int i) {
+        return "scale" + i + "@example.com";
+    }
+
+    /**
+     * Returns the name of a seeded topic.
+     *
+     * @param i the number of the topic
+     * @return the name of the topic
+     */
+    private static String getTopicName(int i) {
+        return "scale" + i;
+    }
+
+    /**
+     * A page requested at each scale.
+     */
+    private static class ScalePage {
+
+        /** the name of the page in failures */
+        private final String name;
+
+        /** the path of the page, with any query string */
+        private final String path;
+
+        /** whether to request the page as a guest or as a user */
+        private final boolean asGuest;
+
+        /**
+         * Constructs a page.
+         *
+         * @param theName the name of the page in failures
+         * @param thePath the path of the page
+         * @param isGuest true to request the page as a guest
+         */
+        ScalePage(String theName, String thePath, boolean isGuest) {
+            this.name = theName;
+            this.path = thePath;
+            this.asGuest = isGuest;
+        }
+    }
+}
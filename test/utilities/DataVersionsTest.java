@@ -0,0 +1,67 @@
+/*
+ * File: DataVersionsTest.java
+ * Name: Peter Graham
+ * Class: CS 461
+ * Project 1
+ * Date: May 19
+ */
+package utilities;
+
+import org.junit.Test;
+import play.cache.Cache;
+import play.test.UnitTest;
+
+/**
+ * Checks that data versions are kept in the shared cache, so a write on any
+ * application instance makes pages out of date on every instance.
+ *
+ * @author Peter Graham
+ */
+public class DataVersionsTest extends UnitTest {
+
+    /**
+     * Check that touching a scope gives it a newer version, even within the
+     * same millisecond, and leaves other scopes alone.
+     */
+    @Test
+    public void touchMakesVersionNewer() {
+        String scope = DataVersions.topic(1L);
+        String other = DataVersions.topic(2L);
+        long before = DataVersions.get(scope);
+        long otherBefore = DataVersions.get(other);
+        DataVersions.touch(scope);
+        long after = DataVersions.get(scope);
+        DataVersions.touch(scope);
+        assertTrue(after > before);
+        assertTrue(DataVersions.get(scope) > after);
+        assertEquals(otherBefore, DataVersions.get(other));
+    }
+
+    /**
+     * Check that a version written to the shared cache, as by another
+     * instance, is seen here.
+     */
+    @Test
+    public void versionIsReadFromSharedCache() {
+        String scope = DataVersions.user(1L);
+        long written = DataVersions.get(scope) + 60 * 1000L;
+        Cache.set(DataVersions.KEY_PREFIX + scope, written);
+        assertEquals(written, DataVersions.get(scope));
+    }
+
+    /**
+     * Check that a scope whose version was evicted from the cache looks
+     * written no earlier than when it was evicted, and that later reads agree
+     * on its version.
+     */
+    @Test
+    public void evictedVersionIsCurrentTime() {
+        String scope = DataVersions.user(2L);
+        DataVersions.touch(scope);
+        long evictedAt = System.currentTimeMillis();
+        Cache.delete(DataVersions.KEY_PREFIX + scope);
+        long evicted = DataVersions.get(scope);
+        assertTrue(evicted >= evictedAt);
+        assertEquals(evicted, DataVersions.get(scope));
+    }
+}
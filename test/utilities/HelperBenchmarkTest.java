@@ -0,0 +1,289 @@
+/*
+ * File: HelperBenchmarkTest.java
+ * Name: Peter Graham
+ * Class: CS 461
+ * Project 1
+ * Date: May 19
+ */
+package utilities;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+import play.Logger;
+import play.i18n.Lang;
+import play.test.UnitTest;
+
+/**
+ * Microbenchmarks of the helpers run once per request or once per row:
+ * sanitizing update content, the Validator checks, selecting the top items
+ * with TopK, and formatting how long ago something happened. Each one logs
+ * its throughput and the bytes it allocates per operation, so a regression
+ * shows up as numbers in the test log.
+ *
+ * The inputs are read from the corpora checked in next to this class, or
+ * made from a fixed seed, so every run measures the same work.
+ *
+ * @author Peter Graham
+ */
+public class HelperBenchmarkTest extends UnitTest {
+
+    /** the directory of the benchmark corpora */
+    private static final String CORPORA = "test/utilities/benchmark/";
+
+    /** the seed of the generated inputs */
+    private static final long SEED = 461;
+
+    /** how long to run each benchmark before measuring it, in milliseconds */
+    private static final long WARMUP_MILLIS = 500;
+
+    /** how long to measure each benchmark for, in milliseconds */
+    private static final long MEASURE_MILLIS = 1000;
+
+    /** the numbers of items offered to TopK */
+    private static final int[] TOP_K_SIZES = {10, 100, 1000, 10000, 100000};
+
+    /** the most minutes ago a formatted time is, about two years */
+    private static final int MAX_MINUTES_AGO = 2 * 365 * 24 * 60;
+
+    /** the number of different times formatted */
+    private static final int TIMES = 1000;
+
+    /** the thread allocation counters, or null if the JVM has none */
+    private static final com.sun.management.ThreadMXBean allocations =
+            getAllocationCounter();
+
+    /** a result of every operation, so none is optimized away */
+    private long sink;
+
+    /**
+     * Measure sanitizing the update content corpus and the sanitize
+     * equivalence corpus, against the old two pass implementation.
+     *
+     * @throws IOException if a corpus can't be read
+     */
+    @Test
+    public void benchmarkSanitize() throws IOException {
+        final List<String> content = SimpleHTMLParserTest.readLines(
+                CORPORA + "updates.txt");
+        content.addAll(SimpleHTMLParserTest.readLines(
+                SimpleHTMLParserTest.CORPUS));
+        this.measure("SimpleHTMLParser.sanitize", new Operation() {
+            public int run(int i) {
+                return SimpleHTMLParser.sanitize(
+                        content.get(i % content.size())).length();
+            }
+        });
+        this.measure("convertToEntities + closeAllTags (old)",
+                new Operation() {
+            public int run(int i) {
+                return SimpleHTMLParserTest.closeAllTags(
+                        SimpleHTMLParserTest.convertToEntities(
+                        content.get(i % content.size()))).length();
+            }
+        });
+    }
+
+    /**
+     * Check the Validator against the validator corpus, then measure each
+     * of its checks over the corpus.
+     *
+     * @throws IOException if the corpus can't be read
+     */
+    @Test
+    public void benchmarkValidator() throws IOException {
+        final List<String> emails = new ArrayList<String>();
+        final List<String> urls = new ArrayList<String>();
+        final List<String> titles = new ArrayList<String>();
+        for(String line : SimpleHTMLParserTest.readLines(CORPORA
+                + "validator.txt")) {
+            if(line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split("\t", 3);
+            boolean valid = Boolean.parseBoolean(fields[1]);
+            if(fields[0].equals("email")) {
+                assertEquals(line, valid, Validator.isEmail(fields[2]));
+                emails.add(fields[2]);
+            }
+            else if(fields[0].equals("url")) {
+                assertEquals(line, valid, Validator.isUrl(fields[2]));
+                urls.add(fields[2]);
+            }
+            else {
+                assertEquals(line, valid,
+                        Validator.isValidTopicTitle(fields[2]));
+                titles.add(fields[2]);
+            }
+        }
+        this.measure("Validator.isEmail", new Operation() {
+            public int run(int i) {
+                return Validator.isEmail(emails.get(i % emails.size()))
+                        ? 1 : 0;
+            }
+        });
+        this.measure("Validator.isUrl", new Operation() {
+            public int run(int i) {
+                return Validator.isUrl(urls.get(i % urls.size())) ? 1 : 0;
+            }
+        });
+        this.measure("Validator.isValidTopicTitle", new Operation() {
+            public int run(int i) {
+                return Validator.isValidTopicTitle(titles.get(
+                        i % titles.size())) ? 1 : 0;
+            }
+        });
+    }
+
+    /**
+     * Measure selecting a page of the highest scoring items out of 10 to
+     * 100,000 items with random scores.
+     */
+    @Test
+    public void benchmarkTopK() {
+        for(final int size : TOP_K_SIZES) {
+            Random random = new Random(SEED);
+            final int[] scores = new int[size];
+            for(int i = 0; i < size; i++) {
+                // few votes are common and many are rare, so scores tie
+                scores[i] = (int) Math.abs(random.nextGaussian() * 20);
+            }
+            this.measure("TopK of " + size, new Operation() {
+                public int run(int i) {
+                    TopK<Integer> top = new TopK<Integer>(
+                            Constants.UPDATES_PER_PAGE);
+                    for(int id = 0; id < size; id++) {
+                        top.offer(null, scores[id], id);
+                    }
+                    return top.toList().size();
+                }
+            });
+        }
+    }
+
+    /**
+     * Measure formatting how long ago random times from now to two years
+     * ago were, in every language of the interface.
+     */
+    @Test
+    public void benchmarkHowLongAgo() {
+        Random random = new Random(SEED);
+        final long[] times = new long[TIMES];
+        long now = System.currentTimeMillis();
+        for(int i = 0; i < TIMES; i++) {
+            // recent times are the most common, as on the popular pages
+            int minutesAgo = (int) (Math.pow(random.nextDouble(), 4)
+                    * MAX_MINUTES_AGO);
+            times[i] = now - minutesAgo * 60 * 1000L;
+        }
+        String language = Lang.get();
+        RelativeTime.beginRequest();
+        try {
+            for(String code : Constants.VALID_LANGUAGE_CODES) {
+                Lang.set(code);
+                this.measure("RelativeTime.format in " + code,
+                        new Operation() {
+                    public int run(int i) {
+                        return RelativeTime.format(times[i % TIMES])
+                                .length();
+                    }
+                });
+            }
+        }
+        finally {
+            RelativeTime.endRequest();
+            if(language != null) {
+                Lang.set(language);
+            }
+        }
+    }
+
+    /**
+     * Warm an operation up, then run it repeatedly for a fixed time and log
+     * how many times it ran per second, and how many bytes each run
+     * allocated on average.
+     *
+     * @param name the name of the operation to log
+     * @param operation the operation
+     */
+    private void measure(String name, Operation operation) {
+        this.runFor(operation, WARMUP_MILLIS);
+        long startBytes = getAllocatedBytes();
+        long start = System.nanoTime();
+        int runs = this.runFor(operation, MEASURE_MILLIS);
+        long nanos = System.nanoTime() - start;
+        long bytes = getAllocatedBytes() - startBytes;
+        Logger.info("%s: %.0f ops/s, %s bytes/op", name,
+                runs * 1e9 / nanos, allocations == null ? "?"
+                : String.valueOf(bytes / runs));
+    }
+
+    /**
+     * Run an operation repeatedly for some time.
+     *
+     * @param operation the operation
+     * @param millis how long to keep running it
+     * @return how many times it ran
+     */
+    private int runFor(Operation operation, long millis) {
+        long end = System.nanoTime() + millis * 1000000L;
+        int runs = 0;
+        do {
+            // check the clock only every so often, so reading it isn't
+            // measured
+            for(int batch = 0; batch < 64; batch++) {
+                this.sink += operation.run(runs++);
+            }
+        } while(System.nanoTime() < end);
+        return runs;
+    }
+
+    /**
+     * Returns the number of bytes the current thread has allocated.
+     *
+     * @return the bytes allocated, or 0 if the JVM doesn't count them
+     */
+    private static long getAllocatedBytes() {
+        if(allocations == null) {
+            return 0;
+        }
+        return allocations.getThreadAllocatedBytes(
+                Thread.currentThread().getId());
+    }
+
+    /**
+     * Returns the thread allocation counters of the JVM, if it has them.
+     *
+     * @return the counters, or null if the JVM doesn't count allocations
+     */
+    private static com.sun.management.ThreadMXBean getAllocationCounter() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if(threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean counter =
+                    (com.sun.management.ThreadMXBean) threads;
+            if(counter.isThreadAllocatedMemorySupported()) {
+                counter.setThreadAllocatedMemoryEnabled(true);
+                return counter;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * An operation to measure.
+     */
+    private interface Operation {
+
+        /**
+         * Run the operation once.
+         *
+         * @param i the number of the run, to pick an input with
+         * @return any result of the run, so it isn't optimized away
+         */
+        int run(int i);
+    }
+}
@@ -0,0 +1,481 @@
+/*
+ * File: LoadTest.java
+ * Name: Peter Graham
+ * Class: CS 461
+ * Project 1
+ * Date: May 19
+ */
+package utilities;
+
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Load tests the application end to end over HTTP, so the throughput and
+ * latency of each kind of page can be compared between changes. It runs as
+ * its own program, out of the server's process, and only uses the pages a
+ * browser would, so it needs nothing from the application and is never
+ * deployed with it.
+ *
+ * The server is first seeded with the configured number of users, topics,
+ * follows, updates and votes, all made through its pages. Then each of
+ * loadtest.threads threads acts as one logged in user and one guest, making
+ * a mix of requests like real traffic for loadtest.seconds seconds. The
+ * throughput and 50th, 95th and 99th percentile latencies of each route are
+ * printed at the end.
+ *
+ * Run it against a server started in test mode, which uses the in-memory
+ * datastore, from the application directory:
+ *
+ *     play test
+ *     javac -d /tmp/loadtest test/utilities/LoadTest*.java
+ *     java -cp /tmp/loadtest -Dloadtest.threads=20 utilities.LoadTest
+ *
+ * The URL of the server may be given as an argument, and defaults to
+ * http://localhost:9000. Every setting is a system property:
+ * loadtest.users, loadtest.topics, loadtest.follows (per user),
+ * loadtest.updates, loadtest.votes, loadtest.threads and loadtest.seconds.
+ * Each run seeds its own users, with a password made up for the run, so runs
+ * against the same server don't collide.
+ *
+ * @author Peter Graham
+ */
+public class LoadTest {
+
+    /** the URL of the server if none is given */
+    private static final String DEFAULT_URL = "http://localhost:9000";
+
+    /** the most seconds to wait for the server to start */
+    private static final int STARTUP_WAIT = 60;
+
+    /** a link to vote on an update, in a page of updates */
+    private static final Pattern VOTE_LINK = Pattern.compile(
+            "href=\"/vote/(\\d+)\"");
+
+    /**
+     * The kinds of request made, and how often each is made relative to the
+     * others.
+     */
+    private enum Route {
+        GUEST_HOME("guest homepage", 30),
+        YOU_FEED("you feed", 20),
+        TOPIC_PAGE("topic page", 20),
+        VOTE("vote (AJAX)", 12),
+        FOLLOW("follow/unfollow", 8),
+        POST("post update", 5),
+        BROWSE("browse topics", 5);
+
+        /** the name of the route in the report */
+        private final String label;
+
+        /** how often the route is requested relative to the others */
+        private final int weight;
+
+        /**
+         * Constructs a route.
+         *
+         * @param theLabel the name of the route in the report
+         * @param theWeight how often the route is requested
+         */
+        Route(String theLabel, int theWeight) {
+            this.label = theLabel;
+            this.weight = theWeight;
+        }
+    }
+
+    /** the latencies of each route in milliseconds */
+    private final Map<Route,Latencies> latencies =
+            new EnumMap<Route,Latencies>(Route.class);
+
+    /** the IDs of updates to vote on */
+    private final List<Long> updateIds = new ArrayList<Long>();
+
+    /** the random choices of seeding, the same on every run */
+    private final Random seedRandom = new Random(0);
+
+    /** the URL of the server */
+    private final String baseUrl;
+
+    /** what the names of this run's users and topics start with */
+    private final String runId;
+
+    /** the password of this run's users */
+    private final String password;
+
+    /**
+     * Constructs a load test of a server.
+     *
+     * @param theBaseUrl the URL of the server, such as
+     *      "http://localhost:9000"
+     */
+    public LoadTest(String theBaseUrl) {
+        this.baseUrl = theBaseUrl;
+        SecureRandom random = new SecureRandom();
+        this.runId = "lt" + Long.toString(System.currentTimeMillis(), 36);
+        this.password = Long.toHexString(random.nextLong());
+        for(Route route : Route.values()) {
+            this.latencies.put(route, new Latencies());
+        }
+    }
+
+    /**
+     * Seed a server, load test it and print the results.
+     *
+     * @param args the URL of the server, or nothing for localhost:9000
+     * @throws Exception if the server can't be reached or seeded
+     */
+    public static void main(String[] args) throws Exception {
+        LoadTest loadTest = new LoadTest(args.length > 0 ? args[0]
+                : DEFAULT_URL);
+        loadTest.waitForServer();
+        loadTest.seed();
+        loadTest.run();
+        loadTest.report();
+    }
+
+    /**
+     * Seed the server with users, topics, follows, updates and votes. Each
+     * user follows topics at random, each update is posted by a user at
+     * random, and votes are cast by users at random. A vote a user already
+     * cast is skipped rather than taken back.
+     *
+     * @throws IOException if a request fails
+     */
+    private void seed() throws IOException {
+        int numUsers = getIntSetting("loadtest.users", 100);
+        int numTopics = getIntSetting("loadtest.topics", 50);
+        int followsPerUser = getIntSetting("loadtest.follows", 5);
+        int numUpdates = getIntSetting("loadtest.updates", 1000);
+        int numVotes = getIntSetting("loadtest.votes", 5000);
+        System.out.printf("Seeding %d users, %d topics, %d follows per user, "
+                + "%d updates and %d votes%n", numUsers, numTopics,
+                followsPerUser, numUpdates, numVotes);
+        List<LoadTestClient> users = new ArrayList<LoadTestClient>();
+        for(int i = 0; i < numUsers; i++) {
+            LoadTestClient user = new LoadTestClient(this.baseUrl);
+            check(user.post("/Account/onRegisterSubmit", "email",
+                    this.getEmail(i), "password", this.password),
+                    "register " + this.getEmail(i));
+            users.add(user);
+        }
+        for(int i = 0; i < numTopics; i++) {
+            check(users.get(i % numUsers).post("/Topic/onCreateSubmit",
+                    "topicName", this.getTopicName(i)),
+                    "create " + this.getTopicName(i));
+        }
+        for(LoadTestClient user : users) {
+            for(int i = 0; i < followsPerUser; i++) {
+                check(user.get("/Topic/followTopic?topicName="
+                        + this.getTopicName(this.seedRandom.nextInt(numTopics))
+                        + "&sortBy=recent"), "follow");
+            }
+        }
+        for(int i = 0; i < numUpdates; i++) {
+            check(users.get(this.seedRandom.nextInt(numUsers)).post(
+                    "/Topic/onUpdateSubmit", "topicName",
+                    this.getTopicName(this.seedRandom.nextInt(numTopics)),
+                    "content", "Load test update " + i, "url", "",
+                    "sortBy", "recent"), "post");
+        }
+        // the first page of each topic has its newest updates to vote on
+        LoadTestClient guest = new LoadTestClient(this.baseUrl);
+        for(int i = 0; i < numTopics; i++) {
+            check(guest.get("/view/" + this.getTopicName(i) + "/recent/0"),
+                    "view " + this.getTopicName(i));
+            Matcher link = VOTE_LINK.matcher(guest.getBody());
+            while(link.find()) {
+                this.updateIds.add(Long.valueOf(link.group(1)));
+            }
+        }
+        Set<String> voted = new HashSet<String>();
+        for(int i = 0; i < numVotes && !this.updateIds.isEmpty(); i++) {
+            int user = this.seedRandom.nextInt(numUsers);
+            Long updateId = this.updateIds.get(this.seedRandom.nextInt(
+                    this.updateIds.size()));
+            if(voted.add(user + ":" + updateId)) {
+                check(users.get(user).get("/vote/" + updateId + "?ajax=true"),
+                        "vote");
+            }
+        }
+        System.out.println("Done seeding");
+    }
+
+    /**
+     * Wait until the server answers requests.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private void waitForServer() throws InterruptedException {
+        LoadTestClient client = new LoadTestClient(this.baseUrl);
+        for(int i = 0; i < STARTUP_WAIT; i++) {
+            try {
+                client.get("/robots.txt");
+                return;
+            }
+            catch(IOException e) {
+                Thread.sleep(1000);
+            }
+        }
+        throw new IllegalStateException("No server at " + this.baseUrl);
+    }
+
+    /**
+     * Make requests from every thread until the time is up.
+     *
+     * @throws InterruptedException if interrupted while waiting for threads
+     */
+    private void run() throws InterruptedException {
+        int threads = getIntSetting("loadtest.threads", 10);
+        int seconds = getIntSetting("loadtest.seconds", 60);
+        System.out.printf("Load testing %s with %d threads for %d seconds%n",
+                this.baseUrl, threads, seconds);
+        final long end = System.currentTimeMillis() + seconds * 1000L;
+        final int numUsers = getIntSetting("loadtest.users", 100);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for(int i = 0; i < threads; i++) {
+            final int thread = i;
+            executor.execute(new Runnable() {
+                public void run() {
+                    runUser(getEmail(thread % numUsers), thread, end);
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(seconds + STARTUP_WAIT, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Make requests as one logged in user and one guest until the time is
+     * up.
+     *
+     * @param email the email address of the user to log in as
+     * @param seed the seed of the random choices of this thread
+     * @param end when to stop in milliseconds
+     */
+    private void runUser(String email, int seed, long end) {
+        Random random = new Random(seed);
+        LoadTestClient guest = new LoadTestClient(this.baseUrl);
+        LoadTestClient user = new LoadTestClient(this.baseUrl);
+        try {
+            user.post("/Account/onLoginSubmit", "email", email, "password",
+                    this.password);
+        }
+        catch(IOException e) {
+            System.err.println("Could not log in as " + email + ": " + e);
+            return;
+        }
+        int numTopics = getIntSetting("loadtest.topics", 50);
+        Set<String> followed = new HashSet<String>();
+        int posts = 0;
+        while(System.currentTimeMillis() < end) {
+            Route route = pickRoute(random);
+            String topic = this.getTopicName(random.nextInt(numTopics));
+            long start = System.nanoTime();
+            int status;
+            try {
+                switch(route) {
+                    case GUEST_HOME:
+                        status = guest.get("/");
+                        break;
+                    case YOU_FEED:
+                        status = user.get("/view/you/recent/0");
+                        break;
+                    case TOPIC_PAGE:
+                        status = guest.get("/view/" + topic + "/popular24h/0");
+                        break;
+                    case VOTE:
+                        status = user.get("/vote/" + this.updateIds.get(
+                                random.nextInt(this.updateIds.size()))
+                                + "?ajax=true");
+                        break;
+                    case FOLLOW:
+                        String action = followed.remove(topic)
+                                ? "unFollowTopic" : "followTopic";
+                        if("followTopic".equals(action)) {
+                            followed.add(topic);
+                        }
+                        status = user.get("/Topic/" + action + "?topicName="
+                                + topic + "&sortBy=recent");
+                        break;
+                    case POST:
+                        status = user.post("/Topic/onUpdateSubmit",
+                                "topicName", topic, "content", "Load test post "
+                                + seed + "-" + posts++, "url", "",
+                                "sortBy", "recent");
+                        break;
+                    default:
+                        status = guest.get("/Topic/browse?order=popular");
+                        break;
+                }
+            }
+            catch(IOException e) {
+                status = -1;
+            }
+            this.latencies.get(route).add((System.nanoTime() - start)
+                    / 1000000, status < 0 || status >= 400);
+        }
+    }
+
+    /**
+     * Print the throughput and latency percentiles of each route.
+     */
+    private void report() {
+        int seconds = getIntSetting("loadtest.seconds", 60);
+        System.out.printf("%-16s %8s %7s %8s %7s %7s %7s%n", "route",
+                "requests", "errors", "req/s", "p50 ms", "p95 ms", "p99 ms");
+        for(Route route : Route.values()) {
+            Latencies routeLatencies = this.latencies.get(route);
+            long[] sorted = routeLatencies.getSorted();
+            System.out.printf("%-16s %8d %7d %8.1f %7d %7d %7d%n",
+                    route.label, sorted.length, routeLatencies.getErrors(),
+                    (double) sorted.length / seconds,
+                    percentile(sorted, 50), percentile(sorted, 95),
+                    percentile(sorted, 99));
+        }
+    }
+
+    /**
+     * Fail if a seeding request wasn't answered with a page or a redirect.
+     *
+     * @param status the status code of the response
+     * @param what what the request did, for the error message
+     */
+    private static void check(int status, String what) {
+        if(status >= 400) {
+            throw new IllegalStateException("Could not " + what
+                    + ", the server answered " + status);
+        }
+    }
+
+    /**
+     * Pick a route at random by weight.
+     *
+     * @param random the random number generator
+     * @return the route
+     */
+    private static Route pickRoute(Random random) {
+        int total = 0;
+        for(Route route : Route.values()) {
+            total += route.weight;
+        }
+        int pick = random.nextInt(total);
+        for(Route route : Route.values()) {
+            pick -= route.weight;
+            if(pick < 0) {
+                return route;
+            }
+        }
+        return Route.GUEST_HOME;
+    }
+
+    /**
+     * Returns a percentile of sorted values, by the nearest rank.
+     *
+     * @param sorted the values in ascending order
+     * @param percent the percentile, such as 95
+     * @return the value at the percentile, or 0 if there are no values
+     */
+    private static long percentile(long[] sorted, int percent) {
+        if(sorted.length == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(percent / 100.0 * sorted.length);
+        return sorted[Math.max(rank - 1, 0)];
+    }
+
+    /**
+     * Returns the email address of a seeded user.
+     *
+     * @param i the number of the user
+     * @return the email address of the user
+     */
+    private String getEmail(int i) {
+        return this.runId + "-" + i + "@example.com";
+    }
+
+    /**
+     * Returns the name of a seeded topic.
+     *
+     * @param i the number of the topic
+     * @return the name of the topic
+     */
+    private String getTopicName(int i) {
+        return this.runId + "-" + i;
+    }
+
+    /**
+     * Returns a number setting from the system properties.
+     *
+     * @param key the name of the setting
+     * @param defaultValue the value if the setting isn't set
+     * @return the value of the setting
+     */
+    private static int getIntSetting(String key, int defaultValue) {
+        return Integer.parseInt(System.getProperty(key,
+                String.valueOf(defaultValue)).trim());
+    }
+
+    /**
+     * The latencies of a route, and how many of its requests failed.
+     */
+    private static class Latencies {
+
+        /** the latencies in milliseconds */
+        private long[] values = new long[1024];
+
+        /** the number of latencies */
+        private int size;
+
+        /** the number of requests that failed */
+        private int errors;
+
+        /**
+         * Add the latency of a request.
+         *
+         * @param millis the latency in milliseconds
+         * @param failed whether or not the request failed
+         */
+        synchronized void add(long millis, boolean failed) {
+            if(this.size == this.values.length) {
+                this.values = Arrays.copyOf(this.values, this.size * 2);
+            }
+            this.values[this.size++] = millis;
+            if(failed) {
+                this.errors++;
+            }
+        }
+
+        /**
+         * Returns the latencies in ascending order.
+         *
+         * @return the sorted latencies in milliseconds
+         */
+        synchronized long[] getSorted() {
+            long[] sorted = Arrays.copyOf(this.values, this.size);
+            Arrays.sort(sorted);
+            return sorted;
+        }
+
+        /**
+         * Returns the number of requests that failed.
+         *
+         * @return the number of failed requests
+         */
+        synchronized int getErrors() {
+            return this.errors;
+        }
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * File: LoadTestClient.java
+ * Name: Peter Graham
+ * Class: CS 461
+ * Project 1
+ * Date: May 18
+ */
+package utilities;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A minimal HTTP client for load testing, acting as a single browser. It
+ * keeps the cookies it is sent, so it stays logged in, and doesn't follow
+ * redirects, so each request is timed on its own.
+ *
+ * @author Peter Graham
+ */
+public class LoadTestClient {
+
+    /** how long to wait for a connection or a response in milliseconds */
+    private static final int TIMEOUT = 30 * 1000;
+
+    /** the URL of the application, without a trailing slash */
+    private final String baseUrl;
+
+    /** the cookies sent by the application, keyed by name */
+    private final Map<String,String> cookies =
+            new LinkedHashMap<String,String>();
+
+    /** the connection of the last request, or null if none was made */
+    private HttpURLConnection lastConnection;
+
+    /** the body of the response to the last request */
+    private byte[] lastBody = new byte[0];
+
+    /**
+     * Constructs a client without cookies.
+     *
+     * @param theBaseUrl the URL of the application, such as
+     *      "http://localhost:9000"
+     */
+    public LoadTestClient(String theBaseUrl) {
+        this.baseUrl = theBaseUrl;
+    }
+
+    /**
+     * Make a GET request and read the whole response.
+     *
+     * @param path the path of the request, with any query string
+     * @return the status code of the response
+     * @throws IOException if the request fails
+     */
+    public int get(String path) throws IOException {
+        return this.request("GET", path, null);
+    }
+
+    /**
+     * Make a POST request with form parameters and read the whole response.
+     *
+     * @param path the path of the request
+     * @param params the form parameters, as names followed by values
+     * @return the status code of the response
+     * @throws IOException if the request fails
+     */
+    public int post(String path, String... params) throws IOException {
+        StringBuilder body = new StringBuilder();
+        for(int i = 0; i + 1 < params.length; i += 2) {
+            if(body.length() > 0) {
+                body.append('&');
+            }
+            body.append(encode(params[i])).append('=')
+                    .append(encode(params[i + 1]));
+        }
+        return this.request("POST", path, body.toString());
+    }
+
+    /**
+     * Returns a header of the response to the last request.
+     *
+     * @param name the name of the header, in any case
+     * @return the value of the header, or null if it wasn't sent
+     */
+    public String getHeader(String name) {
+        if(this.lastConnection == null) {
+            return null;
+        }
+        return this.lastConnection.getHeaderField(name);
+    }
+
+    /**
+     * Returns the body of the response to the last request.
+     *
+     * @return the body, decoded as UTF-8
+     */
+    public String getBody() {
+        try {
+            return new String(this.lastBody, "UTF-8");
+        }
+        catch(UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * URL encode a parameter.
+     *
+     * @param s the parameter
+     * @return the encoded parameter
+     */
+    public static String encode(String s) {
+        try {
+            return URLEncoder.encode(s, "UTF-8");
+        }
+        catch(UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Make a request, sending and keeping cookies.
+     *
+     * @param method the HTTP method
+     * @param path the path of the request
+     * @param body the form encoded body, or null to send none
+     * @return the status code of the response
+     * @throws IOException if the request fails
+     */
+    private int request(String method, String path, String body)
+            throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(
+                this.baseUrl + path).openConnection();
+        connection.setRequestMethod(method);
+        connection.setInstanceFollowRedirects(false);
+        connection.setConnectTimeout(TIMEOUT);
+        connection.setReadTimeout(TIMEOUT);
+        connection.setRequestProperty("User-Agent", "favmix-loadtest");
+        String cookieHeader = this.getCookieHeader();
+        if(cookieHeader.length() > 0) {
+            connection.setRequestProperty("Cookie", cookieHeader);
+        }
+        if(body != null) {
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type",
+                    "application/x-www-form-urlencoded");
+            OutputStream out = connection.getOutputStream();
+            out.write(body.getBytes("UTF-8"));
+            out.close();
+        }
+        int status = connection.getResponseCode();
+        this.lastConnection = connection;
+        this.keepCookies(connection.getHeaderFields().get("Set-Cookie"));
+        InputStream in = status >= 400 ? connection.getErrorStream()
+                : connection.getInputStream();
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        if(in != null) {
+            // read the whole response, as a browser would
+            byte[] buffer = new byte[8192];
+            int read;
+            while((read = in.read(buffer)) >= 0) {
+                received.write(buffer, 0, read);
+            }
+            in.close();
+        }
+        this.lastBody = received.toByteArray();
+        return status;
+    }
+
+    /**
+     * Returns the Cookie header for the kept cookies.
+     *
+     * @return the Cookie header, or "" if there are no cookies
+     */
+    private synchronized String getCookieHeader() {
+        StringBuilder header = new StringBuilder();
+        for(Map.Entry<String,String> cookie : this.cookies.entrySet()) {
+            if(header.length() > 0) {
+                header.append("; ");
+            }
+            header.append(cookie.getKey()).append('=')
+                    .append(cookie.getValue());
+        }
+        return header.toString();
+    }
+
+    /**
+     * Keep the cookies of Set-Cookie headers, and forget deleted ones.
+     *
+     * @param setCookies the values of the Set-Cookie headers, or null
+     */
+    private synchronized void keepCookies(List<String> setCookies) {
+        if(setCookies == null) {
+            return;
+        }
+        for(String setCookie : setCookies) {
+            String pair = setCookie.split(";", 2)[0];
+            int equals = pair.indexOf('=');
+            if(equals <= 0) {
+                continue;
+            }
+            String name = pair.substring(0, equals).trim();
+            String value = pair.substring(equals + 1).trim();
+            if(value.length() == 0 || setCookie.contains("Max-Age=0")) {
+                this.cookies.remove(name);
+            }
+            else {
+                this.cookies.put(name, value);
+            }
+        }
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * File: SimpleHTMLParserTest.java
+ * Name: Peter Graham
+ * Class: CS 461
+ * Project 1
+ * Date: May 19
+ */
+package utilities;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Stack;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.junit.Test;
+import play.Play;
+import play.test.UnitTest;
+
+/**
+ * Checks that SimpleHTMLParser.sanitize converts exactly as the
+ * convertToEntities and closeAllTags pair it replaced did, and that it takes
+ * linear time on deeply nested and unclosed tags.
+ *
+ * @author Peter Graham
+ */
+public class SimpleHTMLParserTest extends UnitTest {
+
+    /** the file of hand written cases, one per line */
+    public static final String CORPUS = "test/utilities/sanitize-corpus.txt";
+
+    /** the seed of the random fuzz cases, so every run checks the same ones */
+    private static final long SEED = 461;
+
+    /** the number of random fuzz cases */
+    private static final int FUZZ_CASES = 200000;
+
+    /** the most fragments in a random fuzz case */
+    private static final int FUZZ_LENGTH = 40;
+
+    /** the pieces random fuzz cases are made from */
+    private static final String[] FRAGMENTS = {"<", ">", "/", "\"", "&lt;",
+        "&gt;", "&lt", "&gt", "&amp;", "&quot;", "b", "u", "i", "B", "a", " ",
+        "x", "\n", "<b>", "</b>", "<u>", "</u>", "<i>", "</i>", "&lt;b&gt;",
+        "&lt;/i&gt;", "<br>", "<script>", "\u65e5"};
+
+    /** the number of tags deep the smaller adversarial input is nested */
+    private static final int DEPTH = 50000;
+
+    /**
+     * Check every case of the corpus file against the old implementation.
+     *
+     * @throws IOException if the corpus file can't be read
+     */
+    @Test
+    public void matchesOldImplementationOnCorpus() throws IOException {
+        List<String> corpus = readLines(CORPUS);
+        assertFalse("empty corpus", corpus.isEmpty());
+        for(String html : corpus) {
+            assertSanitizedAsBefore(html);
+        }
+    }
+
+    /**
+     * Check random strings of brackets, entities, slashes and tag names
+     * against the old implementation.
+     */
+    @Test
+    public void matchesOldImplementationOnFuzz() {
+        Random random = new Random(SEED);
+        StringBuilder html = new StringBuilder();
+        for(int c = 0; c < FUZZ_CASES; c++) {
+            html.setLength(0);
+            int fragments = random.nextInt(FUZZ_LENGTH + 1);
+            for(int f = 0; f < fragments; f++) {
+                html.append(FRAGMENTS[random.nextInt(FRAGMENTS.length)]);
+            }
+            assertSanitizedAsBefore(html.toString());
+        }
+    }
+
+    /**
+     * Check that deeply nested, unclosed and stray closing tags are
+     * converted in linear time: four times the input must take well under
+     * the sixteen times longer that quadratic time would.
+     */
+    @Test
+    public void takesLinearTimeOnDeepNesting() {
+        String[] openers = {"<b><i><u>", "&lt;b&gt;&lt;i&gt;&lt;u&gt;",
+            "<b></i>", "</u><b"};
+        for(String opener : openers) {
+            String small = repeat(opener, DEPTH);
+            String large = repeat(opener, DEPTH * 4);
+            long smallTime = timeSanitize(small);
+            long largeTime = timeSanitize(large);
+            assertTrue(opener + " took " + largeTime + "ns for 4x the input "
+                    + "against " + smallTime + "ns",
+                    largeTime < smallTime * 8);
+        }
+        // every opened tag is closed, most recent first
+        String nested = SimpleHTMLParser.sanitize(repeat("<b><i>", DEPTH));
+        assertTrue(nested.endsWith(repeat("</i></b>", DEPTH)));
+    }
+
+    /**
+     * Fail unless sanitize converts some HTML as the old implementation did.
+     *
+     * @param html the HTML to convert
+     */
+    private static void assertSanitizedAsBefore(String html) {
+        assertEquals(html, closeAllTags(convertToEntities(html)),
+                SimpleHTMLParser.sanitize(html));
+    }
+
+    /**
+     * Returns the fastest of several runs of sanitize on some HTML, so
+     * neither compiling it nor a garbage collection skews the time.
+     *
+     * @param html the HTML to convert
+     * @return the fewest nanoseconds a run took
+     */
+    private static long timeSanitize(String html) {
+        long fastest = Long.MAX_VALUE;
+        for(int run = 0; run < 5; run++) {
+            long start = System.nanoTime();
+            SimpleHTMLParser.sanitize(html);
+            fastest = Math.min(fastest, System.nanoTime() - start);
+        }
+        return fastest;
+    }
+
+    /**
+     * Returns a string repeated a number of times.
+     *
+     * @param s the string to repeat
+     * @param times the number of times to repeat it
+     * @return the repeated string
+     */
+    private static String repeat(String s, int times) {
+        StringBuilder repeated = new StringBuilder(s.length() * times);
+        for(int i = 0; i < times; i++) {
+            repeated.append(s);
+        }
+        return repeated.toString();
+    }
+
+    /**
+     * Read the lines of a corpus file.
+     *
+     * @param path the path of the file, relative to the application
+     * @return the lines of the file
+     * @throws IOException if the file can't be read
+     */
+    static List<String> readLines(String path) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(Play.getFile(path)), "UTF-8"));
+        try {
+            List<String> lines = new ArrayList<String>();
+            String line;
+            while((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+            return lines;
+        }
+        finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * The old implementation, kept as the oracle sanitize is checked
+     * against. Converts the < and > symbols to &lt; and &gt; unless they
+     * belong to a valid tag. Also convert " to &quot;.
+     *
+     * @param htmlString the String containing HTML to convert to entities.
+     * @return a string of the converted HTML.
+     */
+    static String convertToEntities(String htmlString) {
+        String ltConverted = htmlString.replace("<", "&lt;");
+        String gtConverted = ltConverted.replace(">", "&gt;");
+        String converted = gtConverted.replace("\"","&quot;");
+        // convert back the valid tags
+        for(String validTag : Constants.VALID_DISCUSSION_TAGS) {
+            converted = converted.replace("&lt;"+validTag+"&gt;",
+                    "<"+validTag+">");
+            converted = converted.replace("&lt;/"+validTag+"&gt;",
+                    "</"+validTag+">");
+        }
+        return converted;
+    }
+
+    /**
+     * The old implementation, kept as the oracle sanitize is checked
+     * against. Closes tags as necessary if user doesn't specify closing HTML
+     * tags.
+     *
+     * @param htmlString String of HTML and text to add closing tags to.
+     * @return String with tags closed.
+     */
+    static String closeAllTags(String htmlString) {
+        // create a regex to match all valid discussion HTML tags
+        String validTagsRegex = "</?(";
+        for(int i=0; i<Constants.VALID_DISCUSSION_TAGS.size(); i++) {
+            if(i > 0) {
+                validTagsRegex += "|";
+            }
+            validTagsRegex += Constants.VALID_DISCUSSION_TAGS.get(i);
+        }
+        validTagsRegex += ")>";
+        Pattern validTagsPattern = Pattern.compile(validTagsRegex);
+        Matcher validTagsMatcher = validTagsPattern.matcher(htmlString);
+        // keep track of the HTML tags that have been opened but not closed yet
+        Stack<String> openedTags = new Stack<String>();
+        while (validTagsMatcher.find()) {
+            String match = validTagsMatcher.group();
+            for(String tag : Constants.VALID_DISCUSSION_TAGS) {
+                if(("<"+tag+">").equals(match)){
+                    // found an open tag
+                    openedTags.add(tag);
+                    break;
+                }
+                else if(("</"+tag+">").equals(match)) {
+                    if(!openedTags.empty() && openedTags.peek().equals(tag)) {
+                        // tag was closed properly
+                        openedTags.pop();
+                        break;
+                    }
+                }
+            }
+        }
+        // add unclosed tags to end of HTML string
+        while(!openedTags.empty()) {
+            htmlString += ("</"+openedTags.pop()+">");
+        }
+        return htmlString;
+    }
+}